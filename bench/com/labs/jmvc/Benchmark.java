@@ -0,0 +1,348 @@
+package com.labs.jmvc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal micro-benchmark harness.
+ * Besides the time per operation, it reports the bytes allocated per operation and the
+ * collections that happened while measuring. Options accepted by {@link #runAll}:
+ * <ul>
+ * <li><code>-report &lt;file&gt;</code> writes the results as a baseline report</li>
+ * <li><code>-baseline &lt;file&gt;</code> compares the results with a previous report</li>
+ * <li><code>-nofork</code> measures every benchmark in the current JVM</li>
+ * </ul>
+ * Any other argument selects a benchmark by name.
+ * @author Benjamin Dezile
+ */
+public abstract class Benchmark {
+
+	private static final int defaultWarmup = 200000;			// Warmup iterations
+	private static final int defaultIterations = 2000000;		// Measured iterations
+	private static final String resultPrefix = "RESULT\t";		// Marks results printed by forked JVMs
+	private static volatile Object sink;						// Keeps results alive
+
+	private final String name;
+	private final int warmup;
+	private final int iterations;
+
+	/**
+	 * Create a new benchmark
+	 * @param name {@link String} - Benchmark name
+	 */
+	protected Benchmark(String name) {
+		this(name, defaultWarmup, defaultIterations);
+	}
+
+	/**
+	 * Create a new benchmark
+	 * @param name {@link String} - Benchmark name
+	 * @param warmup int - Number of warmup iterations
+	 * @param iterations int - Number of measured iterations
+	 */
+	protected Benchmark(String name, int warmup, int iterations) {
+		this.name = name;
+		this.warmup = warmup;
+		this.iterations = iterations;
+	}
+
+	/**
+	 * Run one operation
+	 * @return {@link Object} Result, consumed so it cannot be optimized away
+	 * @throws Exception
+	 */
+	protected abstract Object run() throws Exception;
+
+	/**
+	 * Return the benchmark name
+	 * @return {@link String}
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Measure one operation
+	 * @param warmup int - Number of warmup iterations
+	 * @param iterations int - Number of measured iterations
+	 * @return {@link Result}
+	 * @throws Exception
+	 */
+	public Result measure(int warmup, int iterations) throws Exception {
+		for (int i=0;i<warmup;i++) {
+			sink = run();
+		}
+		System.gc();
+		long gcCount = getGcCount(), gcTime = getGcTime();
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i=0;i<iterations;i++) {
+			sink = run();
+		}
+		long elapsed = System.nanoTime() - start;
+		long bytes = allocated >= 0 ? getAllocatedBytes() - allocated : -1;
+		return new Result(name, elapsed / (double)iterations, bytes >= 0 ? bytes / (double)iterations : -1,
+			getGcCount() - gcCount, getGcTime() - gcTime);
+	}
+
+	/**
+	 * Measure and print the given benchmarks. Running several benchmarks in the
+	 * same JVM pollutes the call profile of {@link #run()}, so unless <code>-nofork</code>
+	 * is given each benchmark is measured in its own JVM.
+	 * @param args {@link String}[] - Benchmark names and options
+	 * @param benchmarks {@link Benchmark}[] - Available benchmarks
+	 * @throws Exception
+	 */
+	public static void runAll(String[] args, Benchmark... benchmarks) throws Exception {
+		List<String> names = new ArrayList<String>();
+		File report = null, baseline = null;
+		boolean fork = true, child = false;
+		for (int i=0;i<args.length;i++) {
+			if ("-report".equals(args[i]) && i + 1 < args.length) {
+				report = new File(args[++i]);
+			} else if ("-baseline".equals(args[i]) && i + 1 < args.length) {
+				baseline = new File(args[++i]);
+			} else if ("-nofork".equals(args[i])) {
+				fork = false;
+			} else if ("-child".equals(args[i])) {
+				child = true;
+			} else {
+				names.add(args[i]);
+			}
+		}
+		List<Benchmark> selected = new ArrayList<Benchmark>();
+		for (Benchmark b:benchmarks) {
+			if (names.isEmpty() || names.contains(b.getName())) {
+				selected.add(b);
+			}
+		}
+		if (child) {
+			for (Benchmark b:selected) {
+				System.out.println(resultPrefix + b.measure(b.warmup, b.iterations).format());
+			}
+			return;
+		}
+		Map<String, Result> previous = baseline != null ? read(baseline) : new LinkedHashMap<String, Result>();
+		List<Result> results = new ArrayList<Result>();
+		String mainClass = getMainClass();
+		for (Benchmark b:selected) {
+			Result r = fork && selected.size() > 1 ? fork(mainClass, b.getName()) : b.measure(b.warmup, b.iterations);
+			if (r != null) {
+				results.add(r);
+				System.out.println(r.toString(previous.get(r.getName())));
+			}
+		}
+		if (report != null) {
+			write(report, results);
+		}
+	}
+
+	/**
+	 * Measure a benchmark in a new JVM with the same class path and JVM options
+	 */
+	private static Result fork(String mainClass, String name) throws IOException, InterruptedException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		cmd.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), mainClass, "-child", name));
+		Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+		BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()));
+		Result result = null;
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (line.startsWith(resultPrefix)) {
+				result = Result.parse(line.substring(resultPrefix.length()));
+			} else {
+				System.out.println(line);
+			}
+		}
+		in.close();
+		if (p.waitFor() != 0 || result == null) {
+			System.out.println(String.format("%-40s failed", name));
+		}
+		return result;
+	}
+
+	/**
+	 * Name of the class whose main method started this JVM
+	 */
+	private static String getMainClass() {
+		StackTraceElement[] stack = Thread.currentThread().getStackTrace();
+		return stack[stack.length - 1].getClassName();
+	}
+
+	/**
+	 * Read a report
+	 * @param file {@link File} - Report written with <code>-report</code>
+	 * @return {@link Map}<{@link String},{@link Result}> Results by name
+	 * @throws IOException
+	 */
+	public static Map<String, Result> read(File file) throws IOException {
+		Map<String, Result> results = new LinkedHashMap<String, Result>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() > 0 && !line.startsWith("#")) {
+					Result r = Result.parse(line);
+					results.put(r.getName(), r);
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Write a report
+	 * @param file {@link File} - Destination
+	 * @param results {@link List}<{@link Result}> - Results
+	 * @throws IOException
+	 */
+	public static void write(File file, List<Result> results) throws IOException {
+		PrintWriter out = new PrintWriter(new FileWriter(file));
+		try {
+			out.println("# java " + System.getProperty("java.version") + ", " + System.getProperty("os.arch") + ", " + Runtime.getRuntime().availableProcessors() + " cpus");
+			out.println("# name\tns/op\tB/op\tgc.count\tgc.ms");
+			for (Result r:results) {
+				out.println(r.format());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Bytes allocated by the current thread, -1 if the JVM cannot tell
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean)threads;
+			if (t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled()) {
+				return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	private static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(gc.getCollectionCount(), 0);
+		}
+		return count;
+	}
+
+	private static long getGcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()) {
+			time += Math.max(gc.getCollectionTime(), 0);
+		}
+		return time;
+	}
+
+	/**
+	 * Measurement of one benchmark
+	 * @author Benjamin Dezile
+	 */
+	public static class Result {
+
+		private final String name;
+		private final double nanosPerOp;
+		private final double bytesPerOp;		// -1 if unknown
+		private final long gcCount;
+		private final long gcTime;				// Milliseconds
+
+		public Result(String name, double nanosPerOp, double bytesPerOp, long gcCount, long gcTime) {
+			this.name = name;
+			this.nanosPerOp = nanosPerOp;
+			this.bytesPerOp = bytesPerOp;
+			this.gcCount = gcCount;
+			this.gcTime = gcTime;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getNanosPerOp() {
+			return nanosPerOp;
+		}
+
+		public double getBytesPerOp() {
+			return bytesPerOp;
+		}
+
+		public long getGcCount() {
+			return gcCount;
+		}
+
+		public long getGcTime() {
+			return gcTime;
+		}
+
+		/**
+		 * Format as a report line
+		 * @return {@link String}
+		 */
+		String format() {
+			return name + "\t" + nanosPerOp + "\t" + bytesPerOp + "\t" + gcCount + "\t" + gcTime;
+		}
+
+		/**
+		 * Parse a report line
+		 * @param line {@link String} - Line written by {@link #format()}
+		 * @return {@link Result}
+		 */
+		static Result parse(String line) {
+			String[] f = line.split("\t");
+			return new Result(f[0], Double.parseDouble(f[1]), Double.parseDouble(f[2]), Long.parseLong(f[3]), Long.parseLong(f[4]));
+		}
+
+		/**
+		 * Describe the result, compared with a baseline if there is one
+		 * @param baseline {@link Result} - Baseline or null
+		 * @return {@link String}
+		 */
+		public String toString(Result baseline) {
+			StringBuilder s = new StringBuilder(String.format("%-40s %10.1f ns/op", name, nanosPerOp));
+			if (baseline != null) {
+				s.append(String.format(" (%+6.1f%%)", change(baseline.nanosPerOp, nanosPerOp)));
+			}
+			if (bytesPerOp >= 0) {
+				s.append(String.format(" %10.1f B/op", bytesPerOp));
+				if (baseline != null && baseline.bytesPerOp >= 0) {
+					s.append(String.format(" (%+6.1f%%)", change(baseline.bytesPerOp, bytesPerOp)));
+				}
+			}
+			s.append(String.format(" %5d gc %6d ms", gcCount, gcTime));
+			return s.toString();
+		}
+
+		@Override
+		public String toString() {
+			return toString(null);
+		}
+
+		private static double change(double before, double after) {
+			return before > 0 ? (after - before) * 100 / before : 0;
+		}
+
+	}
+
+}
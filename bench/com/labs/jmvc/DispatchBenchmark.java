@@ -0,0 +1,58 @@
+package com.labs.jmvc;
+
+import java.lang.reflect.Method;
+
+/**
+ * Per-request action dispatch overhead: plain reflection vs precompiled actions
+ * @author Benjamin Dezile
+ */
+public class DispatchBenchmark {
+
+	/**
+	 * Controller with a trivial action
+	 */
+	public static class BenchController extends Controller {
+		private static final long serialVersionUID = 1L;
+		private final Object result = new Object();
+		public BenchController() {
+			super("bench");
+		}
+		public Object executeIndex(Context context) {
+			return result;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Logger.disable();
+		final BenchController controller = new BenchController();
+		final Method meth = BenchController.class.getMethod("executeIndex", Context.class);
+		final Action reflective = Action.forMethod(controller, BenchController.class.getMethod("executeIndex", Context.class));
+		final Action direct = new Action() {
+			@Override
+			public Object execute(Context context) throws Exception {
+				return controller.executeIndex(context);
+			}
+		};
+		Benchmark.runAll(args,
+			new Benchmark("reflect") {
+				@Override
+				protected Object run() throws Exception {
+					return meth.invoke(controller, (Context)null);
+				}
+			},
+			new Benchmark("action") {
+				@Override
+				protected Object run() throws Exception {
+					return reflective.execute(null);
+				}
+			},
+			new Benchmark("registered") {
+				@Override
+				protected Object run() throws Exception {
+					return direct.execute(null);
+				}
+			}
+		);
+	}
+
+}
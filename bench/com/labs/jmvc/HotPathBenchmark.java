@@ -0,0 +1,142 @@
+package com.labs.jmvc;
+
+import javax.servlet.http.Cookie;
+import org.json.JSONObject;
+
+/**
+ * Framework hot paths: dispatch, config lookups, bracketed parameters, cookies and logging.
+ * Configuration is read from bench/config. Run with <code>-report</code> to save a baseline
+ * and with <code>-baseline</code> to compare a later build against it.
+ * @author Benjamin Dezile
+ */
+public class HotPathBenchmark {
+
+	/**
+	 * Controller with a text and a JSON action
+	 */
+	public static class BenchController extends Controller {
+		private static final long serialVersionUID = 1L;
+		public BenchController() {
+			super("bench");
+		}
+		public Object executeIndex(Context context) {
+			return "<html><body>Hello</body></html>";
+		}
+		public Object executeJson(Context context) throws Exception {
+			JSONObject json = new JSONObject();
+			json.put("id", 42);
+			json.put("name", context.getParameter("name"));
+			return json;
+		}
+	}
+
+	/**
+	 * Replay a request against a controller
+	 */
+	private static class RequestBenchmark extends Benchmark {
+		private final Controller controller;
+		private final MockRequest request;
+		private final MockResponse response = new MockResponse();
+		RequestBenchmark(String name, Controller controller, MockRequest request) {
+			super(name, 50000, 500000);
+			this.controller = controller;
+			this.request = request;
+		}
+		@Override
+		protected Object run() throws Exception {
+			request.reset();
+			response.reset();
+			controller.doGet(request, response);
+			return response;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final BenchController controller = new BenchController();
+
+		MockRequest params = new MockRequest("/index");
+		for (int i=0;i<10;i++) {
+			params.setParameter("ids[" + i + "]", String.valueOf(i));
+			params.setParameter("other" + i, "x");
+		}
+		params.setParameter("user[name]", "bob").setParameter("user[email]", "bob@example.com").setParameter("user[city]", "Paris");
+		final Context paramContext = new Context(params, new MockResponse());
+
+		MockRequest cookies = new MockRequest("/index");
+		cookies.setCookies(new Cookie("other", "1"), new Cookie(Config.get("application", "name"), "a:1|b:2|c:3|user:42"));
+		final Context cookieContext = new Context(cookies, new MockResponse());
+
+		final String name = controller.getName();
+		final String action = "index";
+		final Exception failure = new IllegalStateException("Database unavailable");
+
+		Benchmark.runAll(args,
+			new RequestBenchmark("controller.doGet", controller, new MockRequest("/index")),
+			new RequestBenchmark("controller.doGet.json", controller, new MockRequest("/json").setParameter("name", "bob")),
+			new Benchmark("config.get") {
+				@Override
+				protected Object run() {
+					return Config.get("application", "name");
+				}
+			},
+			new Benchmark("config.getInt") {
+				@Override
+				protected Object run() {
+					return Config.getInt("bench", "port");
+				}
+			},
+			new Benchmark("context.getParameterAsArray", 50000, 500000) {
+				@Override
+				protected Object run() {
+					return paramContext.getParameterAsArray("ids");
+				}
+			},
+			new Benchmark("context.getParameterAsMap", 50000, 500000) {
+				@Override
+				protected Object run() {
+					return paramContext.getParameterAsMap("user");
+				}
+			},
+			new Benchmark("context.getCookie") {
+				@Override
+				protected Object run() {
+					return cookieContext.getCookie("user");
+				}
+			},
+			new Benchmark("logger.debug") {
+				@Override
+				protected Object run() {
+					/* Below the configured level, as in production */
+					Logger.debug("Calling action: {}->{}", name, action);
+					return null;
+				}
+			},
+			new Benchmark("logger.info") {
+				@Override
+				protected Object run() {
+					/* Enabled, written to the bench log file */
+					Logger.info("Calling action: {}->{}", name, action);
+					return null;
+				}
+			},
+			new Benchmark("logger.error.repeated") {
+				@Override
+				protected Object run() {
+					/* Same failure over and over, as during an incident */
+					Logger.error("Controller exception", failure);
+					return null;
+				}
+			},
+			new Benchmark("logger.debug.guarded") {
+				@Override
+				protected Object run() {
+					if (Logger.isDebugEnabled()) {
+						Logger.debug("Response from {}->{}: ({}) {}", name, action, "text/plain", "java.lang.String");
+					}
+					return null;
+				}
+			}
+		);
+	}
+
+}
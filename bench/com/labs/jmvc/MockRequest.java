@@ -0,0 +1,352 @@
+package com.labs.jmvc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.security.Principal;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+
+/**
+ * In-memory request used to drive controllers outside of a servlet container
+ * @author Benjamin Dezile
+ */
+public class MockRequest implements HttpServletRequest {
+
+	private String method = "GET";
+	private String contextPath = "";
+	private String servletPath = "";
+	private String pathInfo;
+	private String queryString;
+	private String contentType;
+	private String characterEncoding;
+	private byte[] body = new byte[0];
+	private Cookie[] cookies;
+	private MockSession session;
+	private final Map<String, String[]> parameters = new LinkedHashMap<String, String[]>();
+	private final Map<String, String> headers = new LinkedHashMap<String, String>();
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+	/**
+	 * Create a GET request
+	 * @param pathInfo {@link String} - Path below the controller, e.g. /index
+	 */
+	public MockRequest(String pathInfo) {
+		this.pathInfo = pathInfo;
+	}
+
+	public MockRequest setMethod(String method) {
+		this.method = method;
+		return this;
+	}
+
+	public MockRequest setServletPath(String servletPath) {
+		this.servletPath = servletPath;
+		return this;
+	}
+
+	public MockRequest setPathInfo(String pathInfo) {
+		this.pathInfo = pathInfo;
+		return this;
+	}
+
+	public MockRequest setQueryString(String queryString) {
+		this.queryString = queryString;
+		return this;
+	}
+
+	public MockRequest setParameter(String name, String... values) {
+		parameters.put(name, values);
+		return this;
+	}
+
+	public MockRequest setHeader(String name, String value) {
+		headers.put(name.toLowerCase(), value);
+		return this;
+	}
+
+	public MockRequest setCookies(Cookie... cookies) {
+		this.cookies = cookies;
+		return this;
+	}
+
+	public MockRequest setBody(byte[] body, String contentType) {
+		this.body = body;
+		this.contentType = contentType;
+		return this;
+	}
+
+	/**
+	 * Forget the attributes set while handling the request, so it can be replayed
+	 */
+	public void reset() {
+		attributes.clear();
+	}
+
+	public String getAuthType() {
+		return null;
+	}
+
+	public Cookie[] getCookies() {
+		return cookies;
+	}
+
+	public long getDateHeader(String name) {
+		String value = getHeader(name);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US).parse(value).getTime();
+		} catch (ParseException e) {
+			throw new IllegalArgumentException(value);
+		}
+	}
+
+	public String getHeader(String name) {
+		return headers.get(name.toLowerCase());
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getHeaders(String name) {
+		String value = getHeader(name);
+		return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.<String>emptyList());
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getHeaderNames() {
+		return Collections.enumeration(headers.keySet());
+	}
+
+	public int getIntHeader(String name) {
+		String value = getHeader(name);
+		return value != null ? Integer.parseInt(value) : -1;
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getPathInfo() {
+		return pathInfo;
+	}
+
+	public String getPathTranslated() {
+		return null;
+	}
+
+	public String getContextPath() {
+		return contextPath;
+	}
+
+	public String getQueryString() {
+		return queryString;
+	}
+
+	public String getRemoteUser() {
+		return null;
+	}
+
+	public boolean isUserInRole(String role) {
+		return false;
+	}
+
+	public Principal getUserPrincipal() {
+		return null;
+	}
+
+	public String getRequestedSessionId() {
+		return session != null ? session.getId() : null;
+	}
+
+	public String getRequestURI() {
+		return contextPath + servletPath + (pathInfo != null ? pathInfo : "");
+	}
+
+	public StringBuffer getRequestURL() {
+		return new StringBuffer("http://localhost").append(getRequestURI());
+	}
+
+	public String getServletPath() {
+		return servletPath;
+	}
+
+	public HttpSession getSession(boolean create) {
+		if (session == null && create) {
+			session = new MockSession();
+		}
+		return session;
+	}
+
+	public HttpSession getSession() {
+		return getSession(true);
+	}
+
+	public boolean isRequestedSessionIdValid() {
+		return session != null;
+	}
+
+	public boolean isRequestedSessionIdFromCookie() {
+		return session != null;
+	}
+
+	public boolean isRequestedSessionIdFromURL() {
+		return false;
+	}
+
+	/**
+	 * @deprecated
+	 */
+	@Deprecated
+	public boolean isRequestedSessionIdFromUrl() {
+		return false;
+	}
+
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	public void setCharacterEncoding(String env) {
+		characterEncoding = env;
+	}
+
+	public int getContentLength() {
+		return body.length;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public ServletInputStream getInputStream() {
+		final ByteArrayInputStream in = new ByteArrayInputStream(body);
+		return new ServletInputStream() {
+			@Override
+			public int read() {
+				return in.read();
+			}
+			@Override
+			public int read(byte[] b, int off, int len) {
+				return in.read(b, off, len);
+			}
+		};
+	}
+
+	public String getParameter(String name) {
+		String[] values = parameters.get(name);
+		return values != null && values.length > 0 ? values[0] : null;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getParameterNames() {
+		return Collections.enumeration(parameters.keySet());
+	}
+
+	public String[] getParameterValues(String name) {
+		return parameters.get(name);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Map getParameterMap() {
+		return Collections.unmodifiableMap(parameters);
+	}
+
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+
+	public String getScheme() {
+		return "http";
+	}
+
+	public String getServerName() {
+		return "localhost";
+	}
+
+	public int getServerPort() {
+		return 80;
+	}
+
+	public BufferedReader getReader() throws IOException {
+		return new BufferedReader(new InputStreamReader(getInputStream(), characterEncoding != null ? characterEncoding : "ISO-8859-1"));
+	}
+
+	public String getRemoteAddr() {
+		return "127.0.0.1";
+	}
+
+	public String getRemoteHost() {
+		return "localhost";
+	}
+
+	public void setAttribute(String name, Object o) {
+		attributes.put(name, o);
+	}
+
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+
+	public Locale getLocale() {
+		return Locale.US;
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getLocales() {
+		return Collections.enumeration(Collections.singletonList(Locale.US));
+	}
+
+	public boolean isSecure() {
+		return false;
+	}
+
+	public RequestDispatcher getRequestDispatcher(String path) {
+		return null;
+	}
+
+	/**
+	 * @deprecated
+	 */
+	@Deprecated
+	public String getRealPath(String path) {
+		return null;
+	}
+
+	public int getRemotePort() {
+		return 50000;
+	}
+
+	public String getLocalName() {
+		return "localhost";
+	}
+
+	public String getLocalAddr() {
+		return "127.0.0.1";
+	}
+
+	public int getLocalPort() {
+		return 80;
+	}
+
+}
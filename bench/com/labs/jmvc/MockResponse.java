@@ -0,0 +1,260 @@
+package com.labs.jmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * In-memory response capturing status, headers, cookies and body
+ * @author Benjamin Dezile
+ */
+public class MockResponse implements HttpServletResponse {
+
+	private static final String defaultEncoding = "ISO-8859-1";
+
+	private final ByteArrayOutputStream body = new ByteArrayOutputStream(8192);
+	private final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+	private final List<Cookie> cookies = new ArrayList<Cookie>();
+	private int status = SC_OK;
+	private String errorMessage;
+	private String contentType;
+	private String characterEncoding = defaultEncoding;
+	private int bufferSize = 8192;
+	private boolean committed;
+	private ServletOutputStream out;
+	private PrintWriter writer;
+
+	/**
+	 * Clear everything, so the response can be reused
+	 */
+	public void reset() {
+		resetBuffer();
+		headers.clear();
+		cookies.clear();
+		status = SC_OK;
+		errorMessage = null;
+		contentType = null;
+		characterEncoding = defaultEncoding;
+		committed = false;
+		out = null;
+		writer = null;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+
+	public String getHeader(String name) {
+		List<String> values = headers.get(name.toLowerCase());
+		return values != null ? values.get(0) : null;
+	}
+
+	public List<Cookie> getCookies() {
+		return cookies;
+	}
+
+	/**
+	 * Return the bytes written so far
+	 * @return byte[]
+	 */
+	public byte[] getBody() {
+		if (writer != null) {
+			writer.flush();
+		}
+		return body.toByteArray();
+	}
+
+	/**
+	 * Return the body decoded with the response encoding
+	 * @return {@link String}
+	 * @throws UnsupportedEncodingException
+	 */
+	public String getBodyAsString() throws UnsupportedEncodingException {
+		if (writer != null) {
+			writer.flush();
+		}
+		return body.toString(characterEncoding);
+	}
+
+	public void addCookie(Cookie cookie) {
+		cookies.add(cookie);
+	}
+
+	public boolean containsHeader(String name) {
+		return headers.containsKey(name.toLowerCase());
+	}
+
+	public String encodeURL(String url) {
+		return url;
+	}
+
+	public String encodeRedirectURL(String url) {
+		return url;
+	}
+
+	/**
+	 * @deprecated
+	 */
+	@Deprecated
+	public String encodeUrl(String url) {
+		return url;
+	}
+
+	/**
+	 * @deprecated
+	 */
+	@Deprecated
+	public String encodeRedirectUrl(String url) {
+		return url;
+	}
+
+	public void sendError(int sc, String msg) {
+		status = sc;
+		errorMessage = msg;
+		committed = true;
+	}
+
+	public void sendError(int sc) {
+		sendError(sc, null);
+	}
+
+	public void sendRedirect(String location) {
+		status = SC_FOUND;
+		setHeader("Location", location);
+		committed = true;
+	}
+
+	public void setDateHeader(String name, long date) {
+		setHeader(name, String.valueOf(date));
+	}
+
+	public void addDateHeader(String name, long date) {
+		addHeader(name, String.valueOf(date));
+	}
+
+	public void setHeader(String name, String value) {
+		List<String> values = new ArrayList<String>(1);
+		values.add(value);
+		headers.put(name.toLowerCase(), values);
+	}
+
+	public void addHeader(String name, String value) {
+		List<String> values = headers.get(name.toLowerCase());
+		if (values == null) {
+			headers.put(name.toLowerCase(), values = new ArrayList<String>(1));
+		}
+		values.add(value);
+	}
+
+	public void setIntHeader(String name, int value) {
+		setHeader(name, String.valueOf(value));
+	}
+
+	public void addIntHeader(String name, int value) {
+		addHeader(name, String.valueOf(value));
+	}
+
+	public void setStatus(int sc) {
+		status = sc;
+	}
+
+	/**
+	 * @deprecated
+	 */
+	@Deprecated
+	public void setStatus(int sc, String sm) {
+		status = sc;
+	}
+
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public ServletOutputStream getOutputStream() {
+		if (out == null) {
+			out = new ServletOutputStream() {
+				@Override
+				public void write(int b) {
+					body.write(b);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) {
+					body.write(b, off, len);
+				}
+				@Override
+				public void flush() {
+					committed = true;
+				}
+			};
+		}
+		return out;
+	}
+
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), characterEncoding));
+		}
+		return writer;
+	}
+
+	public void setCharacterEncoding(String charset) {
+		characterEncoding = charset;
+	}
+
+	public void setContentLength(int len) {
+		setIntHeader("Content-Length", len);
+	}
+
+	public void setContentType(String type) {
+		contentType = type;
+		int p = type != null ? type.indexOf("charset=") : -1;
+		if (p > 0) {
+			characterEncoding = type.substring(p + 8).trim();
+		}
+	}
+
+	public void setBufferSize(int size) {
+		bufferSize = size;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public void flushBuffer() {
+		committed = true;
+	}
+
+	public void resetBuffer() {
+		body.reset();
+	}
+
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	public void setLocale(Locale loc) {}
+
+	public Locale getLocale() {
+		return Locale.US;
+	}
+
+}
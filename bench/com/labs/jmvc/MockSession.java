@@ -0,0 +1,90 @@
+package com.labs.jmvc;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+
+/**
+ * In-memory session backing {@link MockRequest}
+ * @author Benjamin Dezile
+ */
+@SuppressWarnings("deprecation")
+public class MockSession implements HttpSession {
+
+	private final Map<String, Object> attributes = new HashMap<String, Object>();
+	private final long created = System.currentTimeMillis();
+	private int maxInactiveInterval = 1800;
+
+	public long getCreationTime() {
+		return created;
+	}
+
+	public String getId() {
+		return "mock-session";
+	}
+
+	public long getLastAccessedTime() {
+		return created;
+	}
+
+	public ServletContext getServletContext() {
+		return null;
+	}
+
+	public void setMaxInactiveInterval(int interval) {
+		maxInactiveInterval = interval;
+	}
+
+	public int getMaxInactiveInterval() {
+		return maxInactiveInterval;
+	}
+
+	public javax.servlet.http.HttpSessionContext getSessionContext() {
+		return null;
+	}
+
+	public Object getAttribute(String name) {
+		return attributes.get(name);
+	}
+
+	public Object getValue(String name) {
+		return getAttribute(name);
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Enumeration getAttributeNames() {
+		return Collections.enumeration(attributes.keySet());
+	}
+
+	public String[] getValueNames() {
+		return attributes.keySet().toArray(new String[attributes.size()]);
+	}
+
+	public void setAttribute(String name, Object value) {
+		attributes.put(name, value);
+	}
+
+	public void putValue(String name, Object value) {
+		setAttribute(name, value);
+	}
+
+	public void removeAttribute(String name) {
+		attributes.remove(name);
+	}
+
+	public void removeValue(String name) {
+		removeAttribute(name);
+	}
+
+	public void invalidate() {
+		attributes.clear();
+	}
+
+	public boolean isNew() {
+		return false;
+	}
+
+}
@@ -0,0 +1,91 @@
+package com.labs.jmvc;
+
+import java.io.File;
+
+/**
+ * Session stores: heap used per session and the cost of get/put on a populated store
+ * @author Benjamin Dezile
+ */
+public class SessionStoreBenchmark {
+
+	private static final int sessions = 100000;
+
+	/**
+	 * Fill a store with typical sessions and report the heap they use
+	 * @param name {@link String} - Store name
+	 * @param store {@link SessionStore} - Empty store
+	 * @return {@link String}[] Ids of the created sessions
+	 */
+	private static String[] fill(String name, SessionStore store, boolean report) {
+		String[] ids = new String[sessions];
+		long before = usedHeap();
+		for (int i=0;i<sessions;i++) {
+			ids[i] = SessionStore.newId();
+			store.put(ids[i], "user_id", Long.valueOf(i));
+			store.put(ids[i], "user_name", "user" + i);
+			store.put(ids[i], "locale", "en_US");
+		}
+		long used = usedHeap() - before - (long)sessions * 88;		// Minus the ids kept here
+		if (report) {
+			System.out.println(String.format("%-40s %10.1f B/session (%d sessions)", name + ".heap", used / (double)sessions, store.getSize()));
+		}
+		return ids;
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0;i<3;i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static Benchmark get(String name, final SessionStore store, final String[] ids) {
+		return new Benchmark(name + ".get") {
+			private int i = 0;
+			@Override
+			protected Object run() {
+				return store.get(ids[i++ % ids.length], "user_name");
+			}
+		};
+	}
+
+	private static Benchmark put(String name, final SessionStore store, final String[] ids) {
+		return new Benchmark(name + ".put", 50000, 500000) {
+			private int i = 0;
+			@Override
+			protected Object run() {
+				store.put(ids[i++ % ids.length], "user_id", Long.valueOf(i));
+				return null;
+			}
+		};
+	}
+
+	public static void main(String[] args) throws Exception {
+		Logger.disable();
+		String selected = null;
+		boolean child = false;
+		for (String arg:args) {
+			if ("-child".equals(arg)) {
+				child = true;
+			} else if (!arg.startsWith("-") && selected == null) {
+				selected = arg;
+			}
+		}
+		boolean all = selected == null;
+		if (all || selected.startsWith("memory")) {
+			SessionStore memory = new MemorySessionStore(sessions * 2, 3600, 16);
+			String[] ids = fill("memory", memory, !child);
+			Benchmark.runAll(args, get("memory", memory, ids), put("memory", memory, ids));
+		}
+		if (all || selected.startsWith("file")) {
+			File f = File.createTempFile("jmvc-sessions", ".dat");
+			f.deleteOnExit();
+			SessionStore file = new FileSessionStore(f, sessions * 2, 512, 3600, 16);
+			String[] ids = fill("file", file, !child);
+			Benchmark.runAll(args, get("file", file, ids), put("file", file, ids));
+			file.close();
+		}
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.labs.jmvc;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Controller action, resolved once when the controller is created
+ * @author Benjamin Dezile
+ */
+public abstract class Action {
+
+	/**
+	 * Execute the action
+	 * @param context {@link Context} - Current request context
+	 * @return {@link Object} Response data or null to render the view
+	 * @throws Exception
+	 */
+	public abstract Object execute(Context context) throws Exception;
+
+	/**
+	 * Create an action bound to an <code>execute*</code> method of a controller
+	 * @param controller {@link Controller} - Controller instance
+	 * @param meth {@link Method} - Action method
+	 * @return {@link Action}
+	 */
+	static Action forMethod(Controller controller, Method meth) {
+		return new MethodAction(controller, meth);
+	}
+
+	/**
+	 * Action backed by a controller method
+	 * @author Benjamin Dezile
+	 */
+	private static final class MethodAction extends Action {
+
+		private final Controller target;
+		private final Method method;
+
+		private MethodAction(Controller target, Method method) {
+			this.target = target;
+			this.method = method;
+			try {
+				/* Skip the access check on every call */
+				method.setAccessible(true);
+			} catch (SecurityException e) {
+				Logger.warn("Could not disable access checks for {}: {}", method.getName(), e.getMessage());
+			}
+		}
+
+		@Override
+		public Object execute(Context context) throws Exception {
+			try {
+				return method.invoke(target, context);
+			} catch (InvocationTargetException e) {
+				Throwable t = e.getTargetException();
+				if (t instanceof Exception) {
+					throw (Exception)t;
+				}
+				throw new Exception(t);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return method.getName();
+		}
+
+	}
+
+}
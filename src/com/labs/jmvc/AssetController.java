@@ -0,0 +1,391 @@
+package com.labs.jmvc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Built-in controller serving static files.
+ * The request path is looked up in each root in turn; hidden files, <code>WEB-INF</code> and
+ * <code>META-INF</code> are never served. Supports conditional requests, a single byte
+ * <code>Range</code> and <code>If-Range</code>.
+ * Fingerprinted files listed in the {@link AssetManifest} are served as immutable, and the
+ * precompressed <code>.gz</code> variant of a file is sent to clients accepting gzip.
+ * Bodies go out through the container's sendfile when it offers it, from the hot cache for
+ * small files, and through {@link FileChannel#transferTo} otherwise.
+ * Configured from the controller config section:
+ * <code>asset_roots</code> (directories, relative ones resolve against the web application),
+ * <code>asset_max_age</code> (Cache-Control max-age in seconds, 1 hour by default),
+ * <code>asset_cache_size</code> (bytes of the hot cache, 8M by default, 0 to disable) and
+ * <code>asset_cache_max_file</code> (biggest cached file, 64K by default).
+ * @author Benjamin Dezile
+ */
+public class AssetController extends Controller {
+
+	private static final long serialVersionUID = -1750374026953447189L;
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+	private static final String defaultMimeType = "application/octet-stream";
+	private static final String immutableCacheControl = "public, max-age=31536000, immutable";
+	private static final Map<String, String> mimeTypes = new HashMap<String, String>();
+	static {
+		String[] types = {
+			"css", "text/css", "js", "application/javascript", "json", "application/json",
+			"html", "text/html", "htm", "text/html", "txt", "text/plain", "xml", "application/xml",
+			"png", "image/png", "jpg", "image/jpeg", "jpeg", "image/jpeg", "gif", "image/gif",
+			"svg", "image/svg+xml", "ico", "image/x-icon", "webp", "image/webp",
+			"woff", "font/woff", "woff2", "font/woff2", "ttf", "font/ttf", "otf", "font/otf",
+			"pdf", "application/pdf", "zip", "application/zip", "map", "application/json",
+			"mp4", "video/mp4", "webm", "video/webm", "mp3", "audio/mpeg"
+		};
+		for (int i=0;i<types.length;i+=2) {
+			mimeTypes.put(types[i], types[i + 1]);
+		}
+	}
+
+	private final String[] rootPaths;
+	private volatile File[] roots;					// Resolved on first use
+	private final String cacheControl;
+	private final HotCache cache;
+
+	/**
+	 * Create an asset controller named <code>assets</code> serving the configured roots
+	 */
+	public AssetController() {
+		this("assets", Config.getArray("controller", "asset_roots"));
+	}
+
+	/**
+	 * Create an asset controller
+	 * @param name {@link String} - Controller name
+	 * @param roots {@link String}[] - Directories to serve, relative ones resolve against the web application
+	 */
+	public AssetController(String name, String... roots) {
+		super(name);
+		if (roots == null || roots.length == 0) {
+			throw new IllegalArgumentException("No asset root for " + name + " controller");
+		}
+		this.rootPaths = roots;
+		Integer maxAge = Config.getInt("controller", "asset_max_age");
+		this.cacheControl = "public, max-age=" + (maxAge != null ? maxAge : 3600);
+		Long cacheSize = Config.getLong("controller", "asset_cache_size");
+		Integer maxFile = Config.getInt("controller", "asset_cache_max_file");
+		this.cache = new HotCache(cacheSize != null ? cacheSize : 8 * 1024 * 1024, maxFile != null ? maxFile : 64 * 1024);
+	}
+
+	/**
+	 * Only GET and HEAD are allowed
+	 */
+	@Override
+	public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setHeader("Allow", "GET, HEAD");
+		response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+	}
+
+	/**
+	 * Serve a file
+	 */
+	@Override
+	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		String path = request.getPathInfo();
+		File file = resolve(path);
+		if (file == null) {
+			response.sendError(404, "Not found: " + path);
+			return;
+		}
+		String contentType = getMimeType(file.getName());
+		String encoding = null;
+		File gzipped = new File(file.getPath() + ".gz");
+		if (gzipped.isFile()) {
+			/* Precompressed variant */
+			response.addHeader("Vary", "Accept-Encoding");
+			if (Compression.GZIP.equals(Compression.negotiate(request))) {
+				file = gzipped;
+				encoding = Compression.GZIP;
+			}
+		}
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String etag = Compression.etag(etag(length, lastModified), encoding);
+		response.setHeader("Cache-Control", AssetManifest.getInstance().isFingerprinted(path) ? immutableCacheControl : cacheControl);
+		response.setHeader("Accept-Ranges", "bytes");
+		if (Conditional.isNotModified(request, etag, lastModified)) {
+			Conditional.sendNotModified(response, etag, lastModified);
+			return;
+		}
+		Conditional.setHeaders(response, etag, lastModified);
+		response.setContentType(contentType);
+		if (encoding != null) {
+			response.setHeader("Content-Encoding", encoding);
+		}
+		long start = 0, end = length - 1;
+		String range = request.getHeader("Range");
+		if (range != null && isRangeValid(request, etag, lastModified)) {
+			long[] bounds = parseRange(range, length);
+			if (bounds == null) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			} else if (bounds.length == 2) {
+				start = bounds[0];
+				end = bounds[1];
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+		long count = end - start + 1;
+		response.setHeader("Content-Length", String.valueOf(count));
+		if ("HEAD".equals(request.getMethod()) || count == 0) {
+			return;
+		}
+		byte[] body = cache.get(file, length, lastModified);
+		if (body != null) {
+			ServletOutputStream out = response.getOutputStream();
+			out.write(body, (int)start, (int)count);
+			out.flush();
+		} else if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+			/* The container writes the file once we return */
+			request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+			request.setAttribute(SENDFILE_START, start);
+			request.setAttribute(SENDFILE_END, end + 1);
+		} else {
+			transfer(file, start, count, response);
+		}
+	}
+
+	/**
+	 * Find the file for a request path
+	 * @param path {@link String} - Decoded request path
+	 * @return {@link File} Null if not found or not allowed
+	 */
+	private File resolve(String path) throws IOException {
+		if (path == null || path.length() == 0 || path.indexOf('\0') >= 0) {
+			return null;
+		}
+		for (String seg:path.split("[/\\\\]")) {
+			if (seg.startsWith(".") || "WEB-INF".equalsIgnoreCase(seg) || "META-INF".equalsIgnoreCase(seg)) {
+				return null;
+			}
+		}
+		for (File root:getRoots()) {
+			File file = new File(root, path).getCanonicalFile();
+			if (file.getPath().startsWith(root.getPath() + File.separator) && file.isFile()) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private File[] getRoots() throws IOException {
+		if (roots == null) {
+			File[] r = new File[rootPaths.length];
+			for (int i=0;i<r.length;i++) {
+				File f = new File(rootPaths[i]);
+				if (!f.isAbsolute() && getServletConfig() != null) {
+					f = new File(getServletContext().getRealPath("/"), rootPaths[i]);
+				}
+				r[i] = f.getCanonicalFile();
+			}
+			roots = r;
+		}
+		return roots;
+	}
+
+	/**
+	 * Return the content type of a file from its extension
+	 * @param fileName {@link String} - File name
+	 * @return {@link String}
+	 */
+	protected String getMimeType(String fileName) {
+		String type = getServletConfig() != null ? getServletContext().getMimeType(fileName) : null;
+		if (type == null) {
+			int p = fileName.lastIndexOf('.');
+			type = p >= 0 ? mimeTypes.get(fileName.substring(p + 1).toLowerCase()) : null;
+		}
+		return type != null ? type : defaultMimeType;
+	}
+
+	/**
+	 * Build a strong ETag from the size and modification time of a file
+	 */
+	private static String etag(long length, long lastModified) {
+		return "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+	}
+
+	/**
+	 * Return whether the Range header applies, i.e. If-Range is missing or names the current version
+	 */
+	private static boolean isRangeValid(HttpServletRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		} else if (ifRange.trim().startsWith("\"")) {
+			/* Strong comparison */
+			return ifRange.trim().equals(etag);
+		}
+		try {
+			long date = request.getDateHeader("If-Range");
+			return date >= 0 && lastModified / 1000 == date / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parse a Range header against the file length.
+	 * Only a single range is honored, other forms get the whole file.
+	 * @param header {@link String} - Range header
+	 * @param length long - File length
+	 * @return long[] First and last byte, an empty array for the whole file, null if unsatisfiable
+	 */
+	static long[] parseRange(String header, long length) {
+		header = header.trim();
+		if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+			return new long[0];
+		}
+		int dash = header.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+		long start, end;
+		try {
+			String first = header.substring(6, dash).trim();
+			String last = header.substring(dash + 1).trim();
+			if (first.length() == 0) {
+				/* Suffix: the last n bytes */
+				long n = Long.parseLong(last);
+				if (n <= 0) {
+					return null;
+				}
+				start = Math.max(0, length - n);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(first);
+				end = last.length() > 0 ? Math.min(Long.parseLong(last), length - 1) : length - 1;
+				if (end < start) {
+					return last.length() > 0 && Long.parseLong(last) < start ? new long[0] : null;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+		if (start >= length) {
+			return null;
+		}
+		return new long[] { start, end };
+	}
+
+	/**
+	 * Send part of a file through the container output
+	 */
+	private static void transfer(File file, long start, long count, HttpServletResponse response) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+			long pos = start, end = start + count;
+			while (pos < end) {
+				long n = channel.transferTo(pos, end - pos, out);
+				if (n <= 0) {
+					break;
+				}
+				pos += n;
+			}
+			response.getOutputStream().flush();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Size-bounded LRU cache of small file contents, checked against the file on each hit
+	 * @author Benjamin Dezile
+	 */
+	private static class HotCache {
+
+		private final long maxSize;
+		private final int maxFile;
+		private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+		private long size = 0;
+
+		HotCache(long maxSize, int maxFile) {
+			this.maxSize = maxSize;
+			this.maxFile = maxFile;
+		}
+
+		/**
+		 * Get the contents of a small file, loading it on a miss
+		 * @param file {@link File} - Canonical file
+		 * @param length long - Current length
+		 * @param lastModified long - Current modification time
+		 * @return byte[] Null if the file is not cacheable
+		 */
+		byte[] get(File file, long length, long lastModified) throws IOException {
+			if (length > maxFile || length > maxSize) {
+				return null;
+			}
+			String key = file.getPath();
+			synchronized (this) {
+				Entry e = entries.get(key);
+				if (e != null && e.lastModified == lastModified && e.body.length == length) {
+					return e.body;
+				}
+			}
+			byte[] body = read(file, (int)length);
+			if (body == null) {
+				return null;
+			}
+			synchronized (this) {
+				Entry old = entries.put(key, new Entry(body, lastModified));
+				size += body.length - (old != null ? old.body.length : 0);
+				Iterator<Entry> it = entries.values().iterator();
+				while (size > maxSize && it.hasNext()) {
+					size -= it.next().body.length;
+					it.remove();
+				}
+			}
+			return body;
+		}
+
+		/**
+		 * Read a whole file
+		 * @return byte[] Null if the file changed size meanwhile
+		 */
+		private static byte[] read(File file, int length) throws IOException {
+			ByteBuffer buf = ByteBuffer.allocate(length);
+			FileInputStream in = new FileInputStream(file);
+			try {
+				FileChannel channel = in.getChannel();
+				while (buf.hasRemaining() && channel.read(buf) >= 0);
+				return !buf.hasRemaining() && channel.size() == length ? buf.array() : null;
+			} finally {
+				in.close();
+			}
+		}
+
+		private static class Entry {
+			final byte[] body;
+			final long lastModified;
+			Entry(byte[] body, long lastModified) {
+				this.body = body;
+				this.lastModified = lastModified;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,305 @@
+package com.labs.jmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.json.JSONObject;
+
+/**
+ * Map of logical asset names to content-hashed file names, e.g. <code>css/site.css</code> to
+ * <code>css/site-3f2a9c01be.css</code>. Fingerprinted files never change, so they are
+ * served as immutable and a release only invalidates the assets that actually changed.
+ * <p>
+ * The manifest is written by the build step, see {@link #main(String[])}, and read from
+ * <code>controller.asset_manifest</code> (a file, or a class path resource).
+ * URLs start with <code>controller.asset_prefix</code>, the application prefix followed by
+ * <code>/assets</code> by default. Names missing from the manifest fall back to the
+ * version number as a query string.
+ * @author Benjamin Dezile
+ */
+public final class AssetManifest {
+
+	public static final String FILE_NAME = "manifest.json";
+	private static final int hashLength = 10;						// Hex digits kept in fingerprinted names
+	private static final int minGzipSize = 256;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String[] compressible = { "css", "js", "json", "map", "html", "htm", "txt", "xml", "svg", "ico", "ttf", "otf" };
+
+	private final Map<String, String> files;						// Logical name to fingerprinted name
+	private final Set<String> fingerprinted;
+	private final Map<String, String> urls;							// Resolved URLs, built on first use
+	private final String prefix;
+	private final String fallbackQuery;
+
+	/**
+	 * Create a manifest
+	 * @param files {@link Map}<{@link String},{@link String}> - Logical names to fingerprinted names
+	 * @param prefix {@link String} - URL prefix
+	 * @param version {@link String} - Appended to the URL of names missing from the manifest, or null
+	 */
+	AssetManifest(Map<String, String> files, String prefix, String version) {
+		this.files = files;
+		this.fingerprinted = new HashSet<String>(files.values());
+		this.urls = Collections.synchronizedMap(new HashMap<String, String>(files.size() * 2));
+		this.prefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+		this.fallbackQuery = version != null ? "?v=" + version : "";
+	}
+
+	/**
+	 * Return the manifest of the application
+	 * @return {@link AssetManifest}
+	 */
+	public static AssetManifest getInstance() {
+		return Holder.instance;
+	}
+
+	/**
+	 * Return the URL of an asset
+	 * @param name {@link String} - Logical name, relative to the asset roots
+	 * @return {@link String}
+	 */
+	public String getUrl(String name) {
+		String url = urls.get(name);
+		if (url == null) {
+			String path = name.startsWith("/") ? name.substring(1) : name;
+			String file = files.get(path);
+			url = prefix + "/" + (file != null ? file : path + fallbackQuery);
+			urls.put(name, url);
+		}
+		return url;
+	}
+
+	/**
+	 * Return a read-only map view resolving any logical name to its URL,
+	 * for views, e.g. <code>${assets['css/site.css']}</code>
+	 * @return {@link Map}<{@link String},{@link String}>
+	 */
+	public Map<String, String> getUrls() {
+		return new AbstractMap<String, String>() {
+			@Override
+			public String get(Object key) {
+				return key != null ? getUrl(key.toString()) : null;
+			}
+			@Override
+			public boolean containsKey(Object key) {
+				return key != null;
+			}
+			@Override
+			public Set<Map.Entry<String, String>> entrySet() {
+				Map<String, String> all = new TreeMap<String, String>();
+				for (String name:files.keySet()) {
+					all.put(name, getUrl(name));
+				}
+				return all.entrySet();
+			}
+		};
+	}
+
+	/**
+	 * Return whether a path names a fingerprinted file, which can be cached forever
+	 * @param path {@link String} - Path relative to the asset root
+	 * @return boolean
+	 */
+	public boolean isFingerprinted(String path) {
+		return fingerprinted.contains(path.startsWith("/") ? path.substring(1) : path);
+	}
+
+	/**
+	 * Load the configured manifest
+	 */
+	private static AssetManifest load() {
+		String prefix = Config.get("controller", "asset_prefix");
+		if (prefix == null) {
+			String appPrefix = Config.get("application", "prefix");
+			prefix = (appPrefix != null && !appPrefix.equals("/") ? appPrefix : "") + "/assets";
+		}
+		String version = String.valueOf(Config.getVersionNumber());
+		Map<String, String> files = new HashMap<String, String>();
+		String path = Config.get("controller", "asset_manifest");
+		if (path != null) {
+			try {
+				File f = new File(path);
+				InputStream in = f.isFile() ? new FileInputStream(f) : AssetManifest.class.getClassLoader().getResourceAsStream(path);
+				if (in == null) {
+					Logger.warn("Asset manifest not found: {}", path);
+				} else {
+					try {
+						JSONObject json = new JSONObject(new String(readFully(in), "UTF-8"));
+						Iterator<?> keys = json.keys();
+						while (keys.hasNext()) {
+							String key = (String)keys.next();
+							files.put(key, json.getString(key));
+						}
+					} finally {
+						in.close();
+					}
+					Logger.info("Loaded {} assets from {}", files.size(), path);
+				}
+			} catch (Exception e) {
+				Logger.error("Could not load asset manifest " + path, e);
+			}
+		}
+		return new AssetManifest(files, prefix, version);
+	}
+
+	/**
+	 * Fingerprint the assets of a directory.
+	 * Each file is copied to the output directory both under its own name and under a name
+	 * containing a hash of its content, text files also get a gzipped <code>.gz</code> variant
+	 * when it is smaller. The manifest is written to <code>manifest.json</code> in the output directory.
+	 * @param source {@link File} - Source directory
+	 * @param output {@link File} - Output directory, typically an asset root
+	 * @return {@link Map}<{@link String},{@link String}> Logical names to fingerprinted names
+	 * @throws IOException
+	 */
+	public static Map<String, String> build(File source, File output) throws IOException {
+		if (!source.isDirectory()) {
+			throw new IOException("Not a directory: " + source);
+		} else if (!output.isDirectory() && !output.mkdirs()) {
+			throw new IOException("Cannot create " + output);
+		}
+		Map<String, String> files = new TreeMap<String, String>();
+		build(source, "", output, files);
+		OutputStream out = new FileOutputStream(new File(output, FILE_NAME));
+		try {
+			JsonWriter json = new JsonWriter(out);
+			json.value(files);
+			json.flush();
+		} finally {
+			out.close();
+		}
+		return files;
+	}
+
+	private static void build(File dir, String path, File output, Map<String, String> files) throws IOException {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			throw new IOException("Cannot list " + dir);
+		}
+		for (File f:children) {
+			String name = f.getName();
+			if (name.startsWith(".") || name.endsWith(".gz") || (path.length() == 0 && name.equals(FILE_NAME))) {
+				continue;
+			} else if (f.isDirectory()) {
+				build(f, path + name + "/", output, files);
+				continue;
+			}
+			byte[] data = readFully(new FileInputStream(f));
+			int dot = name.lastIndexOf('.');
+			String ext = dot > 0 ? name.substring(dot + 1).toLowerCase() : "";
+			String hashed = dot > 0 ? name.substring(0, dot) + "-" + hash(data) + name.substring(dot) : name + "-" + hash(data);
+			File target = new File(output, path);
+			if (!target.isDirectory() && !target.mkdirs()) {
+				throw new IOException("Cannot create " + target);
+			}
+			byte[] gzipped = isCompressible(ext) && data.length >= minGzipSize ? gzip(data) : null;
+			for (String n:new String[] { name, hashed }) {
+				write(new File(target, n), data);
+				File gz = new File(target, n + ".gz");
+				if (gzipped != null && gzipped.length < data.length) {
+					write(gz, gzipped);
+				} else if (gz.exists() && !gz.delete()) {
+					throw new IOException("Cannot delete stale " + gz);
+				}
+			}
+			files.put(path + name, path + hashed);
+		}
+	}
+
+	private static boolean isCompressible(String ext) {
+		for (String e:compressible) {
+			if (e.equals(ext)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String hash(byte[] data) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("MD5").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		char[] hex = new char[hashLength];
+		for (int i=0;i<hashLength;i++) {
+			int b = digest[i / 2] >> (i % 2 == 0 ? 4 : 0);
+			hex[i] = HEX[b & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+		GZIPOutputStream out = new GZIPOutputStream(bytes) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		out.write(data);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Build step: <code>java com.labs.jmvc.AssetManifest &lt;source dir&gt; &lt;output dir&gt;</code>
+	 * @param args {@link String}[] - Source and output directories
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: AssetManifest <source dir> <output dir>");
+			System.exit(1);
+		}
+		Map<String, String> files = build(new File(args[0]), new File(args[1]));
+		System.out.println("Fingerprinted " + files.size() + " assets into " + args[1]);
+	}
+
+	/**
+	 * Loads the manifest on first use, so the build step runs without a configuration
+	 */
+	private static class Holder {
+		static final AssetManifest instance = load();
+	}
+
+}
@@ -0,0 +1,32 @@
+package com.labs.jmvc;
+
+/**
+ * Request parameter that could not be converted to the type it is bound to.
+ * Answered with 400 Bad Request.
+ * @author Benjamin Dezile
+ */
+public class BindException extends IllegalArgumentException {
+
+	private static final long serialVersionUID = 6109735462170485021L;
+
+	private final String parameter;
+
+	/**
+	 * Create a new binding error
+	 * @param parameter {@link String} - Parameter name, in bracket notation
+	 * @param message {@link String} - What was expected
+	 */
+	public BindException(String parameter, String message) {
+		super("Invalid parameter " + parameter + ": " + message);
+		this.parameter = parameter;
+	}
+
+	/**
+	 * Return the name of the invalid parameter
+	 * @return {@link String}
+	 */
+	public String getParameter() {
+		return parameter;
+	}
+
+}
@@ -0,0 +1,397 @@
+package com.labs.jmvc;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Fills objects from the request {@link ParameterTree}.
+ * Each class gets a binder once, listing its public setters and public fields with a converter
+ * chosen for their declared type, so binding a request does no reflective lookup.
+ * Supported types are strings, primitives and their wrappers, {@link BigDecimal}, {@link BigInteger},
+ * enums, arrays, {@link List}, {@link java.util.Set} and {@link Map} (with string keys) of those,
+ * and nested objects with a no-argument constructor.
+ * @author Benjamin Dezile
+ */
+final class Binder<T> {
+
+	private static final ConcurrentMap<Class<?>, Binder<?>> binders = new ConcurrentHashMap<Class<?>, Binder<?>>();
+
+	private final Class<T> type;
+	private final Constructor<T> constructor;
+	private final Property[] properties;
+
+	private Binder(Class<T> type) {
+		this.type = type;
+		try {
+			this.constructor = type.getDeclaredConstructor();
+			this.constructor.setAccessible(true);
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException("Cannot bind " + type.getName() + ": no constructor without arguments");
+		}
+		Map<String, Property> props = new LinkedHashMap<String, Property>();
+		for (Field f:type.getFields()) {
+			int mod = f.getModifiers();
+			if (!Modifier.isStatic(mod) && !Modifier.isFinal(mod)) {
+				props.put(f.getName(), new Property(f.getName(), f, null, converter(f.getType(), f.getGenericType())));
+			}
+		}
+		for (Method m:type.getMethods()) {
+			String n = m.getName();
+			if (n.length() > 3 && n.startsWith("set") && m.getParameterTypes().length == 1 && !Modifier.isStatic(m.getModifiers())) {
+				String name = Character.toLowerCase(n.charAt(3)) + n.substring(4);
+				m.setAccessible(true);
+				props.put(name, new Property(name, null, m, converter(m.getParameterTypes()[0], m.getGenericParameterTypes()[0])));
+			}
+		}
+		this.properties = props.values().toArray(new Property[props.size()]);
+	}
+
+	/**
+	 * Get the binder of a class
+	 * @param type {@link Class} - Class to bind
+	 * @return {@link Binder}
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Binder<T> forClass(Class<T> type) {
+		Binder<T> b = (Binder<T>)binders.get(type);
+		if (b == null) {
+			b = new Binder<T>(type);
+			Binder<T> existing = (Binder<T>)binders.putIfAbsent(type, b);
+			if (existing != null) {
+				b = existing;
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Create an object from a parameter group
+	 * @param group {@link Map}<{@link String},{@link Object}> - Parameters
+	 * @param prefix {@link String} - Name of the group, null for the root
+	 * @param request {@link HttpServletRequest} - Request, to read repeated parameters at the root, or null
+	 * @return T
+	 * @throws BindException If a parameter cannot be converted
+	 */
+	T bind(Map<String, Object> group, String prefix, HttpServletRequest request) {
+		T target;
+		try {
+			target = constructor.newInstance();
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException("Could not create " + type.getName(), e.getTargetException());
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not create " + type.getName(), e);
+		}
+		for (Property p:properties) {
+			Object node = group.get(p.name);
+			if (node == null) {
+				continue;
+			}
+			String path = prefix == null ? p.name : prefix + "[" + p.name + "]";
+			if (prefix == null && request != null && node instanceof String && p.converter instanceof MultiConverter) {
+				/* name=a&name=b */
+				node = request.getParameterValues(p.name);
+			}
+			p.set(target, p.converter.convert(node, path), path);
+		}
+		return target;
+	}
+
+	/**
+	 * Choose the converter of a declared type
+	 */
+	private static Converter converter(Class<?> raw, Type generic) {
+		if (raw.isArray()) {
+			return new ArrayConverter(raw.getComponentType(), converter(raw.getComponentType(), raw.getComponentType()));
+		} else if (Collection.class.isAssignableFrom(raw)) {
+			Class<?> element = typeArgument(generic, 0);
+			return new CollectionConverter(raw, converter(element, element));
+		} else if (Map.class.isAssignableFrom(raw)) {
+			Class<?> value = typeArgument(generic, 1);
+			if (raw.isAssignableFrom(LinkedHashMap.class) && typeArgument(generic, 0) == String.class) {
+				return new MapConverter(converter(value, value));
+			}
+			throw new IllegalArgumentException("Cannot bind " + generic + ": only maps with string keys are supported");
+		} else if (raw == String.class || raw == Object.class || raw.isPrimitive() || Number.class.isAssignableFrom(raw) ||
+			raw == Boolean.class || raw == Character.class || raw.isEnum()) {
+			return new ScalarConverter(raw);
+		}
+		return new ObjectConverter(raw);
+	}
+
+	/**
+	 * Return a type argument, {@link String} if unknown
+	 */
+	private static Class<?> typeArgument(Type generic, int i) {
+		if (generic instanceof ParameterizedType) {
+			Type[] args = ((ParameterizedType)generic).getActualTypeArguments();
+			if (i < args.length) {
+				Type t = args[i];
+				if (t instanceof ParameterizedType) {
+					t = ((ParameterizedType)t).getRawType();
+				}
+				if (t instanceof Class) {
+					return (Class<?>)t;
+				}
+			}
+		}
+		return String.class;
+	}
+
+	/**
+	 * Return the elements of a node in index order
+	 */
+	private static List<Object> elements(Object node) {
+		if (node instanceof ParameterTree.Group) {
+			return ((ParameterTree.Group)node).elements();
+		}
+		List<Object> list = new ArrayList<Object>();
+		if (node instanceof String[]) {
+			for (String s:(String[])node) {
+				list.add(s);
+			}
+		} else {
+			list.add(node);
+		}
+		return list;
+	}
+
+	/**
+	 * Bound property
+	 */
+	private static final class Property {
+		private final String name;
+		private final Field field;
+		private final Method setter;
+		private final Converter converter;
+		private final boolean primitive;
+
+		Property(String name, Field field, Method setter, Converter converter) {
+			this.name = name;
+			this.field = field;
+			this.setter = setter;
+			this.converter = converter;
+			this.primitive = (field != null ? field.getType() : setter.getParameterTypes()[0]).isPrimitive();
+		}
+
+		void set(Object target, Object value, String path) {
+			if (value == null && primitive) {
+				return;
+			}
+			try {
+				if (field != null) {
+					field.set(target, value);
+				} else {
+					setter.invoke(target, value);
+				}
+			} catch (InvocationTargetException e) {
+				Throwable t = e.getTargetException();
+				if (t instanceof IllegalArgumentException) {
+					/* Validation in a setter */
+					throw new BindException(path, t.getMessage());
+				}
+				throw new IllegalStateException("Could not set " + name, t);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException("Could not set " + name, e);
+			}
+		}
+	}
+
+	/**
+	 * Conversion of a tree node
+	 */
+	private static abstract class Converter {
+		/**
+		 * @param node {@link Object} - {@link String}, {@link String}[] or {@link ParameterTree.Group}
+		 * @param path {@link String} - Parameter name, for errors
+		 * @return {@link Object} Converted value or null
+		 */
+		abstract Object convert(Object node, String path);
+	}
+
+	/**
+	 * Converters accepting several values
+	 */
+	private static abstract class MultiConverter extends Converter {}
+
+	private static final class ScalarConverter extends Converter {
+		private final Class<?> type;
+
+		ScalarConverter(Class<?> type) {
+			this.type = type;
+		}
+
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		@Override
+		Object convert(Object node, String path) {
+			if (node instanceof String[]) {
+				String[] values = (String[])node;
+				node = values.length > 0 ? values[0] : null;
+			}
+			if (!(node instanceof String)) {
+				throw new BindException(path, "expected a single value");
+			}
+			String s = (String)node;
+			if (type == String.class || type == Object.class) {
+				return s;
+			}
+			s = s.trim();
+			if (s.length() == 0) {
+				return null;
+			}
+			try {
+				if (type == int.class || type == Integer.class) {
+					return Integer.valueOf(s);
+				} else if (type == long.class || type == Long.class) {
+					return Long.valueOf(s);
+				} else if (type == double.class || type == Double.class) {
+					return Double.valueOf(s);
+				} else if (type == boolean.class || type == Boolean.class) {
+					return toBoolean(s, path);
+				} else if (type == float.class || type == Float.class) {
+					return Float.valueOf(s);
+				} else if (type == short.class || type == Short.class) {
+					return Short.valueOf(s);
+				} else if (type == byte.class || type == Byte.class) {
+					return Byte.valueOf(s);
+				} else if (type == char.class || type == Character.class) {
+					if (s.length() != 1) {
+						throw new BindException(path, "expected a single character");
+					}
+					return s.charAt(0);
+				} else if (type == BigDecimal.class) {
+					return new BigDecimal(s);
+				} else if (type == BigInteger.class) {
+					return new BigInteger(s);
+				} else if (type.isEnum()) {
+					try {
+						return Enum.valueOf((Class<Enum>)type, s);
+					} catch (IllegalArgumentException e) {
+						throw new BindException(path, "expected one of " + Arrays.toString(type.getEnumConstants()));
+					}
+				}
+			} catch (NumberFormatException e) {
+				throw new BindException(path, "expected " + (type.isPrimitive() ? type.getName() : type.getSimpleName()));
+			}
+			throw new BindException(path, "unsupported type " + type.getName());
+		}
+
+		private static Boolean toBoolean(String s, String path) {
+			if ("true".equalsIgnoreCase(s) || "on".equalsIgnoreCase(s) || "yes".equalsIgnoreCase(s) || "1".equals(s)) {
+				return Boolean.TRUE;
+			} else if ("false".equalsIgnoreCase(s) || "off".equalsIgnoreCase(s) || "no".equalsIgnoreCase(s) || "0".equals(s)) {
+				return Boolean.FALSE;
+			}
+			throw new BindException(path, "expected a boolean");
+		}
+	}
+
+	private static final class ArrayConverter extends MultiConverter {
+		private final Class<?> component;
+		private final Converter element;
+
+		ArrayConverter(Class<?> component, Converter element) {
+			this.component = component;
+			this.element = element;
+		}
+
+		@Override
+		Object convert(Object node, String path) {
+			List<Object> nodes = elements(node);
+			Object array = Array.newInstance(component, nodes.size());
+			for (int i=0;i<nodes.size();i++) {
+				Object value = element.convert(nodes.get(i), path + "[" + i + "]");
+				if (value != null || !component.isPrimitive()) {
+					Array.set(array, i, value);
+				}
+			}
+			return array;
+		}
+	}
+
+	private static final class CollectionConverter extends MultiConverter {
+		private final boolean set;
+		private final Converter element;
+
+		CollectionConverter(Class<?> type, Converter element) {
+			if (type.isAssignableFrom(ArrayList.class)) {
+				this.set = false;
+			} else if (type.isAssignableFrom(LinkedHashSet.class)) {
+				this.set = true;
+			} else {
+				throw new IllegalArgumentException("Cannot bind " + type.getName() + ": use List, Set or Collection");
+			}
+			this.element = element;
+		}
+
+		@Override
+		Object convert(Object node, String path) {
+			List<Object> nodes = elements(node);
+			Collection<Object> c = set ? new LinkedHashSet<Object>(nodes.size() * 2) : new ArrayList<Object>(nodes.size());
+			for (int i=0;i<nodes.size();i++) {
+				c.add(element.convert(nodes.get(i), path + "[" + i + "]"));
+			}
+			return c;
+		}
+	}
+
+	private static final class MapConverter extends Converter {
+		private final Converter value;
+
+		MapConverter(Converter value) {
+			this.value = value;
+		}
+
+		@Override
+		Object convert(Object node, String path) {
+			if (!(node instanceof ParameterTree.Group)) {
+				throw new BindException(path, "expected " + path + "[key]");
+			}
+			ParameterTree.Group g = (ParameterTree.Group)node;
+			Map<String, Object> map = new LinkedHashMap<String, Object>(g.size() * 2);
+			for (Map.Entry<String, Object> e:g.entrySet()) {
+				map.put(e.getKey(), value.convert(e.getValue(), path + "[" + e.getKey() + "]"));
+			}
+			return map;
+		}
+	}
+
+	private static final class ObjectConverter extends Converter {
+		private final Class<?> type;
+		private volatile Binder<?> binder;				// Resolved on first use, types may be recursive
+
+		ObjectConverter(Class<?> type) {
+			this.type = type;
+		}
+
+		@Override
+		Object convert(Object node, String path) {
+			if (!(node instanceof ParameterTree.Group)) {
+				throw new BindException(path, "expected " + path + "[field]");
+			}
+			Binder<?> b = binder;
+			if (b == null) {
+				binder = b = forClass(type);
+			}
+			return b.bind((ParameterTree.Group)node, path, null);
+		}
+	}
+
+}
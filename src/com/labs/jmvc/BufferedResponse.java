@@ -0,0 +1,382 @@
+package com.labs.jmvc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.ServletResponseWrapper;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response keeping the encoded body in memory so it can be reused once rendered.
+ * Past the size limit, buffered output is sent and the rest passes through.
+ * Output is compressed when the client accepts it and the content type allows it.
+ * @author Benjamin Dezile
+ */
+class BufferedResponse extends HttpServletResponseWrapper {
+
+	private final int limit;
+	private byte[] buf = new byte[1024];
+	private int count = 0;
+	private boolean overflowed = false;		// Limit reached, output goes straight to the client
+	private boolean setsCookies = false;
+	private boolean handled = false;			// Error or redirect sent through the container
+	private int status = SC_OK;
+	private ServletOutputStream stream;
+	private PrintWriter writer;
+	private String acceptedEncoding;			// Encoding negotiated with the client
+	private DeflaterOutputStream compressor;	// Compresses pass-through output
+	private String etag;						// ETag set before the body, for the identity encoding
+
+	/**
+	 * Create a new buffered response
+	 * @param response {@link HttpServletResponse} - Wrapped response
+	 * @param limit int - Maximum number of bytes to buffer
+	 */
+	BufferedResponse(HttpServletResponse response, int limit) {
+		super(response);
+		this.limit = limit;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (writer != null) {
+			throw new IllegalStateException("getWriter() has already been called");
+		}
+		return getStream();
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			if (stream != null) {
+				throw new IllegalStateException("getOutputStream() has already been called");
+			}
+			writer = new PrintWriter(new OutputStreamWriter(getStream(), getCharacterEncoding()));
+		}
+		return writer;
+	}
+
+	private ServletOutputStream getStream() {
+		if (stream == null) {
+			stream = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					if (overflowed || count == limit) {
+						passThrough().write(b);
+						return;
+					}
+					ensureCapacity(count + 1);
+					buf[count++] = (byte)b;
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if (overflowed || count + len > limit) {
+						passThrough().write(b, off, len);
+						return;
+					}
+					ensureCapacity(count + len);
+					System.arraycopy(b, off, buf, count, len);
+					count += len;
+				}
+				@Override
+				public void flush() throws IOException {
+					if (overflowed) {
+						passThrough().flush();
+					}
+				}
+			};
+		}
+		return stream;
+	}
+
+	/**
+	 * Switch to pass-through, sending what has been buffered so far
+	 * @return {@link ServletOutputStream} Client output
+	 * @throws IOException
+	 */
+	private OutputStream passThrough() throws IOException {
+		if (!overflowed) {
+			overflowed = true;
+			if (acceptedEncoding != null && Compression.isCompressible(getContentType())) {
+				setCompressionHeaders(acceptedEncoding);
+				if (etag != null) {
+					/* Each encoding has its own ETag */
+					super.setHeader("ETag", Compression.etag(etag, acceptedEncoding));
+				}
+				compressor = Compression.wrap(super.getOutputStream(), acceptedEncoding);
+			}
+			OutputStream out = compressor != null ? compressor : super.getOutputStream();
+			out.write(buf, 0, count);
+			buf = null;
+		}
+		return compressor != null ? compressor : super.getOutputStream();
+	}
+	
+	/**
+	 * Send output straight to the client from now on, uncompressed, for streams that cannot wait
+	 * @throws IOException
+	 */
+	void unbuffer() throws IOException {
+		if (!overflowed) {
+			acceptedEncoding = null;
+			passThrough();
+		}
+	}
+
+	/**
+	 * Unbuffer the buffered response wrapped by a response, if any
+	 * @param response {@link ServletResponse} - Response, possibly wrapped
+	 * @throws IOException
+	 */
+	static void unbuffer(ServletResponse response) throws IOException {
+		while (response != null) {
+			if (response instanceof BufferedResponse) {
+				((BufferedResponse)response).unbuffer();
+				return;
+			}
+			response = response instanceof ServletResponseWrapper ? ((ServletResponseWrapper)response).getResponse() : null;
+		}
+	}
+
+	/**
+	 * Set the encoding accepted by the client
+	 * @param encoding {@link String} - gzip, deflate or null
+	 */
+	void setAcceptedEncoding(String encoding) {
+		this.acceptedEncoding = encoding;
+	}
+	
+	/**
+	 * Return the encoding the buffered body will be sent with
+	 * @return {@link String} Null if sent as is
+	 */
+	String getContentEncoding() {
+		if (acceptedEncoding != null && isComplete() && count >= Compression.minSize && Compression.isCompressible(getContentType())) {
+			return acceptedEncoding;
+		}
+		return null;
+	}
+	
+	private void setCompressionHeaders(String encoding) {
+		super.addHeader("Vary", "Accept-Encoding");
+		if (encoding != null) {
+			super.setHeader("Content-Encoding", encoding);
+		}
+	}
+
+	private void ensureCapacity(int size) {
+		if (size > buf.length) {
+			buf = Arrays.copyOf(buf, Math.min(Math.max(size, buf.length * 2), limit));
+		}
+	}
+
+	/**
+	 * Flush pending writer output into the buffer
+	 */
+	private void flushWriter() {
+		if (writer != null) {
+			writer.flush();
+		}
+	}
+
+	@Override
+	public void flushBuffer() throws IOException {
+		flushWriter();
+		if (overflowed) {
+			super.flushBuffer();
+		}
+	}
+
+	@Override
+	public boolean isCommitted() {
+		return overflowed && super.isCommitted();
+	}
+
+	@Override
+	public void resetBuffer() {
+		if (!overflowed) {
+			count = 0;
+		}
+		super.resetBuffer();
+	}
+
+	@Override
+	public void reset() {
+		if (!overflowed) {
+			count = 0;
+			status = SC_OK;
+			setsCookies = false;
+			handled = false;
+			etag = null;
+		}
+		super.reset();
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		if (overflowed) {
+			super.setContentLength(len);
+		}
+	}
+
+	@Override
+	public void setStatus(int sc) {
+		status = sc;
+		super.setStatus(sc);
+	}
+
+	@Override
+	@SuppressWarnings("deprecation")
+	public void setStatus(int sc, String sm) {
+		status = sc;
+		super.setStatus(sc, sm);
+	}
+
+	@Override
+	public void sendError(int sc) throws IOException {
+		status = sc;
+		handled = true;
+		super.sendError(sc);
+	}
+
+	@Override
+	public void sendError(int sc, String msg) throws IOException {
+		status = sc;
+		handled = true;
+		super.sendError(sc, msg);
+	}
+
+	@Override
+	public void sendRedirect(String location) throws IOException {
+		status = SC_FOUND;
+		handled = true;
+		super.sendRedirect(location);
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+		setsCookies = true;
+		super.addCookie(cookie);
+	}
+
+	@Override
+	public void addHeader(String name, String value) {
+		if ("Set-Cookie".equalsIgnoreCase(name)) {
+			setsCookies = true;
+		}
+		super.addHeader(name, value);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		if ("Set-Cookie".equalsIgnoreCase(name)) {
+			setsCookies = true;
+		} else if ("ETag".equalsIgnoreCase(name)) {
+			etag = value;
+		}
+		super.setHeader(name, value);
+	}
+
+	/**
+	 * Return whether the whole body is buffered
+	 * @return boolean
+	 */
+	boolean isComplete() {
+		flushWriter();
+		return !overflowed;
+	}
+
+	/**
+	 * Return whether a complete successful body is buffered
+	 * @return boolean
+	 */
+	boolean isOk() {
+		return isComplete() && status == SC_OK && !handled;
+	}
+
+	/**
+	 * Return whether the response can be reused for other clients
+	 * @return boolean
+	 */
+	boolean isReusable() {
+		return isOk() && !setsCookies;
+	}
+
+	/**
+	 * Return the status code
+	 * @return int
+	 */
+	int getStatus() {
+		return status;
+	}
+
+	/**
+	 * Return the buffered body, only valid while {@link #isComplete()}
+	 * @return byte[] Buffer, the body is the first {@link #getLength()} bytes
+	 */
+	byte[] getBuffer() {
+		flushWriter();
+		return buf;
+	}
+
+	/**
+	 * Return the buffered body length
+	 * @return int
+	 */
+	int getLength() {
+		flushWriter();
+		return count;
+	}
+
+	/**
+	 * Copy of the buffered body
+	 * @return byte[]
+	 */
+	byte[] toByteArray() {
+		flushWriter();
+		return Arrays.copyOf(buf, count);
+	}
+
+	/**
+	 * Send the buffered body to the client
+	 * @throws IOException
+	 */
+	void commit() throws IOException {
+		flushWriter();
+		if (overflowed) {
+			if (compressor != null) {
+				compressor.finish();
+			}
+			super.flushBuffer();
+			return;
+		}
+		if (handled || super.isCommitted()) {
+			/* Error page or redirect already handled by the container */
+			return;
+		}
+		HttpServletResponse response = (HttpServletResponse)getResponse();
+		String encoding = getContentEncoding();
+		if (Compression.isCompressible(getContentType())) {
+			setCompressionHeaders(encoding);
+		}
+		ServletOutputStream out = response.getOutputStream();
+		if (encoding != null) {
+			Compression.Codec codec = Compression.compress(buf, 0, count, encoding);
+			response.setContentLength(codec.getLength());
+			out.write(codec.getBuffer(), 0, codec.getLength());
+			codec.release();
+		} else {
+			response.setContentLength(count);
+			out.write(buf, 0, count);
+		}
+		out.flush();
+	}
+
+}
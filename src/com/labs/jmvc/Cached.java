@@ -0,0 +1,39 @@
+package com.labs.jmvc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Cache the encoded response of an action.
+ * The cache key is the action, the request path and the listed parameters, headers and cookies.
+ * Only successful GET responses that do not set cookies are cached, and only the body
+ * and content type are replayed on a hit.
+ * @author Benjamin Dezile
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cached {
+
+	/**
+	 * Time to live in seconds
+	 */
+	int ttl();
+
+	/**
+	 * Request parameters that are part of the key
+	 */
+	String[] params() default {};
+
+	/**
+	 * Request headers that are part of the key
+	 */
+	String[] headers() default {};
+
+	/**
+	 * Cookies that are part of the key
+	 */
+	String[] cookies() default {};
+
+}
@@ -0,0 +1,253 @@
+package com.labs.jmvc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Response compression, negotiated from Accept-Encoding.
+ * Configured from the controller config section:
+ * <code>compression</code> (on by default), <code>compression_min_size</code> (bytes, 1024 by default)
+ * and <code>compression_types</code> (content types to compress).
+ * Deflaters and output buffers are kept per thread and reused.
+ * @author Benjamin Dezile
+ */
+final class Compression {
+
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+	private static final String[] defaultTypes = {
+		"text/html", "text/plain", "text/css", "text/javascript", "text/xml",
+		"application/json", "application/javascript", "application/x-javascript", "application/xml"
+	};
+	private static final byte[] gzipHeader = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+	private static final int maxRetainedBuffer = 1024 * 1024;		// Bigger per-thread buffers are dropped after use
+
+	static final boolean enabled = !Boolean.FALSE.equals(Config.getBool("controller", "compression"));
+	static final int minSize = getMinSize();
+	private static final String[] types = getTypes();
+
+	private static final ThreadLocal<Codec> codecs = new ThreadLocal<Codec>() {
+		@Override
+		protected Codec initialValue() {
+			return new Codec();
+		}
+	};
+
+	private Compression() {}
+
+	/**
+	 * Pick the encoding accepted by the client
+	 * @param request {@link HttpServletRequest} - Request
+	 * @return {@link String} gzip, deflate or null
+	 */
+	static String negotiate(HttpServletRequest request) {
+		if (!enabled) {
+			return null;
+		}
+		String accept = request.getHeader("Accept-Encoding");
+		if (accept == null) {
+			return null;
+		}
+		boolean gzip = false, deflate = false, any = false;
+		int start = 0, l = accept.length();
+		while (start < l) {
+			int end = accept.indexOf(',', start);
+			if (end < 0) {
+				end = l;
+			}
+			int semi = accept.indexOf(';', start);
+			int nameEnd = semi >= 0 && semi < end ? semi : end;
+			if (!isZeroQuality(accept, nameEnd, end)) {
+				String name = accept.substring(start, nameEnd).trim();
+				if (GZIP.equalsIgnoreCase(name) || "x-gzip".equalsIgnoreCase(name)) {
+					gzip = true;
+				} else if (DEFLATE.equalsIgnoreCase(name)) {
+					deflate = true;
+				} else if ("*".equals(name)) {
+					any = true;
+				}
+			}
+			start = end + 1;
+		}
+		return gzip || any ? GZIP : (deflate ? DEFLATE : null);
+	}
+
+	/**
+	 * Return whether the parameters of an Accept-Encoding item set q=0
+	 */
+	private static boolean isZeroQuality(String accept, int from, int to) {
+		int q = accept.indexOf("q=", from);
+		if (q < 0 || q >= to) {
+			return false;
+		}
+		try {
+			return Float.parseFloat(accept.substring(q + 2, to).trim()) <= 0;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return whether a content type is on the compression allowlist
+	 * @param contentType {@link String} - Content type, parameters are ignored
+	 * @return boolean
+	 */
+	static boolean isCompressible(String contentType) {
+		if (!enabled || contentType == null) {
+			return false;
+		}
+		for (String type:types) {
+			if (contentType.regionMatches(true, 0, type, 0, type.length()) &&
+				(contentType.length() == type.length() || contentType.charAt(type.length()) == ';' || contentType.charAt(type.length()) == ' ')) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Return the ETag of a compressed variant
+	 * @param etag {@link String} - ETag of the identity body or null
+	 * @param encoding {@link String} - Content encoding or null
+	 * @return {@link String}
+	 */
+	static String etag(String etag, String encoding) {
+		if (etag == null || encoding == null || !etag.endsWith("\"")) {
+			return etag;
+		}
+		return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+	}
+
+	/**
+	 * Compress into the per-thread buffer, valid until the next call on this thread
+	 * @param data byte[] - Data
+	 * @param off int - Offset
+	 * @param len int - Length
+	 * @param encoding {@link String} - gzip or deflate
+	 * @return {@link Codec} Holding the compressed bytes
+	 */
+	static Codec compress(byte[] data, int off, int len, String encoding) {
+		Codec codec = codecs.get();
+		codec.compress(data, off, len, GZIP.equals(encoding));
+		return codec;
+	}
+
+	/**
+	 * Compress into a new array
+	 * @param data byte[] - Data
+	 * @param off int - Offset
+	 * @param len int - Length
+	 * @param encoding {@link String} - gzip or deflate
+	 * @return byte[]
+	 */
+	static byte[] toByteArray(byte[] data, int off, int len, String encoding) {
+		Codec codec = compress(data, off, len, encoding);
+		byte[] out = Arrays.copyOf(codec.buf, codec.length);
+		codec.release();
+		return out;
+	}
+
+	/**
+	 * Wrap a stream to compress everything written to it
+	 * @param out {@link OutputStream} - Destination
+	 * @param encoding {@link String} - gzip or deflate
+	 * @return {@link DeflaterOutputStream} To be finished once done
+	 * @throws IOException
+	 */
+	static DeflaterOutputStream wrap(OutputStream out, String encoding) throws IOException {
+		return GZIP.equals(encoding) ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out, new Deflater(), 8192);
+	}
+
+	private static int getMinSize() {
+		Integer size = Config.getInt("controller", "compression_min_size");
+		return size != null && size >= 0 ? size : 1024;
+	}
+
+	private static String[] getTypes() {
+		String[] t = Config.getArray("controller", "compression_types");
+		return t != null && t.length > 0 ? t : defaultTypes;
+	}
+
+	/**
+	 * Per-thread deflaters and output buffer
+	 * @author Benjamin Dezile
+	 */
+	static final class Codec {
+
+		private final Deflater raw = new Deflater(Deflater.DEFAULT_COMPRESSION, true);	// gzip body
+		private final Deflater zlib = new Deflater(Deflater.DEFAULT_COMPRESSION);
+		private final CRC32 crc = new CRC32();
+		private byte[] buf = new byte[8192];
+		private int length;
+
+		/**
+		 * Return the buffer holding the compressed bytes
+		 * @return byte[]
+		 */
+		byte[] getBuffer() {
+			return buf;
+		}
+
+		/**
+		 * Return the number of compressed bytes
+		 * @return int
+		 */
+		int getLength() {
+			return length;
+		}
+
+		/**
+		 * Drop an oversized buffer once its content has been used
+		 */
+		void release() {
+			if (buf.length > maxRetainedBuffer) {
+				buf = new byte[8192];
+			}
+		}
+
+		private void compress(byte[] data, int off, int len, boolean gzip) {
+			length = 0;
+			Deflater d = gzip ? raw : zlib;
+			if (gzip) {
+				ensureCapacity(gzipHeader.length);
+				System.arraycopy(gzipHeader, 0, buf, 0, gzipHeader.length);
+				length = gzipHeader.length;
+				crc.reset();
+				crc.update(data, off, len);
+			}
+			d.reset();
+			d.setInput(data, off, len);
+			d.finish();
+			while (!d.finished()) {
+				ensureCapacity(length + 1024);
+				length += d.deflate(buf, length, buf.length - length);
+			}
+			if (gzip) {
+				ensureCapacity(length + 8);
+				writeInt((int)crc.getValue());
+				writeInt(len);
+			}
+		}
+
+		private void writeInt(int v) {
+			buf[length++] = (byte)v;
+			buf[length++] = (byte)(v >> 8);
+			buf[length++] = (byte)(v >> 16);
+			buf[length++] = (byte)(v >> 24);
+		}
+
+		private void ensureCapacity(int size) {
+			if (size > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(size, buf.length * 2));
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package com.labs.jmvc;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Conditional request helpers (ETag / Last-Modified).
+ * Responses of actions without a version hook get an ETag hashed from their body
+ * when <code>controller.auto_etag</code> is true. This buffers each of them in memory,
+ * up to <code>cache_max_entry</code>, until the action is done.
+ * @author Benjamin Dezile
+ */
+final class Conditional {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	static final boolean autoEtag = Boolean.TRUE.equals(Config.getBool("controller", "auto_etag"));	// Hash responses without a version hook
+
+	private Conditional() {}
+
+	/**
+	 * Compute a strong ETag from an encoded body
+	 * @param body byte[] - Buffer
+	 * @param length int - Body length
+	 * @return {@link String} Quoted ETag
+	 */
+	static String etag(byte[] body, int length) {
+		byte[] digest;
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			md.update(body, 0, length);
+			digest = md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		char[] etag = new char[digest.length * 2 + 2];
+		etag[0] = '"';
+		for (int i=0;i<digest.length;i++) {
+			etag[2*i+1] = HEX[(digest[i] >> 4) & 0xf];
+			etag[2*i+2] = HEX[digest[i] & 0xf];
+		}
+		etag[etag.length - 1] = '"';
+		return new String(etag);
+	}
+
+	/**
+	 * Turn the value returned by a version hook into an ETag or a timestamp
+	 * @param version {@link Object} - Version: a {@link Date} or a {@link Number} for a timestamp, anything else for an ETag
+	 * @return {@link Object} Quoted ETag {@link String}, {@link Long} timestamp or null
+	 */
+	static Object fromVersion(Object version) {
+		if (version == null) {
+			return null;
+		} else if (version instanceof Date) {
+			return ((Date)version).getTime();
+		} else if (version instanceof Number) {
+			return ((Number)version).longValue();
+		}
+		String v = version.toString();
+		if (v.startsWith("\"") || v.startsWith("W/\"")) {
+			return v;
+		}
+		return "\"" + v + "\"";
+	}
+
+	/**
+	 * Return whether the client already has the current version
+	 * @param request {@link HttpServletRequest} - Request
+	 * @param etag {@link String} - Current ETag or null
+	 * @param lastModified long - Last modification time or -1
+	 * @return boolean
+	 */
+	static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			/* ETags take precedence over dates */
+			return etag != null && matches(ifNoneMatch, etag);
+		}
+		if (lastModified >= 0) {
+			long ifModifiedSince;
+			try {
+				ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * Weak comparison of an If-None-Match header with an ETag
+	 * @param header {@link String} - Header value, a list of ETags or *
+	 * @param etag {@link String} - Quoted ETag
+	 * @return boolean
+	 */
+	static boolean matches(String header, String etag) {
+		if ("*".equals(header.trim())) {
+			return true;
+		}
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		int p = -1;
+		while ((p = header.indexOf(opaque, p + 1)) >= 0) {
+			int end = p + opaque.length();
+			if (end == header.length() || header.charAt(end) == ',' || header.charAt(end) == ' ') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Set the validator headers
+	 * @param response {@link HttpServletResponse} - Response
+	 * @param etag {@link String} - ETag or null
+	 * @param lastModified long - Last modification time or -1
+	 */
+	static void setHeaders(HttpServletResponse response, String etag, long lastModified) {
+		if (etag != null) {
+			response.setHeader("ETag", etag);
+		}
+		if (lastModified >= 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+	}
+
+	/**
+	 * Answer with 304 Not Modified
+	 * @param response {@link HttpServletResponse} - Response
+	 * @param etag {@link String} - ETag or null
+	 * @param lastModified long - Last modification time or -1
+	 */
+	static void sendNotModified(HttpServletResponse response, String etag, long lastModified) {
+		setHeaders(response, etag, lastModified);
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+	}
+
+}
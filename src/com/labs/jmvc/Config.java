@@ -5,13 +5,20 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.lang.reflect.Array;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * Configuration
+ * Configuration, read from <code>config/app.conf</code>, <code>config/model.conf</code> and
+ * <code>config/env.${env}.conf</code> on the classpath.
+ * References to other values, <code>${key}</code> in the same section or <code>${section.key}</code>
+ * and <code>${section.sub.key}</code> from the top, are resolved once when the files are loaded.
+ * The result is an immutable snapshot holding every value already converted to the types it can be
+ * read as, so lookups are two hash lookups that allocate nothing and need no locking.
+ * {@link #load()} swaps in a new snapshot. The maps returned by {@link #getGlobalMap()}, {@link #getMap()}
+ * and {@link #getObject(String, String)} hold resolved strings and, for sections, maps; they are read only.
  * @author Benjamin Dezile
  */
 public class Config {
@@ -20,41 +27,61 @@ public class Config {
 	private static final String modelConfigFile = "config/model.conf";		// Application config file
 	private static final String configFile = "config/env.${env}.conf";		// Environment config file
 	private static final String indentationChar = "\t";						// Character used for indenting
-	private static Config instance = new Config();							// Instance
+	private static final int maxReferenceDepth = 32;						// Guards against circular references
+	private static volatile Config instance = read();						// Instance
 	
-	private Map<String,Object> values;										// Configuration values
-	private String env;
+	private final Map<String,Object> values;								// Resolved values: strings and read only section maps
+	private final Map<String,Entry> entries;								// Typed values
+	private final String env;
 	
-	private Config() {
-		values = new HashMap<String,Object>(0);
-		instance = this;
-		load(appConfigFile);
-		load(modelConfigFile);
-		env = Config.get("application", "env");
-		load(configFile.replace("${env}", env));
+	/**
+	 * Create a snapshot of a level of resolved values
+	 * @param resolved {@link Map}<{@link String}, {@link Object}> - Resolved strings and nested maps
+	 * @param env {@link String} - Environment
+	 */
+	@SuppressWarnings("unchecked")
+	private Config(Map<String,Object> resolved, String env) {
+		Map<String,Object> v = new HashMap<String,Object>(resolved.size() * 2);
+		Map<String,Entry> e = new HashMap<String,Entry>(resolved.size() * 2);
+		for (Map.Entry<String,Object> field:resolved.entrySet()) {
+			Object value = field.getValue();
+			Entry entry = value instanceof Map ? new Entry(new Config((Map<String,Object>)value, env)) : new Entry(value.toString());
+			v.put(field.getKey(), entry.section != null ? entry.section.values : entry.string);
+			e.put(field.getKey(), entry);
+		}
+		this.values = Collections.unmodifiableMap(v);
+		this.entries = e;
+		this.env = env;
 	}
 	
 	/**
 	 * Reload configuration
 	 */
 	public static synchronized void load() {
-		instance = new Config();
+		instance = read();
 	}
 	
 	/**
-	 * Create a new config object by wrapping aroung section values
-	 * @param sectionValues {@link Map}<{@link String}, {@link Object}> - Section values
+	 * Read the config files and resolve references
+	 * @return {@link Config}
 	 */
-	private Config(Map<String,Object> sectionValues) {
-		values = sectionValues;
+	private static Config read() {
+		Map<String,Object> raw = new HashMap<String,Object>();
+		load(appConfigFile, raw);
+		load(modelConfigFile, raw);
+		Map<String,Object> app = asMap(raw.get("application"));
+		Object value = app != null ? app.get("env") : null;
+		String env = value != null ? resolve(value.toString(), app, raw, 0) : null;
+		load(configFile.replace("${env}", String.valueOf(env)), raw);
+		return new Config(resolveAll(raw, raw), env);
 	}
 	
 	/**
 	 * Load config from file
 	 * @param filepath {@link String} - File to load from
-	 * @return {@link Config}
+	 * @param values {@link Map}<{@link String},{@link Object}> - Sections read so far
 	 */
-	private void load(String filepath) {
+	private static void load(String filepath, Map<String,Object> values) {
 		BufferedReader reader = null;
 		StringBuffer lastLine = new StringBuffer();
 		String line;
@@ -84,7 +111,7 @@ public class Config {
 	 * @return {@link Map}<{@link String},{@link Object}>
 	 * @throws IOException 
 	 */
-	private Map<String,Object> readSection(BufferedReader reader, int ind, StringBuffer lastLine) throws IOException {
+	private static Map<String,Object> readSection(BufferedReader reader, int ind, StringBuffer lastLine) throws IOException {
 		String line;
 		int p,q,r;
 		Map<String,Object> section = new HashMap<String,Object>(0);
@@ -126,78 +153,117 @@ public class Config {
 	}
 	
 	/**
-	 * Evaluate config field value (i.e. resolve references)
-	 * @param value {@link String} - Field value  
-	 * @param map {@link Map}<{@link String},{@link Object}> - Map it belongs to
+	 * Resolve the references of every value of a level
+	 * @param map {@link Map}<{@link String},{@link Object}> - Raw values of the level
+	 * @param root {@link Map}<{@link String},{@link Object}> - Raw top level
+	 * @return {@link Map}<{@link String},{@link Object}>
+	 */
+	private static Map<String,Object> resolveAll(Map<String,Object> map, Map<String,Object> root) {
+		Map<String,Object> resolved = new HashMap<String,Object>(map.size() * 2);
+		for (Map.Entry<String,Object> e:map.entrySet()) {
+			Object value = e.getValue();
+			if (value instanceof Map) {
+				resolved.put(e.getKey(), resolveAll(asMap(value), root));
+			} else if (value != null) {
+				resolved.put(e.getKey(), resolve(value.toString(), map, root, 0));
+			}
+		}
+		return resolved;
+	}
+	
+	/**
+	 * Resolve the references in a value. Unknown references are left as is.
+	 * @param value {@link String} - Field value
+	 * @param map {@link Map}<{@link String},{@link Object}> - Level it belongs to
+	 * @param root {@link Map}<{@link String},{@link Object}> - Raw top level
+	 * @param depth int - Number of references followed to get here
 	 * @return {@link String}
 	 */
-	@SuppressWarnings("unchecked")
-	private static String evaluate(String value, Map<String,Object> map) {
-		int p = -1, q = -1, oldLength = 0;
-		StringBuffer eval = new StringBuffer(value);
-		while ((p=eval.indexOf("${", p+1)) >= 0) {
-			q = eval.indexOf("}", p);
-			String var = eval.substring(p+2, q);
-			Object varValue;
-			if (var.indexOf(".") > 0) {
-				// External reference TODO: Add support for multi level reference (e.g. app.foo.bar.val)
+	private static String resolve(String value, Map<String,Object> map, Map<String,Object> root, int depth) {
+		int p = value.indexOf("${");
+		if (p < 0) {
+			return value;
+		}
+		if (depth > maxReferenceDepth) {
+			throw new IllegalArgumentException("Circular config reference in " + value);
+		}
+		StringBuilder eval = new StringBuilder(value.length() + 16);
+		int start = 0;
+		while (p >= 0) {
+			int q = value.indexOf('}', p);
+			if (q < 0) {
+				break;
+			}
+			String var = value.substring(p + 2, q);
+			Map<String,Object> scope = map;
+			String key = var;
+			if (var.indexOf('.') > 0) {
+				/* Reference from the top, e.g. app.foo.bar */
 				String[] parts = var.split("\\.");
-				if ((varValue = ((Map)instance.values.get(parts[0])).get(parts[1])) != null) {
-					varValue = varValue.toString();
+				scope = root;
+				for (int i=0;i<parts.length-1 && scope!=null;i++) {
+					scope = asMap(scope.get(parts[i]));
 				}
+				key = parts[parts.length - 1];
+			}
+			Object target = scope != null ? scope.get(key) : null;
+			eval.append(value, start, p);
+			if (target != null && !(target instanceof Map)) {
+				eval.append(resolve(target.toString(), scope, root, depth + 1));
 			} else {
-				// Same level reference
-				if ((varValue = (map != null ? map : instance.values).get(var)) != null) {
-					varValue = varValue.toString();
-				}
+				eval.append(value, p, q + 1);
 			}
-			if (((String)varValue).indexOf("${") >= 0) {
-				varValue = evaluate((String)varValue, map);
+			start = q + 1;
+			p = value.indexOf("${", start);
+		}
+		return eval.append(value, start, value.length()).toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String,Object> asMap(Object value) {
+		return value instanceof Map ? (Map<String,Object>)value : null;
+	}
+	
+	/**
+	 * Find a value
+	 * @param section {@link String} - Config section, null for the top level
+	 * @param key {@link String} - Field
+	 * @return {@link Entry} Null if not found
+	 */
+	private static Entry entry(String section, String key) {
+		Config config = instance;
+		if (section != null) {
+			Entry s = config.entries.get(section);
+			if (s == null || s.section == null) {
+				throw new IllegalArgumentException("Section not found: " + section);
 			}
-			oldLength = eval.length();
-			eval.replace(p, q+1, varValue.toString());
-			p = q - (oldLength - eval.length());
+			config = s.section;
 		}
-		return eval.toString();
+		return config.entries.get(key);
 	}
 	
 	/**
-	 * Put a new config entry
+	 * Config snapshots are immutable, change the config files and call {@link #load()} instead
 	 * @param section {@link String} - Section
 	 * @param key {@link String} - Entry key
 	 * @param val {@link Object} - Entry value
+	 * @throws UnsupportedOperationException Always
+	 * @deprecated Values can no longer be changed in place
 	 */
-	@SuppressWarnings("unchecked")
+	@Deprecated
 	protected void put(String section, String key, Object val) {
-		if (values.containsKey(section)) {
-			((Map)values.get(section)).put(key, val);
-		} else {
-			throw new IllegalArgumentException("Section not found: " + section);
-		}
+		throw new UnsupportedOperationException("Config is read only, reload it instead");
 	}
 	
 	/**
 	 * Get a config value
 	 * @param section {@link String} - Config section
 	 * @param key {@link String} - Field
-	 * @return {@link Object}
+	 * @return {@link Object} {@link String}, or read only {@link Map} for a sub section
 	 */
-	@SuppressWarnings("unchecked")
 	protected static Object getObject(String section, String key) {
-		Map<String,Object> parentMap = null;
-		Object val = null;
-		if (section == null) {
-			val = instance.values.get(key);
-		} else if (instance.values.containsKey(section)) {
-			parentMap = (Map)instance.values.get(section);
-			val = parentMap.get(key);
-		} else {
-			throw new IllegalArgumentException("Section not found: " + section);
-		}
-		if (val instanceof String) {
-			val = evaluate((String)val, parentMap);
-		}
-		return val;
+		Entry e = entry(section, key);
+		return e != null ? (e.section != null ? e.section.values : e.string) : null;
 	}
 		
 	/**
@@ -207,15 +273,8 @@ public class Config {
 	 * @return {@link String}
 	 */
 	public static String get(String section, String key) {
-		Object val = getObject(section, key);
-		if (val != null) {
-			if (!(val instanceof String)) {
-				val = val.toString().trim();
-				instance.put(section, key, val);
-			}
-			return (String)val;
-		}
-		return null;
+		Entry e = entry(section, key);
+		return e != null ? e.string : null;
 	}
 	
 	/**
@@ -223,17 +282,17 @@ public class Config {
 	 * @param section {@link String} - Config section
 	 * @param key {@link String} - Field
 	 * @return {@link Integer}
+	 * @throws NumberFormatException If the value is not an integer
 	 */
 	public static Integer getInt(String section, String key) {
-		Object val = getObject(section, key);
-		if (val != null) {
-			if (!(val instanceof Integer)) {
-				val = Integer.parseInt(val.toString().trim());
-				instance.put(section, key, val);
-			}
-			return (Integer)val;
+		Entry e = entry(section, key);
+		if (e == null || e.string == null) {
+			return null;
+		}
+		if (e.integer == null) {
+			throw new NumberFormatException("For input string: \"" + e.string + "\"");
 		}
-		return null;
+		return e.integer;
 	}
 	
 	/**
@@ -241,17 +300,17 @@ public class Config {
 	 * @param section {@link String} - Config section
 	 * @param key {@link String} - Field
 	 * @return {@link Long}
+	 * @throws NumberFormatException If the value is not an integer
 	 */
 	public static Long getLong(String section, String key) {
-		Object val = getObject(section, key);
-		if (val != null) {
-			if (!(val instanceof Long)) {
-				val = Long.parseLong(val.toString().trim());
-				instance.put(section, key, val);
-			}
-			return (Long)val;
+		Entry e = entry(section, key);
+		if (e == null || e.string == null) {
+			return null;
 		}
-		return null;
+		if (e.longValue == null) {
+			throw new NumberFormatException("For input string: \"" + e.string + "\"");
+		}
+		return e.longValue;
 	}
 
 	/**
@@ -261,37 +320,19 @@ public class Config {
 	 * @return {@link Boolean}
 	 */
 	public static Boolean getBool(String section, String key) {
-		Object val = getObject(section, key);
-		if (val != null) {
-			if (!(val instanceof Boolean)) {
-				val = Boolean.parseBoolean(val.toString().trim());
-				instance.put(section, key, val);
-			}
-			return (Boolean)val;
-		}
-		return null;
+		Entry e = entry(section, key);
+		return e != null ? e.bool : null;
 	}
 	
 	/**
 	 * Get a config value
 	 * @param section {@link String} - Config section
 	 * @param key {@link String} - Field
-	 * @return {@link String}[]
+	 * @return {@link String}[] Shared, must not be modified
 	 */
 	public static String[] getArray(String section, String key) {
-		Object val = getObject(section, key);
-		if (val != null) {
-			if (!val.getClass().isArray()) {
-				String[] a = ((String)val).split(",|,\\s|\\s,");
-				for (int i=0;i<a.length;i++) {
-					a[i] = a[i].trim();
-				}
-				instance.put(section, key, a);
-				val = a;
-			}
-			return (String[])val;
-		}
-		return null;
+		Entry e = entry(section, key);
+		return e != null ? e.array : null;
 	}
 	
 	/**
@@ -300,35 +341,23 @@ public class Config {
 	 * @param key {@link String} - Sub section
 	 * @return {@link Config}
 	 */
-	@SuppressWarnings("unchecked")
 	public static Config getSubSection(String section, String key) {
-		Object val = getObject(section, key);
-		if (val != null) {
-			if (!(val instanceof Config)) {
-				val = new Config((Map)val);
-				instance.put(section, key, val);
-			}
-			return (Config)val;
-		}
-		return null;
+		Entry e = entry(section, key);
+		return e != null ? e.section : null;
 	}
 	
 	/**
 	 * Get directly from the instance
 	 * @param key {@link String} - Value to get
-	 * @return {@link Object}
+	 * @return {@link Object} {@link String} with its references already resolved, or read only {@link Map} for a sub section
 	 */
 	public Object get(String key) {
-		Object val = values.get(key);
-		if (val instanceof String) {
-			val = evaluate((String)val, values);
-		}
-		return val;
+		return values.get(key);
 	}
 	
 	/**
 	 * Return the global config map
-	 * @return {@link Map}<{@link String},{@link Object}>
+	 * @return {@link Map}<{@link String},{@link Object}> Read only, sections are read only maps
 	 */
 	public static Map<String,Object> getGlobalMap() {
 		return instance.values;
@@ -336,7 +365,7 @@ public class Config {
 	
 	/**
 	 * Return the config map
-	 * @return {@link Map}<{@link String},{@link Object}>
+	 * @return {@link Map}<{@link String},{@link Object}> Read only, sections are read only maps
 	 */
 	public Map<String,Object> getMap() {
 		return values;
@@ -380,14 +409,8 @@ public class Config {
 	 * @return {@link JSONObject}
 	 * @throws Exception
 	 */
-	@SuppressWarnings("unchecked")
 	public static JSONObject toJSON() throws Exception {
-		JSONObject json = new JSONObject();
-		for (String sectionKey:instance.values.keySet()) {
-			Map<String,Object> sectionMap = (Map)instance.values.get(sectionKey);
-			json.put(sectionKey, toJSON(sectionMap));
-		}
-		return json;
+		return toJSON(instance.values);
 	}
 	
 	/**
@@ -398,28 +421,70 @@ public class Config {
 	 */
 	private static JSONObject toJSON(Map<String,Object> map) throws Exception {
 		JSONObject sectionJson = new JSONObject();
-		for (String key:map.keySet()) {
-			Object value = map.get(key);
-			if (value instanceof Config) {
+		for (Map.Entry<String,Object> e:map.entrySet()) {
+			Object value = e.getValue();
+			if (value instanceof Map) {
 				/* Subsection */
-				Config c = (Config)value;
-				sectionJson.put(key, toJSON(c.getMap()));
-			} else if (value.getClass().isArray()) {
-				/* Array */
-				JSONArray jsonArray = new JSONArray();
-				for (int i=0;i<Array.getLength(value);i++) {
-					jsonArray.put(Array.get(value, i));
-				}
-				sectionJson.put(key, jsonArray);
+				sectionJson.put(e.getKey(), toJSON(asMap(value)));
 			} else {
 				/* Primitive */
-				if (value instanceof String) {
-					value = evaluate((String)value, map);
-				}
-				sectionJson.put(key, value);
+				sectionJson.put(e.getKey(), value);
 			}
 		}
 		return sectionJson;
 	}
 	
+	/**
+	 * Value converted once to each type it can be read as
+	 */
+	private static final class Entry {
+		
+		final String string;
+		final Integer integer;				// Null if not an integer
+		final Long longValue;				// Null if not an integer
+		final Boolean bool;
+		final String[] array;
+		final Config section;				// Null unless a subsection
+		
+		Entry(String value) {
+			this.string = value;
+			String trimmed = value.trim();
+			this.integer = parseInt(trimmed);
+			this.longValue = parseLong(trimmed);
+			this.bool = Boolean.valueOf(trimmed);
+			String[] a = value.split(",|,\\s|\\s,");
+			for (int i=0;i<a.length;i++) {
+				a[i] = a[i].trim();
+			}
+			this.array = a;
+			this.section = null;
+		}
+		
+		Entry(Config section) {
+			this.string = null;
+			this.integer = null;
+			this.longValue = null;
+			this.bool = null;
+			this.array = null;
+			this.section = section;
+		}
+		
+		private static Integer parseInt(String s) {
+			try {
+				return Integer.valueOf(s);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		private static Long parseLong(String s) {
+			try {
+				return Long.valueOf(s);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		
+	}
+	
 }
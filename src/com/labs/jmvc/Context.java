@@ -1,15 +1,17 @@
 package com.labs.jmvc;
 
 import java.io.IOException;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 import javax.servlet.http.HttpSession;
 import org.apache.tomcat.util.http.fileupload.DefaultFileItemFactory;
 import org.apache.tomcat.util.http.fileupload.FileItem;
@@ -26,10 +28,23 @@ public class Context {
 	protected static final int COOKIE_MAX_AGE = 365*24*3600;
 	protected static final String COOKIE_PATH = Config.get("application", "prefix");
 	protected static final String defaultMimeType = Config.get("controller", "default_mime");
+	public static final String ASSETS_ATTRIBUTE = "assets";										// Asset URLs in views: ${assets['css/site.css']}
+	private static final SessionStore store = SessionStore.getInstance();						// Null to use the container session
+	private static final String sessionCookie = store != null ? SessionStore.getCookieName() : null;
+	private static final String sessionCookiePath = COOKIE_PATH != null ? COOKIE_PATH : "/";
+	private static final boolean secureSessionCookie = Boolean.TRUE.equals(Config.getBool("controller", "session_cookie_secure"));	// Also over plain HTTP, e.g. behind a TLS proxy
 	
 	protected HttpServletRequest request;
 	protected HttpServletResponse response;
-	protected HttpSession session;
+	protected HttpSession session;				// Created on first use
+	protected boolean stateless;				// Session access is forbidden
+	protected String sessionId;					// Id of the live session in the session store
+	private ParameterTree.Group parameters;		// Parsed on first use
+	private Multipart multipart;				// Created on first use
+	private CookieJar cookies;					// Parsed on first use
+	protected String path;						// Request path the route was matched against
+	protected Router.Route route;				// Matched route
+	protected int[] pathBounds;					// Bounds of each path segment captured by a variable
 	
 	/**
 	 * Create a new request context
@@ -45,9 +60,19 @@ public class Context {
 	 * @param resp {@link HttpServletResponse} - Response
 	 */
 	public Context(HttpServletRequest req, HttpServletResponse resp) {
-		request = req;
+		this(req, resp, false);
+	}
+	
+	/**
+	 * Create a new request context
+	 * @param req {@link HttpServletRequest} - Current request
+	 * @param resp {@link HttpServletResponse} - Response
+	 * @param stateless boolean - Whether to forbid session access, including from views
+	 */
+	public Context(HttpServletRequest req, HttpServletResponse resp, boolean stateless) {
+		request = stateless ? new StatelessRequest(req) : req;
 		response = resp;
-		session = req.getSession(true);
+		this.stateless = stateless;
 	}
 	
 	/**
@@ -67,13 +92,120 @@ public class Context {
 	}
 	
 	/**
-	 * Get the associated session
+	 * Get the associated container session, creating it if needed.
+	 * Values stored with {@link #put} only live there when no {@link SessionStore} is configured.
 	 * @return {@link HttpSession}
+	 * @throws IllegalStateException If the controller is stateless
 	 */
 	public HttpSession getSession() {
+		if (session == null) {
+			checkStateful();
+			session = request.getSession(true);
+		}
+		return session;
+	}
+	
+	/**
+	 * Get the session if the client already has one
+	 * @return {@link HttpSession} Null if there is none
+	 */
+	private HttpSession getExistingSession() {
+		if (session == null) {
+			checkStateful();
+			session = request.getSession(false);
+		}
 		return session;
 	}
 	
+	/**
+	 * Get the id of the client's session in the session store
+	 * @param create boolean - Whether to start a new session if the client has none
+	 * @return {@link String} Null if there is none
+	 */
+	private String getSessionId(boolean create) {
+		checkStateful();
+		if (sessionId == null) {
+			String id = getRequestedSessionId();
+			if (id != null && store.contains(id)) {
+				sessionId = id;
+			} else if (create) {
+				/* Never adopt an id chosen by the client */
+				sessionId = SessionStore.newId();
+				addSessionCookie();
+			}
+		}
+		return sessionId;
+	}
+	
+	/**
+	 * Send the session cookie. Set as a header since {@link Cookie} cannot be made HttpOnly before Servlet 3.0.
+	 */
+	private void addSessionCookie() {
+		StringBuilder cookie = new StringBuilder(96);
+		cookie.append(sessionCookie).append('=').append(sessionId).append("; Path=").append(sessionCookiePath);
+		if (secureSessionCookie || request.isSecure()) {
+			cookie.append("; Secure");
+		}
+		response.addHeader("Set-Cookie", cookie.append("; HttpOnly").toString());
+	}
+	
+	/**
+	 * Get the session id sent by the client
+	 * @return {@link String} Null if missing or malformed
+	 */
+	private String getRequestedSessionId() {
+		Cookie[] sent = request.getCookies();
+		if (sent != null) {
+			for (Cookie cookie:sent) {
+				if (sessionCookie.equals(cookie.getName())) {
+					return SessionStore.isValidId(cookie.getValue()) ? cookie.getValue() : null;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Drop the client's session and everything stored in it
+	 */
+	public void invalidateSession() {
+		if (store != null) {
+			String id = getSessionId(false);
+			if (id != null) {
+				store.invalidate(id);
+				sessionId = null;
+			}
+		} else {
+			HttpSession s = getExistingSession();
+			if (s != null) {
+				s.invalidate();
+				session = null;
+			}
+		}
+	}
+	
+	private void checkStateful() {
+		if (stateless) {
+			throw new IllegalStateException("Sessions are disabled for this controller");
+		}
+	}
+	
+	/**
+	 * Return whether session access is forbidden
+	 * @return boolean
+	 */
+	public boolean isStateless() {
+		return stateless;
+	}
+	
+	/**
+	 * Return the id of the request, sent back in the <code>X-Request-Id</code> header
+	 * @return {@link String} Null outside of a controller
+	 */
+	public String getRequestId() {
+		return RequestTrace.currentId();
+	}
+
 	/**
 	 * Get a request parameter
 	 * @param key {@link String} - Parameter key
@@ -92,13 +224,100 @@ public class Context {
 		return request.getParameterMap().containsKey(key);
 	}
 	
+	/**
+	 * Set the route matched by the current request
+	 * @param path {@link String} - Request path
+	 * @param route {@link Router.Route} - Matched route
+	 * @param bounds int[] - Variable bounds filled in by the router
+	 */
+	void setRoute(String path, Router.Route route, int[] bounds) {
+		this.path = path;
+		this.route = route;
+		this.pathBounds = bounds;
+	}
+	
+	/**
+	 * Get a path variable, e.g. <code>id</code> for a route declared as <code>/user/{id}</code>
+	 * @param name {@link String} - Variable name
+	 * @return {@link String} Null if not found
+	 */
+	public String getPathVariable(String name) {
+		int d = getPathVariableDepth(name);
+		if (d < 0) {
+			return null;
+		}
+		return path.substring(pathBounds[2*d], pathBounds[2*d+1]);
+	}
+	
+	/**
+	 * Get a numeric path variable, parsed in place without creating a string
+	 * @param name {@link String} - Variable name
+	 * @return {@link Long} Null if not found
+	 * @throws NumberFormatException If the value is not a number
+	 */
+	public Long getPathVariableAsLong(String name) {
+		int d = getPathVariableDepth(name);
+		if (d < 0) {
+			return null;
+		}
+		int start = pathBounds[2*d], end = pathBounds[2*d+1];
+		boolean negative = path.charAt(start) == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end || end - i > 19) {
+			throw new NumberFormatException("Invalid number: " + path.substring(start, end));
+		}
+		long val = 0;
+		for (;i<end;i++) {
+			int digit = path.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || val > (Long.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("Invalid number: " + path.substring(start, end));
+			}
+			val = val * 10 + digit;
+		}
+		return negative ? -val : val;
+	}
+	
+	/**
+	 * Get a numeric path variable
+	 * @param name {@link String} - Variable name
+	 * @return {@link Integer} Null if not found
+	 * @throws NumberFormatException If the value is not an integer
+	 */
+	public Integer getPathVariableAsInt(String name) {
+		Long val = getPathVariableAsLong(name);
+		if (val == null) {
+			return null;
+		}
+		if (val < Integer.MIN_VALUE || val > Integer.MAX_VALUE) {
+			throw new NumberFormatException("Value out of range: " + val);
+		}
+		return val.intValue();
+	}
+	
+	/**
+	 * Return the segment index captured by a path variable
+	 * @param name {@link String} - Variable name
+	 * @return int -1 if not found
+	 */
+	private int getPathVariableDepth(String name) {
+		if (route == null || pathBounds == null) {
+			return -1;
+		}
+		int i = route.indexOf(name);
+		return i >= 0 ? route.getDepth(i) : -1;
+	}
+	
 	/**
 	 * Register an object to this context
 	 * @param name {@link String} - Associated name
 	 * @param obj {@link Object} - Object to register
 	 */
 	public void put(String name, Object obj) {
-		session.setAttribute(name, obj);
+		if (store != null) {
+			store.put(getSessionId(true), name, obj);
+		} else {
+			getSession().setAttribute(name, obj);
+		}
 	}
 	
 	/**
@@ -106,7 +325,17 @@ public class Context {
 	 * @param name {@link String} - Name
 	 */
 	public void remove(String name) {
-		session.removeAttribute(name);
+		if (store != null) {
+			String id = getSessionId(false);
+			if (id != null) {
+				store.remove(id, name);
+			}
+			return;
+		}
+		HttpSession s = getExistingSession();
+		if (s != null) {
+			s.removeAttribute(name);
+		}
 	}
 		
 	/**
@@ -115,7 +344,12 @@ public class Context {
 	 * @return {@link Object} Null if not found
 	 */
 	public Object get(String name) {
-		return session.getAttribute(name);
+		if (store != null) {
+			String id = getSessionId(false);
+			return id != null ? store.get(id, name) : null;
+		}
+		HttpSession s = getExistingSession();
+		return s != null ? s.getAttribute(name) : null;
 	}
 	
 	/**
@@ -125,20 +359,17 @@ public class Context {
 	 * @throws Exception 
 	 */
 	public void redirectToView(String controllerName, String actionName) throws Exception {
-		String viewRoot = Config.get("controller", "view_path");
-		String viewPath = viewRoot + "/" + controllerName + "/" + actionName + ".jsp";
-		RequestDispatcher dispatcher = request.getRequestDispatcher(viewPath);
-		if (dispatcher != null) {
-			try {
-				dispatcher.forward(request, response);
-			} catch (ServletException e) {
-				throw new Exception("Error while rendering view for " + actionName, e);
-			} catch (IOException e) {
-				throw new Exception("No view found for " + actionName);
-			}
-		} else {
-			throw new Exception("Could not get dispatcher");
-		}
+		request.setAttribute(ASSETS_ATTRIBUTE, AssetManifest.getInstance().getUrls());
+		View.get(controllerName, actionName).render(request, response);
+	}
+	
+	/**
+	 * Return the URL of an asset, fingerprinted when it is listed in the {@link AssetManifest}
+	 * @param name {@link String} - Logical name, e.g. <code>css/site.css</code>
+	 * @return {@link String}
+	 */
+	public String getAssetUrl(String name) {
+		return AssetManifest.getInstance().getUrl(name);
 	}
 	
 	/**
@@ -169,42 +400,26 @@ public class Context {
 	}
 	
 	/**
-	 * Get the application cookie
-	 * @return {@link Cookie}
+	 * Get the application cookie, parsed on first use
+	 * @return {@link CookieJar}
 	 */
-	private Cookie getAppCookie() {
-		String name = Config.get("application", "name");
-		Cookie[] cookies = request.getCookies();
-		Cookie c = null;
-		if (cookies != null && cookies.length > 0) {
-			for (Cookie cookie:cookies) {
-				if (name.equals(cookie.getName())) {
-					c = cookie;
-					break;
-				}
-			}
-			if (c == null) {
-				c = new Cookie(name, "");
-				c.setMaxAge(COOKIE_MAX_AGE);
-				c.setPath(COOKIE_PATH);
-			}
+	private CookieJar getCookieJar() {
+		if (cookies == null) {
+			cookies = CookieJar.parse(request);
 		}
-		return c;
+		return cookies;
 	}
 	
 	/**
-	 * Add a cookie value to the response
+	 * Add a value to the application cookie.
+	 * The cookie is sent once, before the body is written, whatever the number of changes.
 	 * @param key {@link String} - Cookie name
-	 * @param value {@link String} - Cookie value
+	 * @param value {@link String} - Cookie value, null to remove it
 	 */
 	public void addCookie(String key, String value) {
-		Cookie cookie = getAppCookie();
-		String v = cookie.getValue();
-		cookie.setValue(v + (!"".equals("") ? "|" : "") + key + ":" + value);
-		cookie.setMaxAge(COOKIE_MAX_AGE);
-		cookie.setPath(COOKIE_PATH);
-		Logger.debug("Added cookie, new value = " + cookie.getValue());
-		response.addCookie(cookie);
+		getCookieJar().put(key, value);
+		onCookieChange();
+		Logger.debug("Added cookie, new value = {}", cookies);
 	}
 	
 	/**
@@ -213,17 +428,7 @@ public class Context {
 	 * @return {@link String} Value or null if not found
 	 */
 	public String getCookie(String key) {
-		Cookie cookie = getAppCookie();
-		if (cookie != null) {
-			String[] pairs = cookie.getValue().split("\\|");
-			for (String pair:pairs) {
-				String[] p = pair.split("\\:");
-				if (p[0].equals(key)) {
-					return p[1];
-				}
-			}
-		}
-		return null;
+		return getCookieJar().get(key);
 	}
 	
 	/**
@@ -231,24 +436,33 @@ public class Context {
 	 * @param key {@link String} - Cookie name
 	 */
 	public void removeCookie(String key) {
-		Cookie cookie = getAppCookie();
-		String[] pairs = cookie.getValue().split("\\|");
-		StringBuffer newValue = new StringBuffer();
-		for (String pair:pairs) {
-			if (!pair.startsWith(key + ":")) {
-				if (newValue.length() > 0) {
-					newValue.append("|");
-				}
-				newValue.append(pair);
+		getCookieJar().remove(key);
+		onCookieChange();
+		Logger.debug("Removed cookie, new value = {}", cookies);
+	}
+	
+	/**
+	 * Make sure the changed cookie goes out before the response commits
+	 */
+	private void onCookieChange() {
+		if (cookies.isDirty() && !(response instanceof CookieResponse)) {
+			response = new CookieResponse(response);
+		}
+	}
+	
+	/**
+	 * Send the application cookie if it changed
+	 */
+	void flushCookies() {
+		if (cookies != null && cookies.isDirty()) {
+			if (response.isCommitted()) {
+				Logger.warn("Cookie changed after the response was committed: {}", cookies);
+				return;
 			}
+			response.addCookie(cookies.toCookie(COOKIE_MAX_AGE, COOKIE_PATH));
 		}
-		cookie.setValue(newValue.toString());
-		cookie.setMaxAge(COOKIE_MAX_AGE);
-		cookie.setPath(COOKIE_PATH);
-		Logger.debug("Removed cookie, new value = " + cookie.getValue());
-		response.addCookie(cookie);
 	}
-		
+	
 	/**
 	 * Return whether the response already has a mime type
 	 * @return boolean
@@ -305,59 +519,183 @@ public class Context {
 	}
 	
 	/**
-	 * Get an array parameter
-	 * @param name {@link String} - Parameter name
-	 * @return {@link String}[] Null if not found
+	 * Return a streaming reader of the multipart request body, see {@link Multipart}.
+	 * Unlike {@link #getFileItems()}, parts are read as they arrive and only spooled on demand.
+	 * Temporary files left by the upload are deleted once the request is handled.
+	 * @return {@link Multipart}
+	 * @throws IOException
+	 * @throws UploadException If the request is not multipart or is too large, answered with 400 or 413
 	 */
-	@SuppressWarnings("unchecked")
-	public String[] getParameterAsArray(String name) {
-		Enumeration<String> names = request.getParameterNames();
-		Map<Integer, String> map = new HashMap<Integer, String>(0);
-		String prefix = name + "[";
-		int p, index, maxIndex = -1, l = prefix.length();
-		while (names.hasMoreElements()) {
-			String n = names.nextElement();
-			if (n.startsWith(prefix)) {
-				p = n.indexOf("]", l);
-				index = l != p ? Integer.parseInt(n.substring(l, p)) : 0;
-				if (index > maxIndex) {
-					maxIndex = index;
-				}
-				map.put(index, request.getParameter(n));
-			}
+	public Multipart getMultipart() throws IOException {
+		if (multipart == null) {
+			multipart = new Multipart(request);
 		}
-		if (maxIndex >= 0) {
-			String[] array = new String[maxIndex + 1];
-			for (int k:map.keySet()) {
-				array[k] = map.get(k);
+		return multipart;
+	}
+	
+	/**
+	 * Release the resources held for the request
+	 */
+	void release() {
+		if (multipart != null) {
+			multipart.close();
+		}
+	}
+	
+	/**
+	 * Return the request parameters parsed into a tree, see {@link ParameterTree}.
+	 * Parsed on first use, the tree must not be modified.
+	 * @return {@link Map}<{@link String},{@link Object}> Values are {@link String}s or nested {@link Map}s
+	 */
+	public Map<String,Object> getParameterTree() {
+		if (parameters == null) {
+			parameters = ParameterTree.parse(request);
+		}
+		return parameters;
+	}
+	
+	/**
+	 * Get a parameter from the tree, e.g. <code>getNestedParameter("a", "b", "0")</code> for <code>a[b][0]</code>
+	 * @param path {@link String}[] - Keys
+	 * @return {@link Object} {@link String}, {@link Map} or null if not found
+	 */
+	public Object getNestedParameter(String... path) {
+		Object node = getParameterTree();
+		for (String key:path) {
+			if (!(node instanceof Map)) {
+				return null;
 			}
-			map.clear();
-			return array;
+			node = ((Map<?,?>)node).get(key);
 		}
-		return null;
+		return node;
+	}
+	
+	/**
+	 * Create an object from the request parameters, e.g. <code>name=bob&amp;tags[]=a&amp;address[city]=Paris</code>
+	 * for a class with <code>name</code>, <code>tags</code> and <code>address</code> properties.
+	 * Public setters and public fields are bound; see {@link Binder} for the supported types.
+	 * @param type {@link Class} - Class with a constructor without arguments
+	 * @return T
+	 * @throws BindException If a parameter cannot be converted, answered with 400
+	 */
+	public <T> T bind(Class<T> type) {
+		return Binder.forClass(type).bind(getParameterTree(), null, request);
+	}
+	
+	/**
+	 * Create an object from a parameter group, e.g. <code>user[name]=bob&amp;user[age]=3</code>
+	 * @param name {@link String} - Group name
+	 * @param type {@link Class} - Class with a constructor without arguments
+	 * @return T Null if the request has no such group
+	 * @throws BindException If a parameter cannot be converted, answered with 400
+	 */
+	public <T> T bind(String name, Class<T> type) {
+		ParameterTree.Group group = getParameterGroup(name);
+		return group != null ? Binder.forClass(type).bind(group, name, null) : null;
 	}
 	
 	/**
-	 * Get a map parameter
+	 * Get a parameter group
+	 * @param name {@link String} - Group name
+	 * @return {@link ParameterTree.Group} Null if not found
+	 */
+	private ParameterTree.Group getParameterGroup(String name) {
+		Object node = getParameterTree().get(name);
+		return node instanceof ParameterTree.Group ? (ParameterTree.Group)node : null;
+	}
+	
+	/**
+	 * Get an array parameter, i.e. <code>name[0]</code>, <code>name[1]</code>... or <code>name[]</code>.
+	 * The array is shared by later calls and must not be modified.
 	 * @param name {@link String} - Parameter name
-	 * @return {@link Map}<{@link String},{@link String}> Null if not found
+	 * @return {@link String}[] Null if not found
+	 */
+	public String[] getParameterAsArray(String name) {
+		ParameterTree.Group group = getParameterGroup(name);
+		return group != null ? group.toArray() : null;
+	}
+	
+	/**
+	 * Get a map parameter, i.e. <code>name[key]</code>
+	 * @param name {@link String} - Parameter name
+	 * @return {@link Map}<{@link String},{@link String}> Read-only, null if not found
 	 */
-	@SuppressWarnings("unchecked")
 	public Map<String,String> getParameterAsMap(String name) {
-		Enumeration<String> names = request.getParameterNames();
-		Map<String, String> map = new HashMap<String, String>(0);
-		String prefix = name + "[";
-		String key;
-		int p, l = prefix.length();
-		while (names.hasMoreElements()) {
-			String n = names.nextElement();
-			if (n.startsWith(prefix)) {
-				p = n.indexOf("]", l);
-				key = n.substring(l, p);
-				map.put(key, request.getParameter(n));
+		ParameterTree.Group group = getParameterGroup(name);
+		return group != null ? group.toMap() : null;
+	}
+	
+	/**
+	 * Request refusing to create or expose a session
+	 * @author Benjamin Dezile
+	 */
+	private static class StatelessRequest extends HttpServletRequestWrapper {
+		
+		public StatelessRequest(HttpServletRequest request) {
+			super(request);
+		}
+		
+		@Override
+		public HttpSession getSession() {
+			return getSession(true);
+		}
+		
+		@Override
+		public HttpSession getSession(boolean create) {
+			if (create) {
+				throw new IllegalStateException("Sessions are disabled for this controller");
 			}
+			return null;
+		}
+		
+	}
+	
+	/**
+	 * Response sending the changed application cookie before anything commits it
+	 * @author Benjamin Dezile
+	 */
+	private class CookieResponse extends HttpServletResponseWrapper {
+		
+		public CookieResponse(HttpServletResponse response) {
+			super(response);
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			flushCookies();
+			return super.getOutputStream();
 		}
-		return map.size() > 0 ? map : null;
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			flushCookies();
+			return super.getWriter();
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException {
+			flushCookies();
+			super.flushBuffer();
+		}
+		
+		@Override
+		public void sendError(int sc) throws IOException {
+			flushCookies();
+			super.sendError(sc);
+		}
+		
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			flushCookies();
+			super.sendError(sc, msg);
+		}
+		
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			flushCookies();
+			super.sendRedirect(location);
+		}
+		
 	}
 	
 }
@@ -1,17 +1,18 @@
 package com.labs.jmvc;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
 /**
  * Abstract controller
@@ -22,7 +23,14 @@ public abstract class Controller extends HttpServlet {
 	private static final long serialVersionUID = -6205350259500257015L;
 	private static final Class<?>[] actionSignature = new Class<?>[]{ Context.class };
 	private static final String actionPrefix = "execute";
-	private Map<String, Method> actions; 
+	private static final String versionPrefix = "version";
+	private static final AtomicInteger live = new AtomicInteger();		// Initialized controllers
+	private Map<String, Action> actions; 
+	private Map<String, Cached> cachePolicies;
+	private Map<String, Action> versions;
+	private Router router;
+	private Metrics metrics;
+	private boolean stateless;
 	private String name;
 
 	/**
@@ -32,18 +40,114 @@ public abstract class Controller extends HttpServlet {
 	public Controller(String name) {
 		super();
 		this.name = name;
-		this.actions = new HashMap<String, Method>(0);
+		this.actions = new HashMap<String, Action>(0);
+		this.cachePolicies = new HashMap<String, Cached>(0);
+		this.versions = new HashMap<String, Action>(0);
+		this.router = new Router();
+		this.metrics = Metrics.forController(name);
+		this.stateless = getClass().isAnnotationPresent(Stateless.class);
 		Class<?>[] paramTypes;
+		List<Method> versionHooks = new ArrayList<Method>(0);
 		for (Method meth:this.getClass().getMethods()) {
 			if (meth.getName().startsWith(actionPrefix)) {
 				paramTypes = meth.getParameterTypes();
 				if (paramTypes == null || paramTypes.length != actionSignature.length) {
 					throw new RuntimeException("Invalid action signature for " + meth.getName() + " in " + name + " controller");
 				}
-				actions.put(meth.getName().toLowerCase(), meth);
+				String actionName = meth.getName().substring(actionPrefix.length());
+				addAction(actionName, Action.forMethod(this, meth));
+				if (meth.isAnnotationPresent(Cached.class)) {
+					cachePolicies.put(actionName.toLowerCase(), meth.getAnnotation(Cached.class));
+				}
+			} else if (meth.getName().startsWith(versionPrefix) && Arrays.equals(meth.getParameterTypes(), actionSignature)) {
+				versionHooks.add(meth);
+			}
+		}
+		for (Method meth:versionHooks) {
+			/* Other version* methods are not hooks */
+			String actionName = meth.getName().substring(versionPrefix.length());
+			if (actions.containsKey(actionName.toLowerCase())) {
+				addVersion(actionName, Action.forMethod(this, meth));
 			}
 		}
-		Logger.debug("Created new controller: " + name + " with " + actions);
+		Logger.debug("Created new controller: {} with {}", name, actions.keySet());
+	}
+	
+	/**
+	 * Resolve the views of the actions
+	 */
+	@Override
+	public void init() throws ServletException {
+		View.init(getServletContext(), name, actions.keySet());
+		live.incrementAndGet();
+	}
+	
+	/**
+	 * Release the resources shared by the controllers once the last one is destroyed,
+	 * i.e. when the application is stopped or undeployed
+	 */
+	@Override
+	public void destroy() {
+		super.destroy();
+		if (live.decrementAndGet() > 0) {
+			return;
+		}
+		SessionStore store = SessionStore.getInstance();
+		if (store != null) {
+			store.close();
+		}
+		Logger.shutdown();
+	}
+	
+	/**
+	 * Register an action, replacing any <code>execute*</code> method of the same name.
+	 * Hot actions can be registered as an anonymous {@link Action} calling the method
+	 * directly instead of going through reflection.
+	 * The action is routed to <code>/actionName</code>.
+	 * @param actionName {@link String} - Action name (without the execute prefix)
+	 * @param action {@link Action} - Action
+	 */
+	protected void addAction(String actionName, Action action) {
+		if (actionName == null || action == null) {
+			throw new IllegalArgumentException("Action name and action are required");
+		}
+		String key = actionName.toLowerCase();
+		if (actions.put(key, action) != null) {
+			router.bind(key, action);
+		} else {
+			router.add("/" + key, key, action);
+		}
+	}
+	
+	/**
+	 * Register the version hook of an action, replacing any <code>version*(Context)</code> method of the same name.
+	 * Such methods are only bound when the controller has the matching <code>execute*</code> action.
+	 * The hook returns an ETag, or a {@link java.util.Date} or timestamp for Last-Modified, 
+	 * and is called before the action so unchanged resources get a 304 without running it.
+	 * @param actionName {@link String} - Action name (without the execute prefix)
+	 * @param version {@link Action} - Version hook
+	 */
+	protected void addVersion(String actionName, Action version) {
+		if (actionName == null || version == null) {
+			throw new IllegalArgumentException("Action name and version hook are required");
+		}
+		versions.put(actionName.toLowerCase(), version);
+	}
+	
+	/**
+	 * Route an additional path pattern to an action. 
+	 * Patterns can contain variables, e.g. <code>/user/{id}</code>, 
+	 * which are then available through {@link Context#getPathVariable(String)}.
+	 * @param pattern {@link String} - Path pattern relative to the controller
+	 * @param actionName {@link String} - Action name (without the execute prefix)
+	 */
+	protected void addRoute(String pattern, String actionName) {
+		String key = actionName.toLowerCase();
+		Action action = actions.get(key);
+		if (action == null) {
+			throw new IllegalArgumentException("Action not found: " + actionName + " in " + name + " controller");
+		}
+		router.add(pattern, key, action);
 	}
 	
 	/**
@@ -57,50 +161,175 @@ public abstract class Controller extends HttpServlet {
 	 * Handle get requests
 	 */
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		String actionName = getActionName(request);
-		Method action = findActionMethod(actionName);
-		Context context = new Context(request, response); 
-		if (action != null) {
+		RequestTrace trace = RequestTrace.begin(request, response);
+		try {
+			handle(request, response, trace);
+		} finally {
+			trace.end();
+		}
+	}
+
+	/**
+	 * Route a request to its action and send the response
+	 * @param request {@link HttpServletRequest} - Request
+	 * @param response {@link HttpServletResponse} - Response
+	 * @param trace {@link RequestTrace} - Trace of the request
+	 */
+	private void handle(HttpServletRequest request, HttpServletResponse response, RequestTrace trace) throws ServletException, IOException {
+		String path = request.getPathInfo();
+		int[] bounds = router.newBounds();
+		Router.Route route = router.match(path, bounds);
+		if (route != null) {
+			String actionName = route.getName();
+			trace.setRoute(name, actionName);
+			Metrics.ActionMetrics stats = metrics.forAction(actionName);
+			stats.request();
+			long start = System.nanoTime();
+			boolean conditional = isConditional(request);
+			Cached cachePolicy = conditional && !cachePolicies.isEmpty() ? cachePolicies.get(actionName) : null;
+			Action version = conditional && !versions.isEmpty() ? versions.get(actionName) : null;
+			boolean validated = conditional && (version != null || Conditional.autoEtag);	// ETag / Last-Modified checked after the action
+			String cacheKey = null;
+			BufferedResponse buffered = null;
+			if (cachePolicy != null) {
+				/* Try the response cache first */
+				cacheKey = ResponseCache.key(name, actionName, cachePolicy, request, path);
+				ResponseCache.Entry cached = ResponseCache.getInstance().get(cacheKey);
+				if (cached != null) {
+					Logger.debug("Cache hit for {}->{}", name, actionName);
+					stats.cacheHit();
+					sendCached(request, response, cached);
+					return;
+				}
+			}
+			String encoding = Compression.negotiate(request);
+			if (cachePolicy != null || encoding != null || (validated && version == null)) {
+				buffered = new BufferedResponse(response, ResponseCache.getInstance().getMaxEntrySize());
+				buffered.setAcceptedEncoding(encoding);
+			}
+			Context context = new Context(request, buffered != null ? buffered : response, stateless);
+			context.setRoute(path, route, bounds);
 			try {
+				String etag = null;
+				long lastModified = -1;
+				if (version != null) {
+					/* Ask the action for its current version */
+					Object v = Conditional.fromVersion(version.execute(context));
+					if (v instanceof String) {
+						etag = (String)v;
+					} else if (v instanceof Long) {
+						lastModified = (Long)v;
+					}
+					String variant = Compression.etag(etag, encoding);
+					if (variant != etag && Conditional.isNotModified(request, variant, -1)) {
+						/* Client has the compressed variant */
+						Logger.debug("Not modified: {}->{}", name, actionName);
+						stats.notModified();
+						Conditional.sendNotModified(response, variant, lastModified);
+						return;
+					}
+					if (Conditional.isNotModified(request, etag, lastModified)) {
+						Logger.debug("Not modified: {}->{}", name, actionName);
+						stats.notModified();
+						Conditional.sendNotModified(response, etag, lastModified);
+						return;
+					}
+					/* Through the buffer, which gives the ETag its variant if the body ends up compressed */
+					Conditional.setHeaders(context.getResponse(), etag, lastModified);
+				}
 				/* Execute the action */
-				Logger.debug("Calling action: " + name + "->" + actionName);
-				Object respData = action.invoke(this, context);
-				if (!response.isCommitted()) {
+				Logger.debug("Calling action: {}->{}", name, actionName);
+				Object respData = route.getAction().execute(context);
+				context.flushCookies();
+				long executed = System.nanoTime();
+				stats.getActionTime().record(executed - start);
+				trace.span("action", executed - start);
+				if (buffered == null) {
+					/* Sent before the body, output time cannot be included */
+					trace.writeHeader(response);
+				}
+				Histogram outputTime = stats.getSerializationTime();
+				String outputSpan = "serialization";
+				if (!context.getResponse().isCommitted()) {
 					if (respData == null) {
 						/* Try to redirect to view */
-						String viewName = actionName.replace(actionPrefix, "").toLowerCase();
-						Logger.debug("Redirecting to view: " + viewName);
-						context.redirectToView(name, viewName);
+						Logger.debug("Redirecting to view: {}", actionName);
+						outputTime = stats.getViewTime();
+						outputSpan = "view";
+						context.redirectToView(name, actionName);
 					} else {
 						/* Return response data */
-						setResponseType(context, respData);
-						Logger.debug("Response from " + name + "->" + actionName + ": (" + response.getContentType() + ") " + respData);
-						PrintWriter out = response.getWriter();
-						out.write(respData.toString());
-						out.flush();
-						out.close();
-						return;
+						render(context, respData);
+						if (Logger.isDebugEnabled()) {
+							Logger.debug("Response from {}->{}: ({}) {}", name, actionName, response.getContentType(), respData.getClass().getName());
+						}
+					}
+				}
+				trace.span(outputSpan, System.nanoTime() - executed);
+				if (buffered != null) {
+					trace.writeHeader(response);
+					if (buffered.isOk()) {
+						if (validated && etag == null && lastModified < 0) {
+							/* Fall back to a hash of the body */
+							etag = Conditional.etag(buffered.getBuffer(), buffered.getLength());
+						}
+						if (cachePolicy != null && buffered.isReusable()) {
+							ResponseCache.getInstance().put(cacheKey, buffered.toByteArray(), buffered.getContentType(), etag, cachePolicy.ttl());
+						}
+						if (validated) {
+							/* Each encoding has its own ETag */
+							String sentEtag = Compression.etag(etag, buffered.getContentEncoding());
+							if (Conditional.isNotModified(request, sentEtag, lastModified)) {
+								stats.notModified();
+								Conditional.sendNotModified(response, sentEtag, lastModified);
+								outputTime.record(System.nanoTime() - executed);
+								return;
+							}
+							Conditional.setHeaders(response, sentEtag, lastModified);
+						}
 					}
+					buffered.commit();
+				}
+				outputTime.record(System.nanoTime() - executed);
+				return;
+			} catch (BindException e) {
+				/* Invalid parameter */
+				Logger.debug("Bad request for {}->{}: {}", name, actionName, e.getMessage());
+				if (!response.isCommitted()) {
+					response.reset();
+					trace.restoreHeaders(response);
+					response.sendError(400, e.getMessage());
+				}
+				return;
+			} catch (UploadException e) {
+				/* Upload too large or malformed */
+				Logger.debug("Upload rejected for {}->{}: {}", name, actionName, e.getMessage());
+				if (!response.isCommitted()) {
+					response.reset();
+					trace.restoreHeaders(response);
+					response.sendError(e.getStatus(), e.getMessage());
 				}
 				return;
 			} catch (Exception e) {
 				/* Error */
-				if (e instanceof InvocationTargetException) {
-					Throwable t = ((InvocationTargetException) e).getTargetException();
-					if (t instanceof Exception) {
-						e = (Exception)((InvocationTargetException)e).getTargetException();
-					} else {
-						e = new Exception(t);
-					}
-				}
+				stats.error();
 				Logger.error("Controller exception", e);
+				if (response.isCommitted()) {
+					/* Failed while streaming, too late to send an error */
+					return;
+				}
 				response.reset();
+				trace.restoreHeaders(response);
 				response.sendError(500, "Error while calling " + name + "->" + actionName + ": " + e.getMessage());
 				return;
+			} finally {
+				context.release();
 			}
 		}
 		/* Action not found */
-		Logger.warn("Action not found: " + actionName);
+		metrics.notFound();
+		String actionName = (path != null && path.startsWith("/") ? path.substring(1) : path);
+		Logger.warn("Action not found: {}", actionName);
 		response.sendError(404, actionName != null ? "Action not found: " + actionName : "No action");
 	}
 		
@@ -113,65 +342,68 @@ public abstract class Controller extends HttpServlet {
 	}
 	
 	/**
-	 * Get the name of the current action
-	 * @param request {@link HttpServletRequest} - Request
-	 * @return {@link String}
+	 * Drop the cached responses of one of this controller's actions
+	 * @param actionName {@link String} - Action name (without the execute prefix)
 	 */
-	private static String getActionName(HttpServletRequest request) {
-		String pathInfo = request.getPathInfo();
-		if (pathInfo != null) {
-			StringBuffer buf = new StringBuffer(pathInfo);
-			if (buf.indexOf("/") == 0) {
-				return buf.substring(1);
-			}
-			return buf.toString();
-		}
-		return null;
+	protected void invalidateCache(String actionName) {
+		ResponseCache.getInstance().invalidate(name, actionName);
 	}
 	
 	/**
-	 * Find a given action method
-	 * @param name {@link String} - Action name
-	 * @return {@link Method}
+	 * Return whether the request can be answered from a cache or with 304
+	 * @param request {@link HttpServletRequest} - Request
+	 * @return boolean
 	 */
-	private Method findActionMethod(String name) {
-		if (name != null) {
-			return actions.get(actionPrefix + name.toLowerCase());
-		} 
-		return null;
+	private static boolean isConditional(HttpServletRequest request) {
+		String method = request.getMethod();
+		return "GET".equals(method) || "HEAD".equals(method);
 	}
-		
+	
 	/**
-	 * Try to get the response type if not already set
-	 * @param context {@link Context} - Current controller context
-	 * @param responseData {@link Object} - Reponse data
+	 * Send a cached response
+	 * @param request {@link HttpServletRequest} - Request
+	 * @param response {@link HttpServletResponse} - Response
+	 * @param cached {@link ResponseCache.Entry} - Cached response
+	 * @throws IOException
 	 */
-	private void setResponseType(Context context, Object responseData) {
-		if (context.responseHasMimeType()) {
-			/* Already set, we're done here */
-			return;
+	private static void sendCached(HttpServletRequest request, HttpServletResponse response, ResponseCache.Entry cached) throws IOException {
+		byte[] body = cached.body;
+		String etag = cached.etag;
+		boolean gzip = false;
+		if (cached.gzipped != null) {
+			response.addHeader("Vary", "Accept-Encoding");
+			if ((gzip = Compression.GZIP.equals(Compression.negotiate(request)))) {
+				body = cached.gzipped;
+				etag = Compression.etag(etag, Compression.GZIP);
+			}
 		}
-		if (responseData == null) {
-			/* No data */
+		if (etag != null && Conditional.isNotModified(request, etag, -1)) {
+			Conditional.sendNotModified(response, etag, -1);
 			return;
 		}
-		String data = responseData.toString().trim();
-		if (responseData instanceof JSONObject || 
-			responseData instanceof JSONArray || 
-			(data.startsWith("{") && data.endsWith("}")) || 
-			(data.startsWith("[") && data.endsWith("]"))) {
-			/* JSON */
-			context.asJSON();
-		} else if (data.startsWith("<script") && data.endsWith("</script>")) {
-			/* JavaScript */
-			context.asJavascript();
-		} else if (data.startsWith("<") && data.endsWith(">")) {
-			/* HMTL */
-			context.asHTML();
-		} else {
-			/* Default */
-			context.asDefaultType();
+		if (gzip) {
+			response.setHeader("Content-Encoding", Compression.GZIP);
 		}
+		if (cached.contentType != null) {
+			response.setContentType(cached.contentType);
+		}
+		Conditional.setHeaders(response, etag, -1);
+		response.setContentLength(body.length);
+		ServletOutputStream out = response.getOutputStream();
+		out.write(body);
+		out.flush();
+	}
+	
+	/**
+	 * Render response data with the renderer registered for its type
+	 * @param context {@link Context} - Current controller context
+	 * @param responseData {@link Object} - Reponse data
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	private void render(Context context, Object responseData) throws IOException {
+		Renderer<Object> renderer = (Renderer<Object>)Renderer.forType(responseData.getClass());
+		renderer.render(responseData, context);
 	}
 	
 	/**
@@ -0,0 +1,275 @@
+package com.labs.jmvc;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Values packed in the application cookie, e.g. <code>lang:en|theme:dark</code>.
+ * The cookie is parsed once per request and written back as a single cookie, however many keys changed.
+ * Keys and values are percent-encoded when they contain separators or characters cookies do not allow.
+ * When <code>controller.cookie_secret</code> is set, the cookie is signed with HMAC-SHA256 and
+ * cookies with a missing or wrong signature are ignored.
+ * @author Benjamin Dezile
+ */
+final class CookieJar {
+
+	private static final char pairSeparator = '|';
+	private static final char keySeparator = ':';
+	private static final char signatureSeparator = '.';
+	private static final int signatureLength = 32;					// Hex digits of the truncated MAC
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	private static final String name = Config.get("application", "name");
+	private static final SecretKeySpec key = getKey();
+	private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+		@Override
+		protected Mac initialValue() {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(key);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final Map<String, String> values;
+	private boolean dirty = false;
+
+	private CookieJar(Map<String, String> values) {
+		this.values = values;
+	}
+
+	/**
+	 * Read the application cookie of a request
+	 * @param request {@link HttpServletRequest} - Request
+	 * @return {@link CookieJar}
+	 */
+	static CookieJar parse(HttpServletRequest request) {
+		Map<String, String> values = new LinkedHashMap<String, String>(8);
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie:cookies) {
+				if (name.equals(cookie.getName())) {
+					String payload = verify(cookie.getValue());
+					if (payload != null) {
+						parse(payload, values);
+					}
+					break;
+				}
+			}
+		}
+		return new CookieJar(values);
+	}
+
+	/**
+	 * Get a value
+	 * @param k {@link String} - Key
+	 * @return {@link String} Null if not found
+	 */
+	String get(String k) {
+		return values.get(k);
+	}
+
+	/**
+	 * Set a value
+	 * @param k {@link String} - Key
+	 * @param value {@link String} - Value, null to remove it
+	 */
+	void put(String k, String value) {
+		if (value == null) {
+			remove(k);
+		} else if (!value.equals(values.put(k, value))) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Remove a value
+	 * @param k {@link String} - Key
+	 */
+	void remove(String k) {
+		if (values.remove(k) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Return whether values changed since the cookie was read or last written
+	 * @return boolean
+	 */
+	boolean isDirty() {
+		return dirty;
+	}
+
+	/**
+	 * Build the cookie to send, deleting it once it is empty
+	 * @param maxAge int - Max age in seconds
+	 * @param path {@link String} - Cookie path
+	 * @return {@link Cookie}
+	 */
+	Cookie toCookie(int maxAge, String path) {
+		StringBuilder sb = new StringBuilder(64);
+		for (Map.Entry<String, String> e:values.entrySet()) {
+			if (sb.length() > 0) {
+				sb.append(pairSeparator);
+			}
+			encode(e.getKey(), sb);
+			sb.append(keySeparator);
+			encode(e.getValue(), sb);
+		}
+		String value = sb.toString();
+		Cookie cookie = new Cookie(name, values.isEmpty() ? "" : (key != null ? sign(value) + signatureSeparator + value : value));
+		cookie.setMaxAge(values.isEmpty() ? 0 : maxAge);
+		cookie.setPath(path);
+		dirty = false;
+		return cookie;
+	}
+
+	@Override
+	public String toString() {
+		return values.toString();
+	}
+
+	/**
+	 * Split <code>k:v|k:v</code> pairs
+	 */
+	private static void parse(String payload, Map<String, String> values) {
+		int start = 0, l = payload.length();
+		while (start < l) {
+			int end = payload.indexOf(pairSeparator, start);
+			if (end < 0) {
+				end = l;
+			}
+			int colon = payload.indexOf(keySeparator, start);
+			if (colon > start && colon < end) {
+				values.put(decode(payload, start, colon), decode(payload, colon + 1, end));
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Check the signature of a cookie value
+	 * @return {@link String} Payload, null if the signature does not match
+	 */
+	private static String verify(String value) {
+		if (key == null || value == null) {
+			return value;
+		}
+		if (value.length() <= signatureLength || value.charAt(signatureLength) != signatureSeparator) {
+			Logger.debug("Ignoring unsigned {} cookie", name);
+			return null;
+		}
+		String payload = value.substring(signatureLength + 1);
+		String expected = sign(payload);
+		int diff = 0;
+		for (int i=0;i<signatureLength;i++) {
+			/* Constant time */
+			diff |= expected.charAt(i) ^ value.charAt(i);
+		}
+		if (diff != 0) {
+			Logger.debug("Ignoring {} cookie with a bad signature", name);
+			return null;
+		}
+		return payload;
+	}
+
+	private static String sign(String payload) {
+		byte[] mac;
+		try {
+			mac = macs.get().doFinal(payload.getBytes("UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		char[] hex = new char[signatureLength];
+		for (int i=0;i<signatureLength/2;i++) {
+			hex[2*i] = HEX[(mac[i] >> 4) & 0xf];
+			hex[2*i+1] = HEX[mac[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Percent-encode what is not a letter, a digit or one of <code>-_.!*~</code>
+	 */
+	private static void encode(String s, StringBuilder sb) {
+		int l = s.length();
+		for (int i=0;i<l;i++) {
+			char c = s.charAt(i);
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+				c == '-' || c == '_' || c == '.' || c == '!' || c == '*' || c == '~') {
+				sb.append(c);
+				continue;
+			}
+			int end = Character.isHighSurrogate(c) && i + 1 < l ? i + 2 : i + 1;
+			byte[] bytes;
+			try {
+				bytes = s.substring(i, end).getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+			i = end - 1;
+			for (byte b:bytes) {
+				sb.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+			}
+		}
+	}
+
+	private static String decode(String s, int from, int to) {
+		int p = s.indexOf('%', from);
+		if (p < 0 || p >= to) {
+			return s.substring(from, to);
+		}
+		StringBuilder sb = new StringBuilder(to - from);
+		byte[] bytes = new byte[(to - from) / 3];
+		int n = 0;
+		for (int i=from;i<to;i++) {
+			char c = s.charAt(i);
+			int hi, lo;
+			if (c == '%' && i + 2 < to && (hi = Character.digit(s.charAt(i + 1), 16)) >= 0 && (lo = Character.digit(s.charAt(i + 2), 16)) >= 0) {
+				bytes[n++] = (byte)((hi << 4) | lo);
+				i += 2;
+				continue;
+			}
+			n = flush(bytes, n, sb);
+			sb.append(c);
+		}
+		flush(bytes, n, sb);
+		return sb.toString();
+	}
+
+	/**
+	 * Append decoded UTF-8 bytes
+	 * @return int 0
+	 */
+	private static int flush(byte[] bytes, int n, StringBuilder sb) {
+		if (n > 0) {
+			try {
+				sb.append(new String(bytes, 0, n, "UTF-8"));
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return 0;
+	}
+
+	private static SecretKeySpec getKey() {
+		String secret = Config.get("controller", "cookie_secret");
+		if (secret == null || secret.length() == 0) {
+			return null;
+		}
+		try {
+			return new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
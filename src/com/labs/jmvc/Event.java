@@ -0,0 +1,128 @@
+package com.labs.jmvc;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Event published through the {@link EventDispatcher}.
+ * The Server-Sent Events form is encoded once when published and shared by all subscribers.
+ * @author Benjamin Dezile
+ */
+public final class Event {
+
+	private final long id;
+	private final String topic;
+	private final String name;
+	private final Object data;
+	private final byte[] encoded;					// SSE wire format
+
+	/**
+	 * Create a new event
+	 * @param id long - Sequence number
+	 * @param topic {@link String} - Topic
+	 * @param name {@link String} - Event name, null for the default message event
+	 * @param data {@link Object} - Payload
+	 * @param text {@link String} - Payload as sent, see {@link #toText(Object)}
+	 */
+	Event(long id, String topic, String name, Object data, String text) {
+		this.id = id;
+		this.topic = topic;
+		this.name = name;
+		this.data = data;
+		this.encoded = encode(text);
+	}
+
+	/**
+	 * Return the text sent for a payload: text as is, anything else as JSON
+	 * @param data {@link Object} - Payload
+	 * @return {@link String}
+	 */
+	static String toText(Object data) {
+		return data instanceof CharSequence ? data.toString() : JsonWriter.serialize(data);
+	}
+
+	/**
+	 * Check an event name, which must fit on its SSE field line
+	 * @param name {@link String} - Event name or null
+	 * @throws IllegalArgumentException If the name contains a line break
+	 */
+	static void checkName(String name) {
+		if (name != null && (name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)) {
+			throw new IllegalArgumentException("Event names cannot contain line breaks");
+		}
+	}
+
+	/**
+	 * Return the sequence number, sent as the SSE id
+	 * @return long
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Return the topic
+	 * @return {@link String}
+	 */
+	public String getTopic() {
+		return topic;
+	}
+
+	/**
+	 * Return the event name
+	 * @return {@link String} Null for the default message event
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Return the payload
+	 * @return {@link Object}
+	 */
+	public Object getData() {
+		return data;
+	}
+
+	/**
+	 * Return the event in the SSE wire format
+	 * @return byte[] Shared, must not be modified
+	 */
+	byte[] getBytes() {
+		return encoded;
+	}
+
+	private byte[] encode(String text) {
+		StringBuilder sb = new StringBuilder(text.length() + 32);
+		sb.append("id: ").append(id).append('\n');
+		if (name != null) {
+			sb.append("event: ").append(name).append('\n');
+		}
+		int start = 0, end = 0, l = text.length();
+		for (;;) {
+			/* One data line per line of text, ended by \r\n, \r or \n as clients split them */
+			while (end < l && text.charAt(end) != '\n' && text.charAt(end) != '\r') {
+				end++;
+			}
+			sb.append("data: ").append(text, start, end).append('\n');
+			if (end == l) {
+				break;
+			}
+			if (text.charAt(end) == '\r' && end + 1 < l && text.charAt(end + 1) == '\n') {
+				end++;
+			}
+			start = ++end;
+		}
+		sb.append('\n');
+		try {
+			return sb.toString().getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return topic + "#" + id + (name != null ? " " + name : "");
+	}
+
+}
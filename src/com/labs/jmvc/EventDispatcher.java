@@ -0,0 +1,342 @@
+package com.labs.jmvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans events out to the clients subscribed to their topic, see {@link EventStream}.
+ * Each subscriber has a bounded queue: publishing never blocks, and a subscriber whose
+ * queue is full is evicted so one slow client cannot hold events for everyone.
+ * Evicted clients reconnect and catch up from the recent events each topic keeps.
+ * Configured from the controller config section:
+ * <code>events_queue</code> (events queued per subscriber, 256 by default),
+ * <code>events_history</code> (recent events kept per topic, 64 by default),
+ * <code>events_history_ttl</code> (seconds after the last event a topic nobody subscribes to
+ * is dropped with its history, 300 by default), <code>events_max_topics</code> (10000 by default:
+ * past it, events to new topics are not kept and subscriptions to new topics are refused) and
+ * <code>events_max_subscribers</code> (50 by default). Each subscriber holds a request thread
+ * for as long as its stream is open, so the limit must stay well below the connector's thread
+ * pool (<code>maxThreads</code>, 200 by default in Tomcat) or streams starve other requests.
+ * The default leaves three quarters of a default pool to other requests.
+ * @author Benjamin Dezile
+ */
+public final class EventDispatcher {
+
+	private static final int defaultMaxSubscribers = 50;							// A quarter of a default Tomcat connector pool
+	private static final Event CLOSED = new Event(-1, null, null, null, "");		// Wakes up evicted subscribers
+	private static final Comparator<Event> byId = new Comparator<Event>() {
+		@Override
+		public int compare(Event a, Event b) {
+			return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+		}
+	};
+	private static final EventDispatcher instance = new EventDispatcher(getInt("events_queue", 256), getInt("events_history", 64),
+		getInt("events_max_subscribers", defaultMaxSubscribers), getInt("events_max_topics", 10000), getInt("events_history_ttl", 300) * 1000L);
+
+	private final int queueSize;
+	private final int historySize;
+	private final int maxSubscribers;
+	private final int maxTopics;
+	private final long historyTtl;										// Milliseconds
+	private long lastSweep = System.currentTimeMillis();				// Guarded by topics
+	private final Map<String, Topic> topics = new ConcurrentHashMap<String, Topic>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicInteger subscribers = new AtomicInteger();
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Create a new dispatcher
+	 * @param queueSize int - Events queued per subscriber
+	 * @param historySize int - Recent events kept per topic
+	 * @param maxSubscribers int - Maximum number of subscribers
+	 * @param maxTopics int - Maximum number of topics
+	 * @param historyTtl long - Time in ms after its last event an unsubscribed topic is dropped
+	 */
+	EventDispatcher(int queueSize, int historySize, int maxSubscribers, int maxTopics, long historyTtl) {
+		this.queueSize = queueSize;
+		this.historySize = historySize;
+		this.maxSubscribers = maxSubscribers;
+		this.maxTopics = maxTopics;
+		this.historyTtl = historyTtl;
+	}
+
+	/**
+	 * Return the shared dispatcher
+	 * @return {@link EventDispatcher}
+	 */
+	public static EventDispatcher getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Publish an event, from any thread
+	 * @param topic {@link String} - Topic
+	 * @param name {@link String} - Event name, null for the default message event
+	 * @param data {@link Object} - Payload: text as is, anything else as JSON
+	 * @return {@link Event}
+	 */
+	public Event publish(String topic, String name, Object data) {
+		Event.checkName(name);
+		String text = Event.toText(data);
+		Event event = null;
+		List<Subscriber> slow = null;
+		while (event == null) {
+			Topic t = getTopic(topic);
+			if (t == null) {
+				/* Too many topics, nobody subscribes to this one */
+				event = new Event(sequence.incrementAndGet(), topic, name, data, text);
+				break;
+			}
+			synchronized (t) {
+				if (t.dropped) {
+					continue;
+				}
+				/* Ids follow the delivery order within a topic */
+				event = new Event(sequence.incrementAndGet(), topic, name, data, text);
+				t.history[(int)(t.next++ % historySize)] = event;
+				t.lastEvent = System.currentTimeMillis();
+				for (Subscriber s:t.subscribers) {
+					if (!s.queue.offer(event)) {
+						if (slow == null) {
+							slow = new ArrayList<Subscriber>(1);
+						}
+						slow.add(s);
+					}
+				}
+			}
+		}
+		published.incrementAndGet();
+		if (slow != null) {
+			for (Subscriber s:slow) {
+				Logger.debug("Evicting slow subscriber of {}", topic);
+				evictions.incrementAndGet();
+				s.close();
+				unsubscribe(s);
+			}
+		}
+		return event;
+	}
+
+	/**
+	 * Publish a message event
+	 * @param topic {@link String} - Topic
+	 * @param data {@link Object} - Payload: text as is, anything else as JSON
+	 * @return {@link Event}
+	 */
+	public Event publish(String topic, Object data) {
+		return publish(topic, null, data);
+	}
+
+	/**
+	 * Subscribe to topics
+	 * @param names {@link String}[] - Topics
+	 * @param lastEventId long - Id of the last event the client received, -1 for none
+	 * @return {@link Subscriber} Null if there are too many subscribers or topics
+	 */
+	Subscriber subscribe(String[] names, long lastEventId) {
+		if (subscribers.incrementAndGet() > maxSubscribers) {
+			subscribers.decrementAndGet();
+			return null;
+		}
+		Subscriber s = new Subscriber(names, queueSize);
+		List<Event> missed = new ArrayList<Event>(0);
+		for (int n=0;n<names.length;) {
+			Topic t = getTopic(names[n]);
+			if (t == null) {
+				unsubscribe(s);
+				return null;
+			}
+			synchronized (t) {
+				if (t.dropped) {
+					continue;
+				}
+				if (lastEventId >= 0) {
+					long count = Math.min(t.next, historySize);
+					for (long i=t.next-count;i<t.next;i++) {
+						Event e = t.history[(int)(i % historySize)];
+						if (e.getId() > lastEventId) {
+							missed.add(e);
+						}
+					}
+				}
+				t.subscribers.add(s);
+			}
+			n++;
+		}
+		if (!missed.isEmpty()) {
+			Collections.sort(missed, byId);
+			s.missed = missed;
+		}
+		return s;
+	}
+
+	/**
+	 * Remove a subscriber
+	 * @param s {@link Subscriber} - Subscriber
+	 */
+	void unsubscribe(Subscriber s) {
+		synchronized (s) {
+			if (s.removed) {
+				return;
+			}
+			s.removed = true;
+		}
+		for (String name:s.topics) {
+			Topic t = topics.get(name);
+			if (t != null) {
+				t.subscribers.remove(s);
+			}
+		}
+		subscribers.decrementAndGet();
+	}
+
+	/**
+	 * Return the number of connected subscribers
+	 * @return int
+	 */
+	public int getSubscriberCount() {
+		return subscribers.get();
+	}
+
+	/**
+	 * Return the number of events published
+	 * @return long
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * Return the number of slow subscribers evicted
+	 * @return long
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get a topic, creating it if needed
+	 * @return {@link Topic} Null if there are too many topics
+	 */
+	private Topic getTopic(String name) {
+		Topic t = topics.get(name);
+		if (t == null) {
+			synchronized (topics) {
+				t = topics.get(name);
+				if (t == null) {
+					long now = System.currentTimeMillis();
+					if (topics.size() >= maxTopics || now - lastSweep >= historyTtl) {
+						sweep(now);
+					}
+					if (topics.size() >= maxTopics) {
+						return null;
+					}
+					t = new Topic(historySize, now);
+					topics.put(name, t);
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Drop the topics nobody subscribes to whose last event is older than the history ttl
+	 */
+	private void sweep(long now) {
+		lastSweep = now;
+		Iterator<Topic> it = topics.values().iterator();
+		while (it.hasNext()) {
+			Topic t = it.next();
+			synchronized (t) {
+				if (t.subscribers.isEmpty() && now - t.lastEvent >= historyTtl) {
+					t.dropped = true;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	private static int getInt(String key, int defaultValue) {
+		Integer value = Config.getInt("controller", key);
+		return value != null && value > 0 ? value : defaultValue;
+	}
+
+	/**
+	 * Subscribers and recent events of a topic
+	 */
+	private static final class Topic {
+		final Set<Subscriber> subscribers = Collections.newSetFromMap(new ConcurrentHashMap<Subscriber, Boolean>());
+		final Event[] history;
+		long next = 0;							// Events published, guarded by the topic
+		long lastEvent;							// Guarded by the topic
+		boolean dropped = false;				// Removed from the topics, guarded by the topic
+		Topic(int historySize, long created) {
+			history = new Event[historySize];
+			lastEvent = created;
+		}
+	}
+
+	/**
+	 * Queue of events waiting to be sent to one client
+	 * @author Benjamin Dezile
+	 */
+	static final class Subscriber {
+
+		private final String[] topics;
+		private final BlockingQueue<Event> queue;
+		private List<Event> missed;				// Replayed before queued events
+		private volatile boolean closed = false;
+		private boolean removed = false;			// Guarded by the subscriber
+
+		Subscriber(String[] topics, int queueSize) {
+			this.topics = topics;
+			this.queue = new ArrayBlockingQueue<Event>(queueSize);
+		}
+
+		/**
+		 * Wait for the next event
+		 * @param timeout long - Maximum wait in milliseconds, 0 to return at once
+		 * @return {@link Event} Null on timeout or once closed
+		 * @throws InterruptedException
+		 */
+		Event next(long timeout) throws InterruptedException {
+			if (missed != null) {
+				Event e = missed.remove(0);
+				if (missed.isEmpty()) {
+					missed = null;
+				}
+				return e;
+			}
+			Event e = timeout > 0 ? queue.poll(timeout, TimeUnit.MILLISECONDS) : queue.poll();
+			return e == CLOSED ? null : e;
+		}
+
+		/**
+		 * Return whether the subscriber was evicted
+		 * @return boolean
+		 */
+		boolean isClosed() {
+			return closed;
+		}
+
+		private void close() {
+			closed = true;
+			queue.clear();
+			queue.offer(CLOSED);
+		}
+
+	}
+
+}
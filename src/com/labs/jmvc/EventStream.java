@@ -0,0 +1,178 @@
+package com.labs.jmvc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Action result keeping the connection open to push events published to topics through the {@link EventDispatcher}.
+ * Clients accepting <code>text/event-stream</code> get Server-Sent Events, with a comment sent as heartbeat when
+ * nothing was published for a while so proxies keep the connection. Other clients long-poll: the response is sent
+ * as JSON as soon as events are available or the poll times out, and the next poll passes the
+ * <code>last_event_id</code> it received. Reconnecting clients get the events they missed from the topic history.
+ * Configured from the controller config section: <code>events_heartbeat</code> (15s by default),
+ * <code>events_poll_timeout</code> (25s by default) and <code>events_max_duration</code> after which
+ * event streams are closed and clients reconnect (600s by default).
+ * Each open stream holds a request thread, so the number of subscribers is bounded by
+ * <code>events_max_subscribers</code>, to be kept well below the connector's thread pool.
+ * @author Benjamin Dezile
+ */
+public final class EventStream {
+
+	private static final String contentType = "text/event-stream";
+	private static final String lastEventIdHeader = "Last-Event-ID";
+	private static final String lastEventIdParam = "last_event_id";
+	private static final long heartbeat = getMillis("events_heartbeat", 15);
+	private static final long pollTimeout = getMillis("events_poll_timeout", 25);
+	private static final long maxDuration = getMillis("events_max_duration", 600);
+	private static final int retry = 3000;						// Reconnection delay sent to clients, in ms
+	private static final byte[] HEARTBEAT = { ':', '\n', '\n' };
+
+	private final String[] topics;
+
+	private EventStream(String[] topics) {
+		this.topics = topics;
+	}
+
+	/**
+	 * Stream events of the given topics
+	 * @param topics {@link String}... - Topics
+	 * @return {@link EventStream}
+	 */
+	public static EventStream of(String... topics) {
+		if (topics.length == 0) {
+			throw new IllegalArgumentException("No topic to stream");
+		}
+		return new EventStream(topics.clone());
+	}
+
+	/**
+	 * Send events to the client until it leaves, the subscriber is evicted or the stream times out
+	 * @param context {@link Context} - Current request context
+	 * @throws IOException
+	 */
+	void stream(Context context) throws IOException {
+		HttpServletRequest request = context.getRequest();
+		HttpServletResponse response = context.getResponse();
+		EventDispatcher dispatcher = EventDispatcher.getInstance();
+		EventDispatcher.Subscriber s = dispatcher.subscribe(topics, getLastEventId(request));
+		if (s == null) {
+			Logger.warn("Too many event subscribers or topics, rejecting {}", request.getRequestURI());
+			response.setHeader("Retry-After", String.valueOf(heartbeat / 1000));
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many subscribers");
+			return;
+		}
+		/* Held open until events come, not slow */
+		RequestTrace.markStreamed();
+		try {
+			String accept = request.getHeader("Accept");
+			if (accept != null && accept.contains(contentType)) {
+				push(s, response);
+			} else {
+				poll(s, context);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			dispatcher.unsubscribe(s);
+		}
+	}
+
+	/**
+	 * Server-Sent Events
+	 */
+	private void push(EventDispatcher.Subscriber s, HttpServletResponse response) throws IOException, InterruptedException {
+		response.setContentType(contentType);
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("X-Accel-Buffering", "no");			// Tell nginx not to buffer
+		BufferedResponse.unbuffer(response);
+		OutputStream out = response.getOutputStream();
+		try {
+			out.write(("retry: " + retry + "\n\n").getBytes("UTF-8"));
+			out.flush();
+			long end = System.currentTimeMillis() + maxDuration;
+			long wait;
+			while ((wait = end - System.currentTimeMillis()) > 0) {
+				Event e = s.next(Math.min(wait, heartbeat));
+				if (e == null) {
+					if (s.isClosed()) {
+						break;
+					}
+					out.write(HEARTBEAT);
+				} else {
+					/* Send what is already queued in one flush */
+					do {
+						out.write(e.getBytes());
+					} while ((e = s.next(0)) != null);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			/* Client went away */
+			Logger.debug("Event stream closed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Long-polling
+	 */
+	private void poll(EventDispatcher.Subscriber s, Context context) throws IOException, InterruptedException {
+		List<Event> events = new ArrayList<Event>();
+		Event e = s.next(pollTimeout);
+		while (e != null) {
+			events.add(e);
+			e = s.next(0);
+		}
+		HttpServletResponse response = context.getResponse();
+		response.setHeader("Cache-Control", "no-cache");
+		if (!context.responseHasMimeType()) {
+			context.asJSON();
+		}
+		response.setCharacterEncoding("UTF-8");
+		JsonWriter out = new JsonWriter(response.getOutputStream());
+		out.beginObject().name("events").beginArray();
+		long last = -1;
+		for (Event event:events) {
+			out.beginObject();
+			out.name("id").value(event.getId());
+			out.name("topic").value(event.getTopic());
+			if (event.getName() != null) {
+				out.name("event").value(event.getName());
+			}
+			out.name("data").value(event.getData());
+			out.endObject();
+			last = Math.max(last, event.getId());
+		}
+		out.endArray();
+		if (last >= 0) {
+			out.name(lastEventIdParam).value(last);
+		}
+		out.endObject();
+		out.close();
+	}
+
+	private static long getLastEventId(HttpServletRequest request) {
+		String id = request.getHeader(lastEventIdHeader);
+		if (id == null) {
+			id = request.getParameter(lastEventIdParam);
+		}
+		if (id != null) {
+			try {
+				return Long.parseLong(id.trim());
+			} catch (NumberFormatException e) {
+				Logger.debug("Ignoring invalid event id: {}", id);
+			}
+		}
+		return -1;
+	}
+
+	private static long getMillis(String key, int defaultValue) {
+		Integer value = Config.getInt("controller", key);
+		return (value != null && value > 0 ? value : defaultValue) * 1000L;
+	}
+
+}
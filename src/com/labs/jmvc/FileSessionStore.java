@@ -0,0 +1,454 @@
+package com.labs.jmvc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Session store kept in a memory-mapped file, so sessions survive restarts.
+ * The file is split into fixed-size slots, one per session; only the slot index lives on the heap.
+ * Values are written in a compact tagged format instead of Java serialization, so only
+ * {@link String}, {@link Integer}, {@link Long}, {@link Double}, {@link Boolean} and byte[] values are accepted.
+ * Configured from the controller config section: <code>session_file</code>
+ * (<code>&lt;tmp dir&gt;/&lt;application name&gt;-sessions.dat</code> by default), <code>session_max</code>
+ * (number of slots, 100000 by default), <code>session_slot_size</code> (bytes, 1024 by default),
+ * <code>session_idle_timeout</code> (seconds, 1800 by default) and <code>session_stripes</code> (16 by default).
+ * Changing the slot size, slot count or stripes discards the stored sessions.
+ * @author Benjamin Dezile
+ */
+public class FileSessionStore extends SessionStore {
+
+	private static final int MAGIC = 0x4a4d5653;
+	private static final int VERSION = 1;
+	private static final int headerSize = 64;
+	private static final int maxIdLength = 64;
+	/* Slot layout */
+	private static final int STATE = 0;								// int, 1 if used
+	private static final int LAST_ACCESS = 4;						// long
+	private static final int ID_LENGTH = 12;						// byte
+	private static final int ID = 13;								// maxIdLength bytes
+	private static final int DATA_LENGTH = ID + maxIdLength;		// int
+	private static final int DATA = DATA_LENGTH + 4;
+	/* Value tags */
+	private static final byte NULL = 0, STRING = 1, INT = 2, LONG = 3, DOUBLE = 4, BOOLEAN = 5, BYTES = 6;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer map;
+	private final Stripe[] stripes;
+	private final int slotSize;
+	private final long idleTimeout;									// Milliseconds
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public FileSessionStore() {
+		this(new File(getPath()), getInt("session_max", 100000), getInt("session_slot_size", 1024),
+			getInt("session_idle_timeout", 1800), getInt("session_stripes", 16));
+	}
+
+	/**
+	 * Open a store, loading the sessions it already holds
+	 * @param path {@link File} - File
+	 * @param slots int - Maximum number of sessions
+	 * @param slotSize int - Bytes per session
+	 * @param idleTimeout int - Seconds after which an unused session expires
+	 * @param stripeCount int - Number of stripes
+	 */
+	public FileSessionStore(File path, int slots, int slotSize, int idleTimeout, int stripeCount) {
+		if (slotSize <= DATA + 16) {
+			throw new IllegalArgumentException("Session slot size too small: " + slotSize);
+		}
+		long length = headerSize + (long)slots * slotSize;
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Session file too large: " + slots + " x " + slotSize);
+		}
+		this.slotSize = slotSize;
+		this.idleTimeout = idleTimeout * 1000L;
+		this.stripes = new Stripe[Math.min(stripeCount, slots)];
+		try {
+			file = new RandomAccessFile(path, "rw");
+			boolean reset = file.length() != length;
+			if (reset) {
+				file.setLength(0);
+				file.setLength(length);
+			}
+			map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			if (!reset && (map.getInt(0) != MAGIC || map.getInt(4) != VERSION || map.getInt(8) != slotSize ||
+				map.getInt(12) != slots || map.getInt(16) != stripes.length)) {
+				Logger.warn("Discarding incompatible session file {}", path);
+				for (int i=0;i<slots;i++) {
+					map.putInt(offset(i) + STATE, 0);
+				}
+			}
+			map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slotSize).putInt(12, slots).putInt(16, stripes.length);
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open session file " + path, e);
+		}
+		for (int i=0;i<stripes.length;i++) {
+			stripes[i] = new Stripe(map.duplicate(), slotSize - DATA);
+		}
+		load(slots);
+	}
+
+	private static String getPath() {
+		String path = Config.get("controller", "session_file");
+		return path != null ? path : new File(System.getProperty("java.io.tmpdir"), Config.get("application", "name") + "-sessions.dat").getPath();
+	}
+
+	private int offset(int slot) {
+		return headerSize + slot * slotSize;
+	}
+
+	/**
+	 * Index the live sessions found in the file, least recently used first
+	 */
+	private void load(int slots) {
+		long now = System.currentTimeMillis();
+		List<long[]> live = new ArrayList<long[]>();
+		List<String> ids = new ArrayList<String>();
+		byte[] id = new byte[maxIdLength];
+		for (int i=slots-1;i>=0;i--) {
+			int off = offset(i);
+			Stripe stripe = stripes[i % stripes.length];
+			int idLength = map.get(off + ID_LENGTH);
+			int dataLength = map.getInt(off + DATA_LENGTH);
+			if (map.getInt(off + STATE) == 1 && idLength > 0 && idLength <= maxIdLength && dataLength >= 0 && dataLength <= slotSize - DATA &&
+				map.getLong(off + LAST_ACCESS) + idleTimeout > now) {
+				stripe.buf.position(off + ID);
+				stripe.buf.get(id, 0, idLength);
+				String s = new String(id, 0, idLength);
+				if (stripe(s) == stripe) {
+					live.add(new long[] { map.getLong(off + LAST_ACCESS), i, ids.size() });
+					ids.add(s);
+					continue;
+				}
+			}
+			map.putInt(off + STATE, 0);
+			stripe.free.add(i);
+		}
+		Collections.sort(live, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] > b[0] ? 1 : 0);
+			}
+		});
+		for (long[] s:live) {
+			String sid = ids.get((int)s[2]);
+			stripe(sid).index.put(sid, (int)s[1]);
+		}
+		Logger.info("Loaded {} sessions from the session file", live.size());
+	}
+
+	private Stripe stripe(String id) {
+		return stripes[(id.hashCode() & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Get the slot of a live session, dropping expired ones on the way
+	 * @return int Slot or -1
+	 */
+	private int lookup(Stripe stripe, String id, long now) {
+		Iterator<Map.Entry<String, Integer>> it = stripe.index.entrySet().iterator();
+		while (it.hasNext()) {
+			int slot = it.next().getValue();
+			if (map.getLong(offset(slot) + LAST_ACCESS) + idleTimeout > now) {
+				break;
+			}
+			it.remove();
+			release(stripe, slot);
+			expirations.incrementAndGet();
+		}
+		Integer slot = stripe.index.get(id);
+		if (slot == null) {
+			return -1;
+		}
+		map.putLong(offset(slot) + LAST_ACCESS, now);
+		return slot;
+	}
+
+	private void release(Stripe stripe, int slot) {
+		map.putInt(offset(slot) + STATE, 0);
+		stripe.free.add(slot);
+	}
+
+	@Override
+	public boolean contains(String id) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			return lookup(stripe, id, System.currentTimeMillis()) >= 0;
+		}
+	}
+
+	@Override
+	public Object get(String id, String name) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			int slot = lookup(stripe, id, System.currentTimeMillis());
+			if (slot < 0) {
+				return null;
+			}
+			ByteBuffer buf = stripe.buf;
+			int off = offset(slot);
+			try {
+				buf.limit(off + DATA + map.getInt(off + DATA_LENGTH)).position(off + DATA);
+				while (buf.hasRemaining()) {
+					String n = readString(buf, buf.getShort() & 0xffff);
+					Object value = read(buf);
+					if (n.equals(name)) {
+						return value;
+					}
+				}
+			} catch (RuntimeException e) {
+				discard(stripe, id, slot, e);
+			} finally {
+				buf.clear();
+			}
+			return null;
+		}
+	}
+
+	@Override
+	public void put(String id, String name, Object value) {
+		if (id.length() > maxIdLength) {
+			throw new IllegalArgumentException("Session id too long");
+		}
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			long now = System.currentTimeMillis();
+			int slot = lookup(stripe, id, now);
+			Map<String, Object> values = slot >= 0 ? readAll(stripe, id, slot) : null;
+			if (values == null) {
+				/* New or corrupt session */
+				slot = -1;
+				values = new LinkedHashMap<String, Object>(4);
+			}
+			values.put(name, value);
+			int length = encode(stripe, values);
+			if (slot < 0) {
+				slot = allocate(stripe);
+				int off = offset(slot);
+				byte[] b = id.getBytes();
+				map.putLong(off + LAST_ACCESS, now);
+				map.put(off + ID_LENGTH, (byte)b.length);
+				stripe.buf.position(off + ID);
+				stripe.buf.put(b);
+				stripe.buf.clear();
+				stripe.index.put(id, slot);
+			}
+			write(stripe, slot, length);
+		}
+	}
+
+	@Override
+	public void remove(String id, String name) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			int slot = lookup(stripe, id, System.currentTimeMillis());
+			if (slot >= 0) {
+				Map<String, Object> values = readAll(stripe, id, slot);
+				if (values != null && values.containsKey(name)) {
+					values.remove(name);
+					write(stripe, slot, encode(stripe, values));
+				}
+			}
+		}
+	}
+
+	@Override
+	public void invalidate(String id) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			Integer slot = stripe.index.remove(id);
+			if (slot != null) {
+				release(stripe, slot);
+			}
+		}
+	}
+
+	@Override
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe:stripes) {
+			synchronized (stripe) {
+				size += stripe.index.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Flush the mapped file to disk and close it
+	 */
+	@Override
+	public void close() {
+		map.force();
+		try {
+			file.close();
+		} catch (IOException e) {
+			Logger.error("Could not close session file", e);
+		}
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Take a free slot, evicting the least recently used session if there is none
+	 */
+	private int allocate(Stripe stripe) {
+		if (stripe.free.isEmpty()) {
+			Iterator<Integer> it = stripe.index.values().iterator();
+			int slot = it.next();
+			it.remove();
+			evictions.incrementAndGet();
+			return slot;
+		}
+		return stripe.free.remove(stripe.free.size() - 1);
+	}
+
+	/**
+	 * Decode all the values of a session
+	 * @return {@link Map} Null if the slot could not be decoded, the session is then dropped
+	 */
+	private Map<String, Object> readAll(Stripe stripe, String id, int slot) {
+		Map<String, Object> values = new LinkedHashMap<String, Object>(4);
+		ByteBuffer buf = stripe.buf;
+		int off = offset(slot);
+		try {
+			buf.limit(off + DATA + map.getInt(off + DATA_LENGTH)).position(off + DATA);
+			while (buf.hasRemaining()) {
+				String n = readString(buf, buf.getShort() & 0xffff);
+				values.put(n, read(buf));
+			}
+		} catch (RuntimeException e) {
+			discard(stripe, id, slot, e);
+			return null;
+		} finally {
+			buf.clear();
+		}
+		return values;
+	}
+
+	/**
+	 * Drop a session whose slot cannot be decoded, e.g. torn by a crash while it was written
+	 */
+	private void discard(Stripe stripe, String id, int slot, RuntimeException e) {
+		Logger.warn("Dropping corrupt session {}: {}", id, e);
+		stripe.index.remove(id);
+		release(stripe, slot);
+	}
+
+	/**
+	 * Encode values into the stripe scratch buffer
+	 * @return int Encoded length
+	 */
+	private int encode(Stripe stripe, Map<String, Object> values) {
+		ByteBuffer out = stripe.scratch;
+		out.clear();
+		try {
+			for (Map.Entry<String, Object> e:values.entrySet()) {
+				byte[] n = utf8(e.getKey());
+				out.putShort((short)n.length).put(n);
+				Object v = e.getValue();
+				if (v == null) {
+					out.put(NULL);
+				} else if (v instanceof String) {
+					byte[] b = utf8((String)v);
+					out.put(STRING).putInt(b.length).put(b);
+				} else if (v instanceof Integer) {
+					out.put(INT).putInt((Integer)v);
+				} else if (v instanceof Long) {
+					out.put(LONG).putLong((Long)v);
+				} else if (v instanceof Double) {
+					out.put(DOUBLE).putDouble((Double)v);
+				} else if (v instanceof Boolean) {
+					out.put(BOOLEAN).put((byte)((Boolean)v ? 1 : 0));
+				} else if (v instanceof byte[]) {
+					byte[] b = (byte[])v;
+					out.put(BYTES).putInt(b.length).put(b);
+				} else {
+					throw new IllegalArgumentException("Unsupported session value type: " + v.getClass().getName());
+				}
+			}
+		} catch (BufferOverflowException e) {
+			throw new IllegalArgumentException("Session values exceed " + out.capacity() + " bytes");
+		}
+		return out.position();
+	}
+
+	private void write(Stripe stripe, int slot, int length) {
+		int off = offset(slot);
+		stripe.buf.position(off + DATA);
+		stripe.buf.put(stripe.scratch.array(), 0, length);
+		stripe.buf.clear();
+		map.putInt(off + DATA_LENGTH, length);
+		map.putInt(off + STATE, 1);
+	}
+
+	private static Object read(ByteBuffer buf) {
+		byte tag = buf.get();
+		switch (tag) {
+			case NULL: return null;
+			case STRING: return readString(buf, buf.getInt());
+			case INT: return buf.getInt();
+			case LONG: return buf.getLong();
+			case DOUBLE: return buf.getDouble();
+			case BOOLEAN: return buf.get() != 0;
+			case BYTES:
+				byte[] b = new byte[buf.getInt()];
+				buf.get(b);
+				return b;
+			default: throw new BufferUnderflowException();
+		}
+	}
+
+	private static String readString(ByteBuffer buf, int length) {
+		byte[] b = new byte[length];
+		buf.get(b);
+		try {
+			return new String(b, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Slots sharing a lock. Slot i belongs to stripe i % stripes.
+	 */
+	private static final class Stripe {
+		private final ByteBuffer buf;										// View of the file used under the lock
+		private final ByteBuffer scratch;									// Encoding buffer
+		private final LinkedHashMap<String, Integer> index = new LinkedHashMap<String, Integer>(64, 0.75f, true);
+		private final List<Integer> free = new ArrayList<Integer>();
+		Stripe(ByteBuffer buf, int capacity) {
+			this.buf = buf;
+			this.scratch = ByteBuffer.allocate(capacity);
+		}
+	}
+
+}
@@ -0,0 +1,129 @@
+package com.labs.jmvc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear latency histogram.
+ * Values are counted in buckets covering ~12% each, which bounds the error on percentiles
+ * while recording stays a couple of atomic increments.
+ * @author Benjamin Dezile
+ */
+public class Histogram {
+
+	private static final int subBits = 3;
+	private static final int subCount = 1 << subBits;						// Buckets per power of two
+	private static final int maxExponent = 42;								// ~73 minutes in nanoseconds
+	private static final int bucketCount = subCount + (maxExponent - subBits + 1) * subCount;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a value
+	 * @param value long - Value, e.g. a duration in nanoseconds
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			/* Retry */
+		}
+	}
+
+	/**
+	 * Return the number of recorded values
+	 * @return long
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Return the sum of recorded values
+	 * @return long
+	 */
+	public long getSum() {
+		return sum.get();
+	}
+
+	/**
+	 * Return the largest recorded value
+	 * @return long
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Return the mean of recorded values
+	 * @return double
+	 */
+	public double getMean() {
+		long c = count.get();
+		return c > 0 ? (double)sum.get() / c : 0;
+	}
+
+	/**
+	 * Estimate a percentile
+	 * @param p double - Percentile between 0 and 100
+	 * @return long Upper bound of the bucket holding the percentile
+	 */
+	public long getPercentile(double p) {
+		long total = 0;
+		long[] counts = new long[bucketCount];
+		for (int i=0;i<bucketCount;i++) {
+			total += (counts[i] = buckets.get(i));
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long)Math.ceil(total * Math.min(Math.max(p, 0), 100) / 100.0);
+		long seen = 0;
+		for (int i=0;i<bucketCount;i++) {
+			if ((seen += counts[i]) >= rank && counts[i] > 0) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Bucket of a value
+	 * @param value long - Value
+	 * @return int
+	 */
+	static int indexOf(long value) {
+		if (value < subCount) {
+			return (int)value;
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		if (exp > maxExponent) {
+			return bucketCount - 1;
+		}
+		int sub = (int)(value >>> (exp - subBits)) & (subCount - 1);
+		return subCount + (exp - subBits) * subCount + sub;
+	}
+
+	/**
+	 * Largest value counted in a bucket
+	 * @param index int - Bucket
+	 * @return long
+	 */
+	static long upperBound(int index) {
+		if (index < subCount) {
+			return index;
+		}
+		int exp = (index - subCount) / subCount + subBits;
+		int sub = (index - subCount) % subCount;
+		return ((long)(subCount | sub) << (exp - subBits)) + (1L << (exp - subBits)) - 1;
+	}
+
+}
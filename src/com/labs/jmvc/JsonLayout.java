@@ -0,0 +1,157 @@
+package com.labs.jmvc;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import org.apache.log4j.Layout;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+/**
+ * Log layout writing one JSON object per line, e.g.
+ * <code>{"time":"2012-03-01T10:00:00.000Z","level":"ERROR","logger":"jmvc","thread":"http-8080-1",
+ * "message":"Controller exception","fingerprint":"9f3a...","error":{"type":"...","message":"...","stack":[...]}}</code>.
+ * Records logged while a request is handled carry its <code>request_id</code>.
+ * Errors logged through {@link Logger#error(String, Throwable)} carry their fingerprint and,
+ * after a burst, the number of identical errors suppressed. Records are built in a buffer reused
+ * from one record to the next.
+ * @author Benjamin Dezile
+ */
+final class JsonLayout extends Layout {
+
+	private static final int maxFrames = 64;				// Frames kept per exception
+	private static final int maxCauses = 8;
+	private static final int maxBufferSize = 65536;			// Larger buffers are not kept
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+	private StringBuilder buf = new StringBuilder(1024);
+	private long second = -1;							// Second of the cached date
+	private String date;
+
+	JsonLayout() {
+		dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+	}
+
+	/**
+	 * Shared by the appenders, which each hold their own lock
+	 */
+	@Override
+	public synchronized String format(LoggingEvent event) {
+		StringBuilder sb = buf;
+		sb.setLength(0);
+		long time = event.timeStamp;
+		if (time / 1000 != second) {
+			second = time / 1000;
+			date = dateFormat.format(new Date(second * 1000));
+		}
+		int millis = (int)(time % 1000);
+		sb.append("{\"time\":\"").append(date).append('.');
+		sb.append((char)('0' + millis / 100)).append((char)('0' + millis / 10 % 10)).append((char)('0' + millis % 10)).append("Z\"");
+		sb.append(",\"level\":\"").append(event.getLevel()).append('"');
+		field(sb, "logger", event.getLoggerName());
+		field(sb, "thread", event.getThreadName());
+		Object requestId = event.getMDC(RequestTrace.MDC_KEY);
+		if (requestId != null) {
+			field(sb, "request_id", requestId.toString());
+		}
+		Object message = event.getMessage();
+		if (message instanceof Logger.ErrorMessage) {
+			Logger.ErrorMessage error = (Logger.ErrorMessage)message;
+			field(sb, "message", error.message);
+			field(sb, "fingerprint", error.getFingerprint());
+			if (error.suppressed > 0) {
+				sb.append(",\"suppressed\":").append(error.suppressed);
+			}
+		} else {
+			field(sb, "message", event.getRenderedMessage());
+		}
+		ThrowableInformation info = event.getThrowableInformation();
+		if (info != null && info.getThrowable() != null) {
+			sb.append(",\"error\":");
+			error(sb, info.getThrowable(), 0);
+		}
+		sb.append("}").append(LINE_SEP);
+		String record = sb.toString();
+		if (sb.capacity() > maxBufferSize) {
+			buf = new StringBuilder(1024);
+		}
+		return record;
+	}
+
+	private static void error(StringBuilder sb, Throwable e, int depth) {
+		sb.append("{\"type\":");
+		quote(sb, e.getClass().getName());
+		if (e.getMessage() != null) {
+			field(sb, "message", e.getMessage());
+		}
+		sb.append(",\"stack\":[");
+		StackTraceElement[] stack = e.getStackTrace();
+		int n = Math.min(stack.length, maxFrames);
+		for (int i=0;i<n;i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			quote(sb, stack[i].toString());
+		}
+		if (stack.length > n) {
+			sb.append(",\"... ").append(stack.length - n).append(" more\"");
+		}
+		sb.append(']');
+		Throwable cause = e.getCause();
+		if (cause != null && cause != e && depth < maxCauses) {
+			sb.append(",\"cause\":");
+			error(sb, cause, depth + 1);
+		}
+		sb.append('}');
+	}
+
+	private static void field(StringBuilder sb, String name, String value) {
+		sb.append(",\"").append(name).append("\":");
+		if (value == null) {
+			sb.append("null");
+		} else {
+			quote(sb, value);
+		}
+	}
+
+	private static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		int l = s.length();
+		for (int i=0;i<l;i++) {
+			char c = s.charAt(i);
+			switch (c) {
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+						sb.append("\\u").append(HEX[c >> 12]).append(HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+					} else {
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Exceptions are part of the record
+	 */
+	@Override
+	public boolean ignoresThrowable() {
+		return false;
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/json";
+	}
+
+	@Override
+	public void activateOptions() {
+	}
+
+}
@@ -0,0 +1,554 @@
+package com.labs.jmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Streaming JSON generator encoding UTF-8 straight into an output stream.
+ * Plain objects are serialized from their public getters and fields,
+ * which are looked up once per class and cached.
+ * @author Benjamin Dezile
+ */
+public class JsonWriter {
+
+	private static final int defaultBufferSize = 8192;
+	private static final int maxDepth = 64;									// Protects against cycles
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final Map<Class<?>, Property[]> properties = new ConcurrentHashMap<Class<?>, Property[]>();	// Cached class metadata
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int pos = 0;
+	private final boolean[] hasElements = new boolean[maxDepth + 1];		// Whether the current container needs a comma
+	private int depth = 0;
+	private boolean afterName = false;
+
+	/**
+	 * Create a new JSON writer
+	 * @param out {@link OutputStream} - Destination
+	 */
+	public JsonWriter(OutputStream out) {
+		this(out, defaultBufferSize);
+	}
+
+	/**
+	 * Create a new JSON writer
+	 * @param out {@link OutputStream} - Destination
+	 * @param bufferSize int - Size of the buffer flushed to the destination
+	 */
+	public JsonWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buf = new byte[Math.max(bufferSize, 16)];
+	}
+
+	/**
+	 * Start an object
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter beginObject() throws IOException {
+		return open('{');
+	}
+
+	/**
+	 * End the current object
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter endObject() throws IOException {
+		return close('}');
+	}
+
+	/**
+	 * Start an array
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter beginArray() throws IOException {
+		return open('[');
+	}
+
+	/**
+	 * End the current array
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter endArray() throws IOException {
+		return close(']');
+	}
+
+	/**
+	 * Write a member name in the current object
+	 * @param name {@link String} - Name
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter name(String name) throws IOException {
+		separator();
+		string(name);
+		write(':');
+		afterName = true;
+		return this;
+	}
+
+	/**
+	 * Write a string value
+	 * @param value {@link CharSequence} - Value
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter value(CharSequence value) throws IOException {
+		if (value == null) {
+			return nullValue();
+		}
+		separator();
+		string(value);
+		return this;
+	}
+
+	/**
+	 * Write a number value
+	 * @param value long - Value
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter value(long value) throws IOException {
+		separator();
+		number(value);
+		return this;
+	}
+
+	/**
+	 * Write a number value
+	 * @param value double - Value, null if not finite
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter value(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			return nullValue();
+		}
+		if (value == (long)value && Math.abs(value) < 1e15) {
+			return value((long)value);
+		}
+		separator();
+		ascii(Double.toString(value));
+		return this;
+	}
+
+	/**
+	 * Write a boolean value
+	 * @param value boolean - Value
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter value(boolean value) throws IOException {
+		separator();
+		write(value ? TRUE : FALSE);
+		return this;
+	}
+
+	/**
+	 * Write a null value
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	public JsonWriter nullValue() throws IOException {
+		separator();
+		write(NULL);
+		return this;
+	}
+
+	/**
+	 * Write any value: JSON objects and arrays, maps, collections, arrays,
+	 * iterators, primitives and plain objects (from their getters and public fields)
+	 * @param value {@link Object} - Value
+	 * @return {@link JsonWriter}
+	 * @throws IOException
+	 */
+	@SuppressWarnings("unchecked")
+	public JsonWriter value(Object value) throws IOException {
+		if (value == null || value == JSONObject.NULL) {
+			return nullValue();
+		} else if (value instanceof CharSequence) {
+			return value((CharSequence)value);
+		} else if (value instanceof Number) {
+			if (value instanceof Double || value instanceof Float) {
+				return value(((Number)value).doubleValue());
+			} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+				return value(((Number)value).longValue());
+			}
+			separator();
+			ascii(value.toString());
+			return this;
+		} else if (value instanceof Boolean) {
+			return value(((Boolean)value).booleanValue());
+		} else if (value instanceof Character || value instanceof Enum) {
+			return value(value.toString());
+		} else if (value instanceof JSONObject) {
+			JSONObject obj = (JSONObject)value;
+			beginObject();
+			Iterator<String> keys = (Iterator<String>)obj.keys();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				name(key).value(obj.opt(key));
+			}
+			return endObject();
+		} else if (value instanceof JSONArray) {
+			JSONArray array = (JSONArray)value;
+			beginArray();
+			for (int i=0;i<array.length();i++) {
+				value(array.opt(i));
+			}
+			return endArray();
+		} else if (value instanceof Map) {
+			beginObject();
+			for (Map.Entry<Object,Object> e:((Map<Object,Object>)value).entrySet()) {
+				name(String.valueOf(e.getKey())).value(e.getValue());
+			}
+			return endObject();
+		} else if (value instanceof Iterable) {
+			return values(((Iterable<Object>)value).iterator());
+		} else if (value instanceof Iterator) {
+			return values((Iterator<Object>)value);
+		} else if (value.getClass().isArray()) {
+			beginArray();
+			int l = Array.getLength(value);
+			for (int i=0;i<l;i++) {
+				value(Array.get(value, i));
+			}
+			return endArray();
+		}
+		return bean(value);
+	}
+
+	/**
+	 * Flush buffered output to the destination
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		if (pos > 0) {
+			out.write(buf, 0, pos);
+			pos = 0;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Flush and close the destination
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		flush();
+		out.close();
+	}
+
+	/**
+	 * Serialize a value to a string, mostly for logs and tests
+	 * @param value {@link Object} - Value
+	 * @return {@link String}
+	 */
+	public static String serialize(Object value) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			new JsonWriter(bytes, 256).value(value).flush();
+			return bytes.toString("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*************  INTERNALS  ***************/
+
+	private JsonWriter values(Iterator<Object> it) throws IOException {
+		beginArray();
+		while (it.hasNext()) {
+			value(it.next());
+		}
+		return endArray();
+	}
+
+	private JsonWriter bean(Object value) throws IOException {
+		Property[] props = getProperties(value.getClass());
+		beginObject();
+		for (Property p:props) {
+			Object v;
+			try {
+				v = p.get(value);
+			} catch (Exception e) {
+				/* Report what the getter threw rather than the reflection wrapper */
+				Throwable cause = e instanceof InvocationTargetException ? ((InvocationTargetException)e).getTargetException() : e;
+				IOException error = new IOException("Could not read " + p.name + " from " + value.getClass().getName() + ": " + cause);
+				error.initCause(cause);
+				throw error;
+			}
+			separator();
+			write(p.encodedName);
+			afterName = true;
+			value(v);
+		}
+		return endObject();
+	}
+
+	private JsonWriter open(char c) throws IOException {
+		if (depth == maxDepth) {
+			throw new IOException("JSON nested too deep, is there a cycle?");
+		}
+		separator();
+		write(c);
+		hasElements[++depth] = false;
+		return this;
+	}
+
+	private JsonWriter close(char c) throws IOException {
+		if (depth == 0) {
+			throw new IllegalStateException("Nothing to close");
+		}
+		depth--;
+		write(c);
+		return this;
+	}
+
+	/**
+	 * Write a comma if needed before the next element
+	 * @throws IOException
+	 */
+	private void separator() throws IOException {
+		if (afterName) {
+			afterName = false;
+			return;
+		}
+		if (hasElements[depth]) {
+			write(',');
+		}
+		hasElements[depth] = true;
+	}
+
+	private void number(long v) throws IOException {
+		if (v == Long.MIN_VALUE) {
+			ascii(Long.toString(v));
+			return;
+		}
+		if (pos + 20 > buf.length) {
+			flushBuffer();
+		}
+		if (v < 0) {
+			buf[pos++] = '-';
+			v = -v;
+		}
+		int start = pos;
+		do {
+			buf[pos++] = (byte)('0' + (v % 10));
+			v /= 10;
+		} while (v > 0);
+		for (int i=start, j=pos-1;i<j;i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+	}
+
+	private void string(CharSequence s) throws IOException {
+		write('"');
+		int l = s.length();
+		for (int i=0;i<l;i++) {
+			char c = s.charAt(i);
+			if (pos + 6 > buf.length) {
+				flushBuffer();
+			}
+			if (c < 0x80) {
+				switch (c) {
+				case '"': buf[pos++] = '\\'; buf[pos++] = '"'; break;
+				case '\\': buf[pos++] = '\\'; buf[pos++] = '\\'; break;
+				case '\n': buf[pos++] = '\\'; buf[pos++] = 'n'; break;
+				case '\r': buf[pos++] = '\\'; buf[pos++] = 'r'; break;
+				case '\t': buf[pos++] = '\\'; buf[pos++] = 't'; break;
+				case '\b': buf[pos++] = '\\'; buf[pos++] = 'b'; break;
+				case '\f': buf[pos++] = '\\'; buf[pos++] = 'f'; break;
+				case '/':
+					/* Escape </ so JSON can be embedded in a script tag */
+					if (i > 0 && s.charAt(i - 1) == '<') {
+						buf[pos++] = '\\';
+					}
+					buf[pos++] = '/';
+					break;
+				default:
+					if (c < ' ') {
+						unicodeEscape(c);
+					} else {
+						buf[pos++] = (byte)c;
+					}
+				}
+			} else if (c < 0x800) {
+				buf[pos++] = (byte)(0xc0 | (c >> 6));
+				buf[pos++] = (byte)(0x80 | (c & 0x3f));
+			} else if (c == 0x2028 || c == 0x2029) {
+				/* Line separators break JavaScript string literals */
+				unicodeEscape(c);
+			} else if (Character.isHighSurrogate(c) && i + 1 < l && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buf[pos++] = (byte)(0xf0 | (cp >> 18));
+				buf[pos++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+				buf[pos++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+				buf[pos++] = (byte)(0x80 | (cp & 0x3f));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				/* Unpaired surrogate */
+				unicodeEscape(c);
+			} else {
+				buf[pos++] = (byte)(0xe0 | (c >> 12));
+				buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+				buf[pos++] = (byte)(0x80 | (c & 0x3f));
+			}
+		}
+		write('"');
+	}
+
+	private void unicodeEscape(char c) {
+		buf[pos++] = '\\';
+		buf[pos++] = 'u';
+		buf[pos++] = HEX[(c >> 12) & 0xf];
+		buf[pos++] = HEX[(c >> 8) & 0xf];
+		buf[pos++] = HEX[(c >> 4) & 0xf];
+		buf[pos++] = HEX[c & 0xf];
+	}
+
+	private void ascii(String s) throws IOException {
+		int l = s.length();
+		if (pos + l > buf.length) {
+			flushBuffer();
+		}
+		if (l > buf.length) {
+			out.write(s.getBytes("US-ASCII"));
+			return;
+		}
+		for (int i=0;i<l;i++) {
+			buf[pos++] = (byte)s.charAt(i);
+		}
+	}
+
+	private void write(char c) throws IOException {
+		if (pos == buf.length) {
+			flushBuffer();
+		}
+		buf[pos++] = (byte)c;
+	}
+
+	private void write(byte[] b) throws IOException {
+		if (pos + b.length > buf.length) {
+			flushBuffer();
+			if (b.length > buf.length) {
+				out.write(b);
+				return;
+			}
+		}
+		System.arraycopy(b, 0, buf, pos, b.length);
+		pos += b.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buf, 0, pos);
+		pos = 0;
+	}
+
+	/**
+	 * Get the serializable properties of a class
+	 * @param type {@link Class} - Class
+	 * @return {@link Property}[]
+	 */
+	private static Property[] getProperties(Class<?> type) {
+		Property[] props = properties.get(type);
+		if (props == null) {
+			props = findProperties(type);
+			properties.put(type, props);
+		}
+		return props;
+	}
+
+	private static Property[] findProperties(Class<?> type) {
+		Map<String, Property> found = new HashMap<String, Property>(0);
+		for (Field f:type.getFields()) {
+			if (!Modifier.isStatic(f.getModifiers())) {
+				found.put(f.getName(), new Property(f.getName(), null, f));
+			}
+		}
+		for (Method m:type.getMethods()) {
+			if (Modifier.isStatic(m.getModifiers()) || m.getParameterTypes().length != 0 ||
+				m.getReturnType() == void.class || m.getDeclaringClass() == Object.class) {
+				continue;
+			}
+			String n = m.getName();
+			String name = null;
+			if (n.startsWith("get") && n.length() > 3) {
+				name = n.substring(3);
+			} else if (n.startsWith("is") && n.length() > 2 && (m.getReturnType() == boolean.class || m.getReturnType() == Boolean.class)) {
+				name = n.substring(2);
+			}
+			if (name != null) {
+				name = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+				found.put(name, new Property(name, m, null));
+			}
+		}
+		List<Property> list = new ArrayList<Property>(found.values());
+		Collections.sort(list, new Comparator<Property>() {
+			@Override
+			public int compare(Property a, Property b) {
+				return a.name.compareTo(b.name);
+			}
+		});
+		return list.toArray(new Property[list.size()]);
+	}
+
+	/**
+	 * Serializable property of a class
+	 */
+	private static final class Property {
+
+		private final String name;
+		private final byte[] encodedName;			// Escaped name, quotes and colon
+		private final Method getter;
+		private final Field field;
+
+		private Property(String name, Method getter, Field field) {
+			this.name = name;
+			this.getter = getter;
+			this.field = field;
+			this.encodedName = (serialize(name) + ":").getBytes(UTF8);
+			try {
+				if (getter != null) {
+					getter.setAccessible(true);
+				} else {
+					field.setAccessible(true);
+				}
+			} catch (SecurityException e) {
+				/* Keep the access checks */
+			}
+		}
+
+		private Object get(Object obj) throws Exception {
+			return getter != null ? getter.invoke(obj) : field.get(obj);
+		}
+
+	}
+
+}
@@ -1,13 +1,31 @@
 package com.labs.jmvc;
 
-import java.util.UUID;
+import java.io.Flushable;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.DailyRollingFileAppender;
+import org.apache.log4j.Layout;
 import org.apache.log4j.Level;
 import org.apache.log4j.PatternLayout;
 
 /**
- * Logging factory
+ * Logging factory.
+ * Messages can be given as a pattern with <code>{}</code> placeholders and arguments,
+ * e.g. <code>Logger.debug("Calling {}->{}", controller, action)</code>: the message is only
+ * built, and the arguments' toString() only called, when the level is enabled.
+ * Up to two arguments this allocates nothing when the level is disabled; with more,
+ * or with arguments that are costly to compute, check {@link #isDebugEnabled()} first.
+ * Unless <code>logging.async</code> is false, records are written by a background thread
+ * through a {@link RingAppender}, configured with <code>async_buffer</code> (events buffered,
+ * 8192 by default), <code>async_overflow</code> (<code>block</code>, <code>drop_debug</code>
+ * or <code>sample</code>, drop_debug by default) and <code>async_sample_rate</code>
+ * (one in how many info events is kept when sampling, 10 by default).
+ * The writer is stopped by {@link #shutdown()} once the last controller is destroyed.
+ * With <code>logging.format: json</code>, records are written one JSON object per line, see {@link JsonLayout}.
+ * Errors carry a fingerprint of where they were thrown. Past <code>error_burst</code> identical
+ * errors (10 by default) within <code>error_window</code> seconds (60 by default), further ones are
+ * only counted and reported as suppressed in the first record of the next window.
+ * Records logged while a request is handled carry its id, see {@link RequestTrace}.
  * @author Benjamin Dezile
  */
 public class Logger {
@@ -18,6 +36,13 @@ public class Logger {
 	private static String recordPattern;
 	private static String level;
 	private static org.apache.log4j.Logger logger;
+	private static volatile RingAppender ring;
+	private static Thread shutdownHook;						// Drains the ring if the JVM exits before shutdown()
+	private static final int fingerprintFrames = 5;			// Top frames of each exception identifying its site
+	private static final int maxFingerprints = 4096;
+	private static final ConcurrentHashMap<Long, Burst> bursts = new ConcurrentHashMap<Long, Burst>();
+	private static int errorBurst;
+	private static long errorWindow;
 	private static boolean disabled = false;
 	
 	public static void disable() {
@@ -52,51 +77,223 @@ public class Logger {
 				logFilePath = logFile;
 			}
 			
-			PatternLayout layout = new PatternLayout(recordPattern);
+			errorBurst = getInt("error_burst", 10);
+			errorWindow = getInt("error_window", 60) * 1000L;
+			Layout layout = "json".equals(Config.get("logging", "format")) ? new JsonLayout() : new PatternLayout(recordPattern);
+			Boolean async = Config.getBool("logging", "async");
+			RingAppender queue = null;
+			if (async == null || async) {
+				String overflow = Config.get("logging", "async_overflow");
+				queue = new RingAppender(getInt("async_buffer", 8192), overflow != null ? overflow : RingAppender.DROP_DEBUG, getInt("async_sample_rate", 10));
+			}
 			logger = org.apache.log4j.Logger.getLogger(namespace);
 			logger.setLevel(Level.toLevel(level));
 			// Setup console logging
 			if (Config.getBool("logging", "stdout")) {
-				ConsoleAppender C = new ConsoleAppender();
+				ConsoleAppender C = new FlushableConsoleAppender();
 				C.setLayout(layout);
-				C.setImmediateFlush(true);
+				C.setImmediateFlush(queue == null);
 				C.activateOptions();
-				logger.addAppender(C);
+				attach(C, queue);
 			}
 			// Setup file logging
-			DailyRollingFileAppender A = new DailyRollingFileAppender();
+			DailyRollingFileAppender A = new FlushableFileAppender();
 			A.setFile(logFilePath);
 			A.setDatePattern(fileDatePattern);
 			A.setLayout(layout);
+			A.setBufferedIO(queue != null);		// Flushed after each batch
 			A.activateOptions();
-			logger.addAppender(A);
+			attach(A, queue);
+			if (queue != null) {
+				/* Write what is still buffered on exit */
+				final RingAppender r = queue;
+				shutdownHook = new Thread("jmvc-log-shutdown") {
+					@Override
+					public void run() {
+						r.close();
+					}
+				};
+				Runtime.getRuntime().addShutdownHook(shutdownHook);
+				logger.addAppender(queue);
+				ring = queue;
+			}
 		}
 		return logger;
 	}
 	
+	/**
+	 * Write what is still buffered and close the appenders, e.g. when the application is undeployed.
+	 * Stops the background writer and removes the JVM shutdown hook, which would otherwise keep the
+	 * application's classes loaded. Records logged afterwards are discarded.
+	 */
+	public static synchronized void shutdown() {
+		if (logger == null) {
+			return;
+		}
+		if (shutdownHook != null) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(shutdownHook);
+			} catch (IllegalStateException e) {
+				/* JVM already exiting, the hook closes the ring */
+			}
+			shutdownHook = null;
+		}
+		/* Closes the ring, which drains it first, and the other appenders */
+		logger.removeAllAppenders();
+		ring = null;
+		disabled = true;
+	}
+
+	private static void attach(org.apache.log4j.Appender appender, RingAppender queue) {
+		if (queue != null) {
+			queue.addAppender(appender);
+		} else {
+			logger.addAppender(appender);
+		}
+	}
+
+	private static int getInt(String key, int defaultValue) {
+		Integer value = Config.getInt("logging", key);
+		return value != null && value > 0 ? value : defaultValue;
+	}
+
+	/**
+	 * Return the number of records waiting to be written by the background writer
+	 * @return int
+	 */
+	public static int getQueueDepth() {
+		RingAppender r = ring;
+		return r != null ? r.getDepth() : 0;
+	}
+
+	/**
+	 * Return the number of records dropped because the background writer could not keep up
+	 * @return long
+	 */
+	public static long getDroppedEvents() {
+		RingAppender r = ring;
+		return r != null ? r.getDropped() : 0;
+	}
+
+	/**
+	 * Return whether trace messages are logged
+	 * @return boolean
+	 */
+	public static boolean isTraceEnabled() {
+		return !disabled && getLogger().isTraceEnabled();
+	}
+
+	/**
+	 * Return whether debug messages are logged
+	 * @return boolean
+	 */
+	public static boolean isDebugEnabled() {
+		return !disabled && getLogger().isDebugEnabled();
+	}
+
+	/**
+	 * Return whether info messages are logged
+	 * @return boolean
+	 */
+	public static boolean isInfoEnabled() {
+		return !disabled && getLogger().isInfoEnabled();
+	}
+
 	public static void info(String msg) {
 		if (!disabled) {
 			getLogger().log(Level.INFO, msg);
 		}
 	}
+
+	public static void info(String pattern, Object arg) {
+		if (isInfoEnabled()) {
+			getLogger().log(Level.INFO, format(pattern, arg, null, null, 1));
+		}
+	}
+
+	public static void info(String pattern, Object arg1, Object arg2) {
+		if (isInfoEnabled()) {
+			getLogger().log(Level.INFO, format(pattern, arg1, arg2, null, 2));
+		}
+	}
+
+	public static void info(String pattern, Object... args) {
+		if (isInfoEnabled()) {
+			getLogger().log(Level.INFO, format(pattern, null, null, args, args.length));
+		}
+	}
 	
 	public static void debug(String msg) {
 		if (!disabled) {
 			getLogger().log(Level.DEBUG, msg);
 		}
 	}
+
+	public static void debug(String pattern, Object arg) {
+		if (isDebugEnabled()) {
+			getLogger().log(Level.DEBUG, format(pattern, arg, null, null, 1));
+		}
+	}
+
+	public static void debug(String pattern, Object arg1, Object arg2) {
+		if (isDebugEnabled()) {
+			getLogger().log(Level.DEBUG, format(pattern, arg1, arg2, null, 2));
+		}
+	}
+
+	public static void debug(String pattern, Object... args) {
+		if (isDebugEnabled()) {
+			getLogger().log(Level.DEBUG, format(pattern, null, null, args, args.length));
+		}
+	}
 	
 	public static void trace(String msg) {
 		if (!disabled) {
 			getLogger().log(Level.TRACE, msg);
 		}
 	}
+
+	public static void trace(String pattern, Object arg) {
+		if (isTraceEnabled()) {
+			getLogger().log(Level.TRACE, format(pattern, arg, null, null, 1));
+		}
+	}
+
+	public static void trace(String pattern, Object arg1, Object arg2) {
+		if (isTraceEnabled()) {
+			getLogger().log(Level.TRACE, format(pattern, arg1, arg2, null, 2));
+		}
+	}
+
+	public static void trace(String pattern, Object... args) {
+		if (isTraceEnabled()) {
+			getLogger().log(Level.TRACE, format(pattern, null, null, args, args.length));
+		}
+	}
 	
 	public static void warn(String msg) {
 		if (!disabled) {
 			getLogger().log(Level.WARN, msg);
 		}
 	}
+
+	public static void warn(String pattern, Object arg) {
+		if (!disabled && getLogger().isEnabledFor(Level.WARN)) {
+			getLogger().log(Level.WARN, format(pattern, arg, null, null, 1));
+		}
+	}
+
+	public static void warn(String pattern, Object arg1, Object arg2) {
+		if (!disabled && getLogger().isEnabledFor(Level.WARN)) {
+			getLogger().log(Level.WARN, format(pattern, arg1, arg2, null, 2));
+		}
+	}
+
+	public static void warn(String pattern, Object... args) {
+		if (!disabled && getLogger().isEnabledFor(Level.WARN)) {
+			getLogger().log(Level.WARN, format(pattern, null, null, args, args.length));
+		}
+	}
 	
 	public static void error(Throwable e) {
 		error(null, e);
@@ -108,26 +305,184 @@ public class Logger {
 
 	public static void error(String msg, Throwable e) {
 		if (!disabled) {
-			StringBuffer buf = new StringBuffer();
-			buf.append("[" + UUID.randomUUID() + "] " + (msg != null ? msg : (e != null ? e.getMessage() : "")));
-			if (e != null) {
-				buf.append(": ");
-				buf.append(e != null ? e.getMessage() : "No error object");
-				buf.append("\n");
-				for (StackTraceElement el:e.getStackTrace()) {
-					buf.append("\tat ");
-					buf.append(el.getClassName());
-					buf.append(".");
-					buf.append(el.getMethodName());
-					buf.append("(");
-					buf.append(el.getFileName());
-					buf.append(":");
-					buf.append(el.getLineNumber());
-					buf.append(")\n");
+			org.apache.log4j.Logger l = getLogger();
+			String message = msg != null ? msg : (e != null ? e.getMessage() : "");
+			long fingerprint = e != null ? fingerprint(e) : fingerprint(message);
+			Burst burst = bursts.get(fingerprint);
+			if (burst == null) {
+				if (bursts.size() >= maxFingerprints) {
+					bursts.clear();
+				}
+				burst = new Burst();
+				Burst previous = bursts.putIfAbsent(fingerprint, burst);
+				if (previous != null) {
+					burst = previous;
 				}
 			}
-			getLogger().log(Level.ERROR, buf.toString());
+			int suppressed = burst.hit(System.currentTimeMillis());
+			if (suppressed < 0) {
+				return;
+			}
+			if (suppressed > 0) {
+				l.log(Level.ERROR, new ErrorMessage("Suppressed " + suppressed + " more errors like this in the last " + errorWindow / 1000 + "s", fingerprint, suppressed));
+			}
+			l.log(Level.ERROR, new ErrorMessage(message, fingerprint, 0), e);
 		}
 	}
-	
+
+	/**
+	 * Hash the exception types and top frames of an exception and its causes, line numbers excluded
+	 * so the fingerprint survives unrelated edits
+	 * @param e {@link Throwable} - Exception
+	 * @return long
+	 */
+	static long fingerprint(Throwable e) {
+		long h = 0xcbf29ce484222325L;
+		int depth = 0;
+		for (Throwable t=e;t!=null && depth<8;t=t.getCause(),depth++) {
+			h = hash(h, t.getClass().getName());
+			StackTraceElement[] stack = t.getStackTrace();
+			for (int i=0;i<stack.length && i<fingerprintFrames;i++) {
+				h = hash(h, stack[i].getClassName());
+				h = hash(h, stack[i].getMethodName());
+			}
+		}
+		return h;
+	}
+
+	private static long fingerprint(String message) {
+		return hash(0xcbf29ce484222325L, message);
+	}
+
+	/**
+	 * FNV-1a
+	 */
+	private static long hash(long h, String s) {
+		for (int i=0;i<s.length();i++) {
+			h = (h ^ s.charAt(i)) * 0x100000001b3L;
+		}
+		return (h ^ '|') * 0x100000001b3L;
+	}
+
+	/**
+	 * Replace the <code>{}</code> placeholders of a pattern with arguments, in order
+	 * @param pattern {@link String} - Message pattern
+	 * @param arg1 {@link Object} - First argument, when not given as an array
+	 * @param arg2 {@link Object} - Second argument, when not given as an array
+	 * @param args {@link Object}[] - Arguments, or null
+	 * @param count int - Number of arguments
+	 * @return {@link String}
+	 */
+	static String format(String pattern, Object arg1, Object arg2, Object[] args, int count) {
+		if (pattern == null) {
+			return null;
+		}
+		StringBuilder sb = new StringBuilder(pattern.length() + 16 * count);
+		int p = 0;
+		for (int i=0;i<count;i++) {
+			int next = pattern.indexOf("{}", p);
+			if (next < 0) {
+				break;
+			}
+			Object arg = args != null ? args[i] : (i == 0 ? arg1 : arg2);
+			sb.append(pattern, p, next).append(arg);
+			p = next + 2;
+		}
+		return sb.append(pattern, p, pattern.length()).toString();
+	}
+
+	/**
+	 * Console appender flushed by the background writer after each batch
+	 */
+	private static final class FlushableConsoleAppender extends ConsoleAppender implements Flushable {
+		@Override
+		public synchronized void flush() {
+			if (qw != null) {
+				qw.flush();
+			}
+		}
+	}
+
+	/**
+	 * File appender flushed by the background writer after each batch
+	 */
+	private static final class FlushableFileAppender extends DailyRollingFileAppender implements Flushable {
+		@Override
+		public synchronized void flush() {
+			if (qw != null) {
+				qw.flush();
+			}
+		}
+	}
+
+	/**
+	 * Error record message, rendered as <code>[fingerprint] [request id] message</code>
+	 */
+	static final class ErrorMessage {
+
+		private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+		final String message;
+		final long fingerprint;
+		final int suppressed;				// Identical errors not logged in the last window
+		final String requestId;				// Request being handled, if any
+
+		ErrorMessage(String message, long fingerprint, int suppressed) {
+			this.message = message;
+			this.fingerprint = fingerprint;
+			this.suppressed = suppressed;
+			this.requestId = RequestTrace.currentId();
+		}
+
+		/**
+		 * Return the fingerprint as 16 hex digits
+		 * @return {@link String}
+		 */
+		String getFingerprint() {
+			char[] hex = new char[16];
+			for (int i=0;i<16;i++) {
+				hex[i] = HEX[(int)(fingerprint >>> (60 - 4 * i)) & 0xf];
+			}
+			return new String(hex);
+		}
+
+		@Override
+		public String toString() {
+			return "[" + getFingerprint() + "] " + (requestId != null ? "[" + requestId + "] " : "") + message;
+		}
+
+	}
+
+	/**
+	 * Occurrences of one error in the current window
+	 */
+	private static final class Burst {
+
+		private long start = 0;
+		private int count = 0;
+		private int suppressed = 0;
+
+		/**
+		 * Count an occurrence
+		 * @param now long - Current time in ms
+		 * @return int -1 to suppress it, otherwise the number suppressed in the previous window
+		 */
+		synchronized int hit(long now) {
+			if (now - start >= errorWindow) {
+				int previous = suppressed;
+				start = now;
+				count = 1;
+				suppressed = 0;
+				return previous;
+			}
+			if (count < errorBurst) {
+				count++;
+				return 0;
+			}
+			suppressed++;
+			return -1;
+		}
+
+	}
+
 }
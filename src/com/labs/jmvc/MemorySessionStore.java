@@ -0,0 +1,165 @@
+package com.labs.jmvc;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process session store with a bounded number of sessions and idle expiry.
+ * Sessions are spread over independently locked stripes, each kept in access order,
+ * so expired and least recently used sessions are always found at the head.
+ * Configured from the controller config section: <code>session_max</code> (100000 by default),
+ * <code>session_idle_timeout</code> (seconds, 1800 by default) and <code>session_stripes</code> (16 by default).
+ * @author Benjamin Dezile
+ */
+public class MemorySessionStore extends SessionStore {
+
+	private final Stripe[] stripes;
+	private final int maxPerStripe;
+	private final long idleTimeout;									// Milliseconds
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public MemorySessionStore() {
+		this(getInt("session_max", 100000), getInt("session_idle_timeout", 1800), getInt("session_stripes", 16));
+	}
+
+	/**
+	 * Create a new store
+	 * @param maxSessions int - Maximum number of sessions
+	 * @param idleTimeout int - Seconds after which an unused session expires
+	 * @param stripeCount int - Number of stripes
+	 */
+	public MemorySessionStore(int maxSessions, int idleTimeout, int stripeCount) {
+		this.stripes = new Stripe[stripeCount];
+		for (int i=0;i<stripeCount;i++) {
+			stripes[i] = new Stripe();
+		}
+		this.maxPerStripe = Math.max(1, (maxSessions + stripeCount - 1) / stripeCount);
+		this.idleTimeout = idleTimeout * 1000L;
+	}
+
+	private Stripe stripe(String id) {
+		return stripes[(id.hashCode() & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Get a live session, dropping expired ones on the way
+	 * @return {@link Session} Null if not found
+	 */
+	private Session lookup(Stripe stripe, String id, long now) {
+		expire(stripe, now);
+		Session s = stripe.sessions.get(id);
+		if (s != null) {
+			s.lastAccess = now;
+		}
+		return s;
+	}
+
+	private void expire(Stripe stripe, long now) {
+		Iterator<Session> it = stripe.sessions.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().lastAccess + idleTimeout > now) {
+				break;
+			}
+			it.remove();
+			expirations.incrementAndGet();
+		}
+	}
+
+	@Override
+	public boolean contains(String id) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			return lookup(stripe, id, System.currentTimeMillis()) != null;
+		}
+	}
+
+	@Override
+	public Object get(String id, String name) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			Session s = lookup(stripe, id, System.currentTimeMillis());
+			return s != null ? s.values.get(name) : null;
+		}
+	}
+
+	@Override
+	public void put(String id, String name, Object value) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			long now = System.currentTimeMillis();
+			Session s = lookup(stripe, id, now);
+			if (s == null) {
+				s = new Session(now);
+				stripe.sessions.put(id, s);
+				Iterator<Session> it = stripe.sessions.values().iterator();
+				while (stripe.sessions.size() > maxPerStripe && it.hasNext()) {
+					it.next();
+					it.remove();
+					evictions.incrementAndGet();
+				}
+			}
+			s.values.put(name, value);
+		}
+	}
+
+	@Override
+	public void remove(String id, String name) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			Session s = lookup(stripe, id, System.currentTimeMillis());
+			if (s != null) {
+				s.values.remove(name);
+			}
+		}
+	}
+
+	@Override
+	public void invalidate(String id) {
+		Stripe stripe = stripe(id);
+		synchronized (stripe) {
+			stripe.sessions.remove(id);
+		}
+	}
+
+	@Override
+	public int getSize() {
+		int size = 0;
+		for (Stripe stripe:stripes) {
+			synchronized (stripe) {
+				size += stripe.sessions.size();
+			}
+		}
+		return size;
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Sessions sharing a lock
+	 */
+	private static final class Stripe {
+		private final LinkedHashMap<String, Session> sessions = new LinkedHashMap<String, Session>(64, 0.75f, true);
+	}
+
+	/**
+	 * Session values
+	 */
+	private static final class Session {
+		private final Map<String, Object> values = new HashMap<String, Object>(4);
+		private long lastAccess;
+		Session(long now) {
+			this.lastAccess = now;
+		}
+	}
+
+}
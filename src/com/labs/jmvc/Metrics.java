@@ -0,0 +1,149 @@
+package com.labs.jmvc;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-controller, per-action request metrics
+ * @author Benjamin Dezile
+ */
+public class Metrics {
+
+	private static final ConcurrentMap<String, Metrics> controllers = new ConcurrentHashMap<String, Metrics>();
+
+	private final String controller;
+	private final AtomicLong notFound = new AtomicLong();
+	private final ConcurrentMap<String, ActionMetrics> actions = new ConcurrentHashMap<String, ActionMetrics>();
+
+	private Metrics(String controller) {
+		this.controller = controller;
+	}
+
+	/**
+	 * Get the metrics of a controller
+	 * @param controller {@link String} - Controller name
+	 * @return {@link Metrics}
+	 */
+	public static Metrics forController(String controller) {
+		Metrics m = controllers.get(controller);
+		if (m == null) {
+			Metrics created = new Metrics(controller);
+			if ((m = controllers.putIfAbsent(controller, created)) == null) {
+				m = created;
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Return the metrics of all controllers, sorted by name
+	 * @return {@link Map}<{@link String},{@link Metrics}>
+	 */
+	public static Map<String, Metrics> getAll() {
+		return Collections.unmodifiableMap(new TreeMap<String, Metrics>(controllers));
+	}
+
+	/**
+	 * Get the metrics of an action
+	 * @param action {@link String} - Action name
+	 * @return {@link ActionMetrics}
+	 */
+	public ActionMetrics forAction(String action) {
+		ActionMetrics m = actions.get(action);
+		if (m == null) {
+			ActionMetrics created = new ActionMetrics();
+			if ((m = actions.putIfAbsent(action, created)) == null) {
+				m = created;
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Return the metrics of all actions, sorted by name
+	 * @return {@link Map}<{@link String},{@link ActionMetrics}>
+	 */
+	public Map<String, ActionMetrics> getActions() {
+		return Collections.unmodifiableMap(new TreeMap<String, ActionMetrics>(actions));
+	}
+
+	public String getController() {
+		return controller;
+	}
+
+	/**
+	 * Count a request that matched no action
+	 */
+	void notFound() {
+		notFound.incrementAndGet();
+	}
+
+	public long getNotFound() {
+		return notFound.get();
+	}
+
+	/**
+	 * Metrics of one action. Times are in nanoseconds.
+	 * @author Benjamin Dezile
+	 */
+	public static class ActionMetrics {
+
+		private final AtomicLong requests = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong cacheHits = new AtomicLong();
+		private final AtomicLong notModified = new AtomicLong();
+		private final Histogram actionTime = new Histogram();			// Running the action
+		private final Histogram serializationTime = new Histogram();	// Rendering the result
+		private final Histogram viewTime = new Histogram();				// Forwarding to the view
+
+		void request() {
+			requests.incrementAndGet();
+		}
+
+		void error() {
+			errors.incrementAndGet();
+		}
+
+		void cacheHit() {
+			cacheHits.incrementAndGet();
+		}
+
+		void notModified() {
+			notModified.incrementAndGet();
+		}
+
+		public long getRequests() {
+			return requests.get();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public long getCacheHits() {
+			return cacheHits.get();
+		}
+
+		public long getNotModified() {
+			return notModified.get();
+		}
+
+		public Histogram getActionTime() {
+			return actionTime;
+		}
+
+		public Histogram getSerializationTime() {
+			return serializationTime;
+		}
+
+		public Histogram getViewTime() {
+			return viewTime;
+		}
+
+	}
+
+}
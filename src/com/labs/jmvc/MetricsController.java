@@ -0,0 +1,202 @@
+package com.labs.jmvc;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Built-in controller exposing request metrics.
+ * <code>/</code> or <code>/json</code> returns JSON, <code>/prometheus</code> returns the Prometheus text format.
+ * Times are reported in seconds.
+ * @author Benjamin Dezile
+ */
+public class MetricsController extends Controller {
+
+	private static final long serialVersionUID = 3310977244862158471L;
+	private static final double[] quantiles = { 0.5, 0.9, 0.99 };
+	private static final String prefix = "jmvc_";
+
+	public MetricsController() {
+		super("metrics");
+	}
+
+	/**
+	 * Metrics as JSON
+	 * @param context {@link Context} - Request context
+	 * @return {@link StreamingResult}
+	 */
+	public Object execute(Context context) {
+		return executeJson(context);
+	}
+
+	/**
+	 * Metrics as JSON
+	 * @param context {@link Context} - Request context
+	 * @return {@link StreamingResult}
+	 */
+	public Object executeJson(Context context) {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		Map<String, Object> controllers = new LinkedHashMap<String, Object>();
+		for (Metrics m:Metrics.getAll().values()) {
+			Map<String, Object> controller = new LinkedHashMap<String, Object>();
+			controller.put("not_found", m.getNotFound());
+			Map<String, Object> actions = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Metrics.ActionMetrics> e:m.getActions().entrySet()) {
+				Metrics.ActionMetrics a = e.getValue();
+				Map<String, Object> action = new LinkedHashMap<String, Object>();
+				action.put("requests", a.getRequests());
+				action.put("errors", a.getErrors());
+				action.put("cache_hits", a.getCacheHits());
+				action.put("not_modified", a.getNotModified());
+				action.put("action_time", toJSON(a.getActionTime()));
+				action.put("serialization_time", toJSON(a.getSerializationTime()));
+				action.put("view_time", toJSON(a.getViewTime()));
+				actions.put(e.getKey(), action);
+			}
+			controller.put("actions", actions);
+			controllers.put(m.getController(), controller);
+		}
+		json.put("controllers", controllers);
+		ResponseCache cache = ResponseCache.getInstance();
+		Map<String, Object> c = new LinkedHashMap<String, Object>();
+		c.put("hits", cache.getHits());
+		c.put("misses", cache.getMisses());
+		c.put("evictions", cache.getEvictions());
+		c.put("expirations", cache.getExpirations());
+		c.put("entries", cache.getCount());
+		c.put("bytes", cache.getSize());
+		json.put("response_cache", c);
+		EventDispatcher events = EventDispatcher.getInstance();
+		Map<String, Object> e = new LinkedHashMap<String, Object>();
+		e.put("subscribers", events.getSubscriberCount());
+		e.put("published", events.getPublished());
+		e.put("evictions", events.getEvictions());
+		json.put("events", e);
+		Map<String, Object> logging = new LinkedHashMap<String, Object>();
+		logging.put("queue_depth", Logger.getQueueDepth());
+		logging.put("dropped", Logger.getDroppedEvents());
+		json.put("logging", logging);
+		SessionStore store = SessionStore.getInstance();
+		if (store != null) {
+			Map<String, Object> sessions = new LinkedHashMap<String, Object>();
+			sessions.put("store", store.getClass().getSimpleName());
+			sessions.put("count", store.getSize());
+			json.put("sessions", sessions);
+		}
+		return StreamingResult.json(json);
+	}
+
+	/**
+	 * Metrics in the Prometheus text format
+	 * @param context {@link Context} - Request context
+	 * @return {@link String}
+	 */
+	public Object executePrometheus(Context context) {
+		context.getResponse().setContentType("text/plain; version=0.0.4");
+		StringBuilder out = new StringBuilder(4096);
+		Map<String, Metrics> all = Metrics.getAll();
+		type(out, "not_found_total", "counter");
+		for (Metrics m:all.values()) {
+			sample(out, "not_found_total", m.getController(), null, null, m.getNotFound());
+		}
+		String[] counters = { "requests_total", "errors_total", "cache_hits_total", "not_modified_total" };
+		for (int i=0;i<counters.length;i++) {
+			type(out, counters[i], "counter");
+			for (Metrics m:all.values()) {
+				for (Map.Entry<String, Metrics.ActionMetrics> e:m.getActions().entrySet()) {
+					Metrics.ActionMetrics a = e.getValue();
+					long v = i == 0 ? a.getRequests() : i == 1 ? a.getErrors() : i == 2 ? a.getCacheHits() : a.getNotModified();
+					sample(out, counters[i], m.getController(), e.getKey(), null, v);
+				}
+			}
+		}
+		String[] summaries = { "action_seconds", "serialization_seconds", "view_seconds" };
+		for (int i=0;i<summaries.length;i++) {
+			type(out, summaries[i], "summary");
+			for (Metrics m:all.values()) {
+				for (Map.Entry<String, Metrics.ActionMetrics> e:m.getActions().entrySet()) {
+					Metrics.ActionMetrics a = e.getValue();
+					Histogram h = i == 0 ? a.getActionTime() : i == 1 ? a.getSerializationTime() : a.getViewTime();
+					for (double q:quantiles) {
+						sample(out, summaries[i], m.getController(), e.getKey(), String.valueOf(q), seconds(h.getPercentile(q * 100)));
+					}
+					sample(out, summaries[i] + "_sum", m.getController(), e.getKey(), null, seconds(h.getSum()));
+					sample(out, summaries[i] + "_count", m.getController(), e.getKey(), null, h.getCount());
+				}
+			}
+		}
+		ResponseCache cache = ResponseCache.getInstance();
+		type(out, "response_cache_hits_total", "counter");
+		out.append(prefix).append("response_cache_hits_total ").append(cache.getHits()).append('\n');
+		type(out, "response_cache_misses_total", "counter");
+		out.append(prefix).append("response_cache_misses_total ").append(cache.getMisses()).append('\n');
+		type(out, "response_cache_evictions_total", "counter");
+		out.append(prefix).append("response_cache_evictions_total ").append(cache.getEvictions()).append('\n');
+		type(out, "response_cache_bytes", "gauge");
+		out.append(prefix).append("response_cache_bytes ").append(cache.getSize()).append('\n');
+		EventDispatcher events = EventDispatcher.getInstance();
+		type(out, "event_subscribers", "gauge");
+		out.append(prefix).append("event_subscribers ").append(events.getSubscriberCount()).append('\n');
+		type(out, "events_published_total", "counter");
+		out.append(prefix).append("events_published_total ").append(events.getPublished()).append('\n');
+		type(out, "event_evictions_total", "counter");
+		out.append(prefix).append("event_evictions_total ").append(events.getEvictions()).append('\n');
+		type(out, "log_queue_depth", "gauge");
+		out.append(prefix).append("log_queue_depth ").append(Logger.getQueueDepth()).append('\n');
+		type(out, "log_dropped_total", "counter");
+		out.append(prefix).append("log_dropped_total ").append(Logger.getDroppedEvents()).append('\n');
+		SessionStore store = SessionStore.getInstance();
+		if (store != null) {
+			type(out, "sessions", "gauge");
+			out.append(prefix).append("sessions ").append(store.getSize()).append('\n');
+		}
+		return out.toString();
+	}
+
+	private static Map<String, Object> toJSON(Histogram h) {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("count", h.getCount());
+		json.put("mean", seconds(h.getMean()));
+		json.put("max", seconds(h.getMax()));
+		for (double q:quantiles) {
+			json.put("p" + (int)(q * 100), seconds(h.getPercentile(q * 100)));
+		}
+		return json;
+	}
+
+	private static double seconds(double nanos) {
+		return nanos / 1e9;
+	}
+
+	private static void type(StringBuilder out, String metric, String type) {
+		out.append("# TYPE ").append(prefix).append(metric).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder out, String metric, String controller, String action, String quantile, Object value) {
+		out.append(prefix).append(metric).append("{controller=\"");
+		label(out, controller);
+		out.append('"');
+		if (action != null) {
+			out.append(",action=\"");
+			label(out, action);
+			out.append('"');
+		}
+		if (quantile != null) {
+			out.append(",quantile=\"").append(quantile).append('"');
+		}
+		out.append("} ").append(value).append('\n');
+	}
+
+	private static void label(StringBuilder out, String value) {
+		for (int i=0;i<value.length();i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				out.append('\\').append(c);
+			} else if (c == '\n') {
+				out.append("\\n");
+			} else {
+				out.append(c);
+			}
+		}
+	}
+
+}
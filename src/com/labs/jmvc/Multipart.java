@@ -0,0 +1,600 @@
+package com.labs.jmvc;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Streaming reader of a multipart request.
+ * Parts are handed out as they arrive: the body of a part is read straight from the request
+ * until {@link #nextPart()} moves on, unless it was {@link Part#spool() spooled} first.
+ * Configured from the controller config section:
+ * <code>upload_threshold</code> (bytes kept in memory when spooling a part, 64K by default),
+ * <code>upload_dir</code> (where bigger parts spill, the temp dir by default),
+ * <code>upload_max_size</code> (bytes per request) and <code>upload_max_part_size</code> (bytes per part),
+ * both unlimited by default. Exceeding a limit aborts the upload with an {@link UploadException} (413).
+ * @author Benjamin Dezile
+ */
+public class Multipart {
+
+	private static final int bufferSize = 16384;
+	private static final int maxHeaderSize = 10240;					// Headers of one part
+	private static final byte[] HEADER_END = { '\r', '\n', '\r', '\n' };
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final int threshold = (int)getSize("upload_threshold", 64 * 1024);
+	private static final File spillDir = getSpillDir();
+	private static final long maxSize = getSize("upload_max_size", -1);
+	private static final long maxPartSize = getSize("upload_max_part_size", -1);
+
+	private final InputStream in;
+	private final byte[] delimiter;									// CRLF--boundary
+	private final byte[] buf = new byte[bufferSize];
+	private final ByteBuffer view = ByteBuffer.wrap(buf);				// Writes buffer slices to channels
+	private final List<File> spilled = new ArrayList<File>();			// Temp files to delete
+	private int head = 0;												// Next byte to read
+	private int tail = 0;												// End of buffered bytes
+	private int chunkEnd = 0;											// Bytes before this belong to the current part
+	private long read = 0;												// Bytes read from the request
+	private boolean finished = false;
+	private Part current;
+
+	/**
+	 * Start reading a multipart request
+	 * @param request {@link HttpServletRequest} - Request
+	 * @throws IOException
+	 * @throws UploadException If the request is not multipart or is too large
+	 */
+	public Multipart(HttpServletRequest request) throws IOException {
+		String contentType = request.getContentType();
+		if (contentType == null || !contentType.toLowerCase().startsWith("multipart/")) {
+			throw new UploadException(400, "Not a multipart request");
+		}
+		String boundary = getParameter(contentType, "boundary");
+		if (boundary == null || boundary.length() == 0 || boundary.length() > 200) {
+			throw new UploadException(400, "Invalid multipart boundary");
+		}
+		if (maxSize >= 0 && request.getContentLength() > maxSize) {
+			throw new UploadException(413, "Upload exceeds " + maxSize + " bytes");
+		}
+		this.delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+		this.in = request.getInputStream();
+		/* The first boundary is not preceded by a line break */
+		buf[tail++] = '\r';
+		buf[tail++] = '\n';
+		while (available() >= 0) {
+			/* Skip the preamble */
+			head = chunkEnd;
+		}
+	}
+
+	/**
+	 * Move to the next part, skipping what is left of the current one
+	 * @return {@link Part} Null after the last part
+	 * @throws IOException
+	 */
+	public Part nextPart() throws IOException {
+		if (current != null) {
+			while (current.chunk() >= 0) {
+				current.consume(chunkEnd - head);
+			}
+			current = null;
+		}
+		if (finished) {
+			return null;
+		}
+		current = new Part(readHeaders());
+		return current;
+	}
+
+	/**
+	 * Delete the temporary files of spooled parts that were not transferred
+	 */
+	public void close() {
+		for (File f:spilled) {
+			if (!f.delete()) {
+				f.deleteOnExit();
+			}
+		}
+		spilled.clear();
+	}
+
+	/**
+	 * Return the number of bytes of the current part that can be read from the buffer
+	 * @return int -1 once the delimiter ending the part has been consumed
+	 */
+	private int available() throws IOException {
+		if (head < chunkEnd) {
+			return chunkEnd - head;
+		}
+		while (true) {
+			int p = indexOf(delimiter, head, tail);
+			if (p == head) {
+				head += delimiter.length;
+				chunkEnd = head;
+				endOfPart();
+				return -1;
+			} else if (p > head) {
+				chunkEnd = p;
+				return p - head;
+			}
+			/* Bytes that cannot be the start of a delimiter */
+			int safe = tail - delimiter.length + 1;
+			if (safe > head) {
+				chunkEnd = safe;
+				return safe - head;
+			}
+			if (!fill()) {
+				throw new UploadException(400, "Truncated multipart request");
+			}
+		}
+	}
+
+	/**
+	 * Read what follows a delimiter: -- after the last part, a line break otherwise
+	 */
+	private void endOfPart() throws IOException {
+		while (tail - head < 2) {
+			if (!fill()) {
+				throw new UploadException(400, "Truncated multipart request");
+			}
+		}
+		if (buf[head] == '-' && buf[head + 1] == '-') {
+			finished = true;
+			head += 2;
+		} else {
+			/* Skip transport padding */
+			int p;
+			while ((p = indexOf(CRLF, head, tail)) < 0) {
+				if (tail - head > maxHeaderSize || !fill()) {
+					throw new UploadException(400, "Malformed multipart boundary");
+				}
+			}
+			head = p + 2;
+		}
+		chunkEnd = head;
+	}
+
+	private Map<String, String> readHeaders() throws IOException {
+		while (tail - head < 2) {
+			if (!fill()) {
+				throw new UploadException(400, "Truncated multipart request");
+			}
+		}
+		Map<String, String> headers = new LinkedHashMap<String, String>(4);
+		if (buf[head] == '\r' && buf[head + 1] == '\n') {
+			head += 2;
+			chunkEnd = head;
+			return headers;
+		}
+		int p;
+		while ((p = indexOf(HEADER_END, head, tail)) < 0) {
+			if (tail - head > maxHeaderSize) {
+				throw new UploadException(400, "Multipart headers too large");
+			} else if (!fill()) {
+				throw new UploadException(400, "Truncated multipart request");
+			}
+		}
+		String name = null;
+		for (String line:new String(buf, head, p - head, "UTF-8").split("\r\n")) {
+			if ((line.startsWith(" ") || line.startsWith("\t")) && name != null) {
+				headers.put(name, headers.get(name) + " " + line.trim());
+				continue;
+			}
+			int c = line.indexOf(':');
+			if (c > 0) {
+				name = line.substring(0, c).trim().toLowerCase();
+				headers.put(name, line.substring(c + 1).trim());
+			}
+		}
+		head = p + HEADER_END.length;
+		chunkEnd = head;
+		return headers;
+	}
+
+	/**
+	 * Read more of the request, moving the unread bytes to the start of the buffer
+	 * @return boolean False at the end of the request
+	 */
+	private boolean fill() throws IOException {
+		if (head > 0) {
+			System.arraycopy(buf, head, buf, 0, tail - head);
+			tail -= head;
+			chunkEnd = Math.max(0, chunkEnd - head);
+			head = 0;
+		}
+		int n = in.read(buf, tail, buf.length - tail);
+		if (n < 0) {
+			return false;
+		}
+		tail += n;
+		read += n;
+		if (maxSize >= 0 && read > maxSize) {
+			throw new UploadException(413, "Upload exceeds " + maxSize + " bytes");
+		}
+		return true;
+	}
+
+	private int indexOf(byte[] pattern, int from, int to) {
+		byte first = pattern[0];
+		int last = to - pattern.length;
+		outer:
+		for (int i=from;i<=last;i++) {
+			if (buf[i] != first) {
+				continue;
+			}
+			for (int j=1;j<pattern.length;j++) {
+				if (buf[i + j] != pattern[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Extract a parameter from a header value, e.g. <code>name</code> in <code>form-data; name="file"</code>
+	 * @param header {@link String} - Header value
+	 * @param name {@link String} - Parameter name
+	 * @return {@link String} Null if missing
+	 */
+	static String getParameter(String header, String name) {
+		int l = header.length();
+		int p = header.indexOf(';');
+		while (p >= 0 && p < l) {
+			int eq = header.indexOf('=', p);
+			if (eq < 0) {
+				return null;
+			}
+			String key = header.substring(p + 1, eq).trim();
+			StringBuilder value = new StringBuilder();
+			int i = eq + 1;
+			while (i < l && header.charAt(i) == ' ') {
+				i++;
+			}
+			if (i < l && header.charAt(i) == '"') {
+				for (i++;i<l && header.charAt(i) != '"';i++) {
+					char c = header.charAt(i);
+					if (c == '\\' && i + 1 < l) {
+						c = header.charAt(++i);
+					}
+					value.append(c);
+				}
+				i = header.indexOf(';', i);
+			} else {
+				int end = header.indexOf(';', i);
+				value.append(header.substring(i, end < 0 ? l : end).trim());
+				i = end;
+			}
+			if (key.equalsIgnoreCase(name)) {
+				return value.toString();
+			}
+			p = i;
+		}
+		return null;
+	}
+
+	private static long getSize(String key, long defaultValue) {
+		Long size = Config.getLong("controller", key);
+		return size != null ? size : defaultValue;
+	}
+
+	private static File getSpillDir() {
+		String dir = Config.get("controller", "upload_dir");
+		return new File(dir != null ? dir : System.getProperty("java.io.tmpdir"));
+	}
+
+	/**
+	 * One part of the request
+	 * @author Benjamin Dezile
+	 */
+	public class Part {
+
+		private final Map<String, String> headers;
+		private final String name;
+		private final String fileName;
+		private long size = 0;
+		private boolean done = false;				// Whole body read from the request
+		private byte[] memory;						// Spooled body
+		private File file;							// Spooled or transferred body
+		private InputStream stream;
+
+		private Part(Map<String, String> headers) {
+			this.headers = Collections.unmodifiableMap(headers);
+			String disposition = headers.get("content-disposition");
+			this.name = disposition != null ? getParameter(disposition, "name") : null;
+			this.fileName = disposition != null ? getParameter(disposition, "filename") : null;
+		}
+
+		/**
+		 * Return the form field name
+		 * @return {@link String}
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Return the name of the uploaded file, without any directory sent by the client
+		 * @return {@link String} Null for form fields
+		 */
+		public String getFileName() {
+			if (fileName == null) {
+				return null;
+			}
+			int p = Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\'));
+			return fileName.substring(p + 1);
+		}
+
+		/**
+		 * Return whether the part is a form field rather than a file
+		 * @return boolean
+		 */
+		public boolean isFormField() {
+			return fileName == null;
+		}
+
+		/**
+		 * Return the content type of the part
+		 * @return {@link String} Null if not given
+		 */
+		public String getContentType() {
+			return headers.get("content-type");
+		}
+
+		/**
+		 * Get a part header
+		 * @param name {@link String} - Header name
+		 * @return {@link String} Null if not found
+		 */
+		public String getHeader(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		/**
+		 * Return the part headers, with lower case names
+		 * @return {@link Map}<{@link String},{@link String}>
+		 */
+		public Map<String, String> getHeaders() {
+			return headers;
+		}
+
+		/**
+		 * Return the number of bytes read so far, the full size once the part was consumed
+		 * @return long
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * Return the body of the part.
+		 * Unless the part was spooled, the stream reads from the request and ends with the part;
+		 * it is no longer readable once {@link Multipart#nextPart()} is called.
+		 * @return {@link InputStream}
+		 * @throws IOException
+		 */
+		public InputStream getInputStream() throws IOException {
+			if (memory != null) {
+				return new ByteArrayInputStream(memory, 0, (int)size);
+			} else if (file != null) {
+				return new FileInputStream(file);
+			}
+			if (stream == null) {
+				stream = new PartInputStream();
+			}
+			return stream;
+		}
+
+		/**
+		 * Read the rest of the part so it stays available after moving to the next one.
+		 * Up to <code>upload_threshold</code> bytes are kept in memory, bigger parts spill to <code>upload_dir</code>.
+		 * @return {@link Part} This part
+		 * @throws IOException
+		 * @throws IllegalStateException If the part was already partly read from its stream
+		 */
+		public Part spool() throws IOException {
+			if (memory != null || file != null) {
+				return this;
+			}
+			checkUnread();
+			byte[] mem = new byte[Math.max(0, Math.min(threshold, 8192))];
+			int length = 0;
+			File f = null;
+			FileOutputStream out = null;
+			try {
+				int n;
+				while ((n = chunk()) >= 0) {
+					if (out == null && length + n > threshold) {
+						f = File.createTempFile("upload", ".part", spillDir);
+						spilled.add(f);
+						out = new FileOutputStream(f);
+						out.getChannel().write(ByteBuffer.wrap(mem, 0, length));
+					}
+					if (out != null) {
+						write(out.getChannel(), n);
+					} else {
+						if (length + n > mem.length) {
+							mem = Arrays.copyOf(mem, Math.min(threshold, Math.max(length + n, mem.length * 2)));
+						}
+						System.arraycopy(buf, head, mem, length, n);
+						length += n;
+						consume(n);
+					}
+				}
+			} finally {
+				if (out != null) {
+					out.close();
+				}
+			}
+			if (f != null) {
+				file = f;
+			} else {
+				memory = mem;
+			}
+			return this;
+		}
+
+		/**
+		 * Return the body of a form field as a string, in the charset of the part or UTF-8
+		 * @return {@link String}
+		 * @throws IOException
+		 * @throws UploadException If the field is bigger than <code>upload_threshold</code>
+		 * @throws IllegalStateException If the part was already partly read from its stream
+		 */
+		public String getString() throws IOException {
+			spool();
+			if (memory == null) {
+				throw new UploadException(413, "Field " + name + " exceeds " + threshold + " bytes");
+			}
+			String type = getContentType();
+			String charset = type != null ? getParameter(type, "charset") : null;
+			return new String(memory, 0, (int)size, charset != null ? charset : "UTF-8");
+		}
+
+		/**
+		 * Write the body of the part to a file.
+		 * A spilled part is moved, otherwise the body goes from the request buffer to a {@link FileChannel}
+		 * without being copied to intermediate arrays. The part can be read again from the file afterwards.
+		 * @param dest {@link File} - Destination, replaced if it exists
+		 * @return long Number of bytes written
+		 * @throws IOException
+		 * @throws IllegalStateException If the part was already partly read from its stream
+		 */
+		public long transferTo(File dest) throws IOException {
+			if (file != null && spilled.contains(file) && file.renameTo(dest)) {
+				spilled.remove(file);
+				file = dest;
+				return size;
+			}
+			if (memory == null && file == null) {
+				checkUnread();
+			}
+			FileOutputStream out = new FileOutputStream(dest);
+			try {
+				FileChannel channel = out.getChannel();
+				if (memory != null) {
+					channel.write(ByteBuffer.wrap(memory, 0, (int)size));
+				} else if (file != null) {
+					FileInputStream src = new FileInputStream(file);
+					try {
+						FileChannel from = src.getChannel();
+						long pos = 0, count = from.size();
+						while (pos < count) {
+							pos += from.transferTo(pos, count - pos, channel);
+						}
+					} finally {
+						src.close();
+					}
+				} else {
+					int n;
+					while ((n = chunk()) >= 0) {
+						write(channel, n);
+					}
+					file = dest;
+				}
+			} finally {
+				out.close();
+			}
+			return size;
+		}
+
+		/**
+		 * Make sure the body was not partly read from the stream, the rest alone cannot be kept
+		 */
+		private void checkUnread() {
+			if (size > 0) {
+				throw new IllegalStateException("Part " + name + " was already read from its stream");
+			}
+		}
+
+		/**
+		 * Make sure part data is buffered
+		 * @return int Number of bytes available at the buffer head, -1 at the end of the part
+		 */
+		private int chunk() throws IOException {
+			if (done) {
+				return -1;
+			}
+			if (current != this) {
+				throw new IllegalStateException("Part " + name + " was skipped, spool it before moving to the next one");
+			}
+			int n = available();
+			if (n < 0) {
+				done = true;
+			}
+			return n;
+		}
+
+		private void consume(int n) throws UploadException {
+			head += n;
+			size += n;
+			if (maxPartSize >= 0 && size > maxPartSize) {
+				throw new UploadException(413, "Part " + name + " exceeds " + maxPartSize + " bytes");
+			}
+		}
+
+		/**
+		 * Write buffered part data to a channel
+		 */
+		private void write(FileChannel channel, int n) throws IOException {
+			view.limit(head + n).position(head);
+			while (view.hasRemaining()) {
+				channel.write(view);
+			}
+			view.clear();
+			consume(n);
+		}
+
+		/**
+		 * Body of the part read from the request
+		 */
+		private class PartInputStream extends InputStream {
+
+			@Override
+			public int read() throws IOException {
+				if (chunk() < 0) {
+					return -1;
+				}
+				int b = buf[head] & 0xff;
+				consume(1);
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				int n = chunk();
+				if (n < 0) {
+					return -1;
+				}
+				n = Math.min(n, len);
+				System.arraycopy(buf, head, b, off, n);
+				consume(n);
+				return n;
+			}
+
+			@Override
+			public int available() throws IOException {
+				return done || current != Part.this ? 0 : Math.max(0, chunkEnd - head);
+			}
+
+		}
+
+	}
+
+}
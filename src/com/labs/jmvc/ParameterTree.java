@@ -0,0 +1,237 @@
+package com.labs.jmvc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Request parameters parsed into a tree, following the bracket notation:
+ * <code>user[name]=bob&amp;ids[0]=1&amp;ids[]=2&amp;a[b][0]=x</code> gives
+ * <code>{user: {name: bob}, ids: {0: 1, 1: 2}, a: {b: {0: x}}}</code>.
+ * Leaves are {@link String}s and groups are {@link Map}s. A name used both as a plain
+ * parameter and as a group is kept as the group.
+ * Array and map views of groups are built on first use and cached. Arrays keep holes between
+ * indexes unless they are sparse, e.g. <code>ids[99999]=1</code> gives a single element.
+ * @author Benjamin Dezile
+ */
+final class ParameterTree {
+
+	private static final int maxIndexDigits = 5;			// Bounds the arrays clients can make us allocate
+	private static final int maxHoles = 16;					// Holes allowed beyond one per element before an array is compacted
+
+	/**
+	 * Entries sorted by index, insertion order being kept for equal indexes
+	 */
+	private static final Comparator<Map.Entry<String, Object>> byIndex = new Comparator<Map.Entry<String, Object>>() {
+		@Override
+		public int compare(Map.Entry<String, Object> a, Map.Entry<String, Object> b) {
+			int i = indexOf(a.getKey()), j = indexOf(b.getKey());
+			return i < j ? -1 : (i == j ? 0 : 1);
+		}
+	};
+
+	private ParameterTree() {}
+
+	/**
+	 * Parse all the parameters of a request
+	 * @param request {@link HttpServletRequest} - Request
+	 * @return {@link Group} Root
+	 */
+	@SuppressWarnings("unchecked")
+	static Group parse(HttpServletRequest request) {
+		Group root = new Group();
+		Enumeration<String> names = request.getParameterNames();
+		while (names.hasMoreElements()) {
+			String name = names.nextElement();
+			int p = name.indexOf('[');
+			if (p <= 0 || name.indexOf(']', p) < 0) {
+				if (!(root.get(name) instanceof Group)) {
+					root.put(name, request.getParameter(name));
+				}
+				continue;
+			}
+			Group group = root;
+			String key = name.substring(0, p);
+			int l = name.length();
+			while (p < l && name.charAt(p) == '[') {
+				int q = name.indexOf(']', p);
+				if (q < 0) {
+					break;
+				}
+				group = group.child(key);
+				key = name.substring(p + 1, q);
+				p = q + 1;
+				if (key.length() == 0 && (p >= l || name.charAt(p) != '[')) {
+					/* Trailing []: append every value */
+					for (String value:request.getParameterValues(name)) {
+						group.set(String.valueOf(group.maxIndex + 1), value);
+					}
+					key = null;
+					break;
+				} else if (key.length() == 0) {
+					key = String.valueOf(group.maxIndex + 1);
+				}
+			}
+			if (key != null && !(group.get(key) instanceof Group)) {
+				group.set(key, request.getParameter(name));
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Parse an array index
+	 * @param key {@link String} - Key
+	 * @return int Index or -1 if the key is not a small non-negative integer
+	 */
+	static int indexOf(String key) {
+		int l = key.length();
+		if (l == 0 || l > maxIndexDigits) {
+			return -1;
+		}
+		int index = 0;
+		for (int i=0;i<l;i++) {
+			char c = key.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			index = index * 10 + (c - '0');
+		}
+		return index;
+	}
+
+	/**
+	 * Group of parameters sharing a prefix
+	 * @author Benjamin Dezile
+	 */
+	static final class Group extends LinkedHashMap<String, Object> {
+
+		private static final long serialVersionUID = -2190542736419011467L;
+		private int maxIndex = -1;							// Largest numeric key
+		private String[] array;								// Cached array view
+		private Map<String, String> map;					// Cached map view
+		private boolean cached;								// Whether the views were built
+
+		Group() {
+			super(8);
+		}
+
+		/**
+		 * Get or create a sub group, replacing a leaf of the same name
+		 */
+		private Group child(String key) {
+			Object node = get(key);
+			if (node instanceof Group) {
+				return (Group)node;
+			}
+			Group g = new Group();
+			set(key, g);
+			return g;
+		}
+
+		private void set(String key, Object value) {
+			int index = indexOf(key);
+			if (index > maxIndex) {
+				maxIndex = index;
+			}
+			put(key, value);
+		}
+
+		/**
+		 * Return the values under numeric keys in index order, the last one given for an index winning
+		 * @return {@link List}<{@link Object}> Leaves and groups
+		 */
+		List<Object> elements() {
+			List<Map.Entry<String, Object>> entries = indexed();
+			List<Object> list = new ArrayList<Object>(entries.size());
+			for (Map.Entry<String, Object> e:entries) {
+				list.add(e.getValue());
+			}
+			return list;
+		}
+
+		/**
+		 * Return the entries under numeric keys sorted by index, one per index.
+		 * Only the keys actually given are visited, however large the indexes.
+		 */
+		private List<Map.Entry<String, Object>> indexed() {
+			List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>(maxIndex >= 0 ? size() : 0);
+			if (maxIndex < 0) {
+				return entries;
+			}
+			for (Map.Entry<String, Object> e:entrySet()) {
+				if (indexOf(e.getKey()) >= 0) {
+					entries.add(e);
+				}
+			}
+			Collections.sort(entries, byIndex);
+			/* Keys such as 7 and 07 share an index */
+			int n = 0;
+			for (int i=0;i<entries.size();i++) {
+				if (n > 0 && byIndex.compare(entries.get(n - 1), entries.get(i)) == 0) {
+					n--;
+				}
+				entries.set(n++, entries.get(i));
+			}
+			return entries.subList(0, n);
+		}
+
+		/**
+		 * Return the leaves under numeric keys as an array, holes being null unless the indexes are sparse
+		 * @return {@link String}[] Null if there are none
+		 */
+		String[] toArray() {
+			if (!cached) {
+				buildViews();
+			}
+			return array;
+		}
+
+		/**
+		 * Return the leaves as a read-only map
+		 * @return {@link Map}<{@link String},{@link String}> Null if there are none
+		 */
+		Map<String, String> toMap() {
+			if (!cached) {
+				buildViews();
+			}
+			return map;
+		}
+
+		private void buildViews() {
+			Map<String, String> m = new LinkedHashMap<String, String>(size());
+			for (Map.Entry<String, Object> e:entrySet()) {
+				if (e.getValue() instanceof String) {
+					m.put(e.getKey(), (String)e.getValue());
+				}
+			}
+			List<Map.Entry<String, Object>> leaves = indexed();
+			for (Iterator<Map.Entry<String, Object>> it = leaves.iterator();it.hasNext();) {
+				if (!(it.next().getValue() instanceof String)) {
+					it.remove();
+				}
+			}
+			int count = leaves.size();
+			if (count > 0) {
+				int last = indexOf(leaves.get(count - 1).getKey());
+				boolean dense = last < 2 * count + maxHoles;
+				String[] a = new String[dense ? last + 1 : count];
+				for (int i=0;i<count;i++) {
+					Map.Entry<String, Object> e = leaves.get(i);
+					a[dense ? indexOf(e.getKey()) : i] = (String)e.getValue();
+				}
+				array = a;
+			}
+			map = m.size() > 0 ? Collections.unmodifiableMap(m) : null;
+			cached = true;
+		}
+
+	}
+
+}
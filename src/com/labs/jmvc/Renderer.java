@@ -0,0 +1,262 @@
+package com.labs.jmvc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Response renderer, chosen by the type of the data returned by an action.
+ * A renderer sets the content type when none was set by the action and
+ * writes the payload exactly once.
+ * @author Benjamin Dezile
+ * @param <T> Type of data rendered
+ */
+public abstract class Renderer<T> {
+
+	private static final Map<Class<?>, Renderer<?>> registered = new LinkedHashMap<Class<?>, Renderer<?>>();	// Registered renderers
+	private static final Map<Class<?>, Renderer<?>> resolved = new ConcurrentHashMap<Class<?>, Renderer<?>>();	// Renderer per concrete type
+
+	/**
+	 * Render data to the response
+	 * @param data T - Data to render
+	 * @param context {@link Context} - Current request context
+	 * @throws IOException
+	 */
+	public abstract void render(T data, Context context) throws IOException;
+
+	/**
+	 * Register a renderer for a type and its subtypes
+	 * @param type {@link Class} - Type
+	 * @param renderer {@link Renderer} - Renderer
+	 */
+	public static synchronized <T> void register(Class<T> type, Renderer<? super T> renderer) {
+		registered.put(type, renderer);
+		resolved.clear();
+	}
+
+	/**
+	 * Find the renderer for a type
+	 * @param type {@link Class} - Type of the data to render
+	 * @return {@link Renderer}
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> Renderer<? super T> forType(Class<T> type) {
+		Renderer<?> renderer = resolved.get(type);
+		if (renderer == null) {
+			synchronized (Renderer.class) {
+				renderer = lookup(type);
+				resolved.put(type, renderer);
+			}
+		}
+		return (Renderer<? super T>)renderer;
+	}
+
+	/**
+	 * Walk the type hierarchy to find the closest registered renderer
+	 * @param type {@link Class} - Type
+	 * @return {@link Renderer} Object renderer if nothing more specific is registered
+	 */
+	private static Renderer<?> lookup(Class<?> type) {
+		for (Class<?> c=type;c!=null;c=c.getSuperclass()) {
+			Renderer<?> renderer = lookupInterfaces(c);
+			if (renderer != null) {
+				return renderer;
+			}
+		}
+		return registered.get(Object.class);
+	}
+
+	private static Renderer<?> lookupInterfaces(Class<?> type) {
+		Renderer<?> renderer = registered.get(type);
+		if (renderer == null) {
+			for (Class<?> i:type.getInterfaces()) {
+				if ((renderer = lookupInterfaces(i)) != null) {
+					break;
+				}
+			}
+		}
+		return renderer;
+	}
+
+	/**
+	 * Write text to the response
+	 * @param text {@link CharSequence} - Text
+	 * @param context {@link Context} - Current request context
+	 * @throws IOException
+	 */
+	protected static void write(CharSequence text, Context context) throws IOException {
+		PrintWriter out = context.getResponse().getWriter();
+		if (text instanceof String) {
+			out.write((String)text);
+		} else {
+			out.append(text);
+		}
+		out.flush();
+		out.close();
+	}
+
+	/**
+	 * Set the response type from the content of a text payload if not already set
+	 * @param text {@link CharSequence} - Text
+	 * @param context {@link Context} - Current request context
+	 */
+	protected static void detectType(CharSequence text, Context context) {
+		if (context.responseHasMimeType()) {
+			/* Already set, we're done here */
+			return;
+		}
+		int start = 0, end = text.length();
+		while (start < end && text.charAt(start) <= ' ') {
+			start++;
+		}
+		while (end > start && text.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		if (start == end) {
+			context.asDefaultType();
+			return;
+		}
+		char first = text.charAt(start), last = text.charAt(end - 1);
+		if ((first == '{' && last == '}') || (first == '[' && last == ']')) {
+			/* JSON */
+			context.asJSON();
+		} else if (regionEquals(text, start, "<script") && regionEquals(text, end - 9, "</script>")) {
+			/* JavaScript */
+			context.asJavascript();
+		} else if (first == '<' && last == '>') {
+			/* HMTL */
+			context.asHTML();
+		} else {
+			/* Default */
+			context.asDefaultType();
+		}
+	}
+
+	private static boolean regionEquals(CharSequence text, int offset, String s) {
+		if (offset < 0 || offset + s.length() > text.length()) {
+			return false;
+		}
+		for (int i=0;i<s.length();i++) {
+			if (text.charAt(offset + i) != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*************  DEFAULT RENDERERS  ***************/
+
+	/**
+	 * JSON objects and arrays, and any type registered with {@link #json()}.
+	 * Serialized straight to the response output as UTF-8.
+	 */
+	private static final Renderer<Object> jsonRenderer = new Renderer<Object>() {
+		@Override
+		public void render(Object data, Context context) throws IOException {
+			HttpServletResponse response = context.getResponse();
+			if (!context.responseHasMimeType()) {
+				context.asJSON();
+			}
+			response.setCharacterEncoding("UTF-8");
+			JsonWriter out = new JsonWriter(response.getOutputStream());
+			out.value(data);
+			out.close();
+		}
+	};
+
+	/**
+	 * Return the JSON renderer, to register plain object types serialized from their getters
+	 * @return {@link Renderer}
+	 */
+	public static Renderer<Object> json() {
+		return jsonRenderer;
+	}
+
+	/**
+	 * Text, type detected from its first and last characters
+	 */
+	private static final Renderer<CharSequence> textRenderer = new Renderer<CharSequence>() {
+		@Override
+		public void render(CharSequence data, Context context) throws IOException {
+			detectType(data, context);
+			write(data, context);
+		}
+	};
+
+	/**
+	 * Raw bytes
+	 */
+	private static final Renderer<byte[]> bytesRenderer = new Renderer<byte[]>() {
+		@Override
+		public void render(byte[] data, Context context) throws IOException {
+			if (!context.responseHasMimeType()) {
+				context.asDefaultType();
+			}
+			context.getResponse().setContentLength(data.length);
+			OutputStream out = context.getResponse().getOutputStream();
+			out.write(data);
+			out.flush();
+			out.close();
+		}
+	};
+
+	/**
+	 * Streaming results, flushed in chunks
+	 */
+	private static final Renderer<StreamingResult> streamingRenderer = new Renderer<StreamingResult>() {
+		@Override
+		public void render(StreamingResult data, Context context) throws IOException {
+			data.stream(context);
+		}
+	};
+
+	/**
+	 * Event streams, kept open while events are pushed
+	 */
+	private static final Renderer<EventStream> eventRenderer = new Renderer<EventStream>() {
+		@Override
+		public void render(EventStream data, Context context) throws IOException {
+			data.stream(context);
+		}
+	};
+
+	/**
+	 * Iterators, streamed one record per line. Raw so it can be registered for <code>Iterator.class</code>.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final Renderer<Iterator> iteratorRenderer = new Renderer<Iterator>() {
+		@Override
+		public void render(Iterator data, Context context) throws IOException {
+			StreamingResult.lines(data, null).stream(context);
+		}
+	};
+
+	/**
+	 * Anything else, rendered through toString() once
+	 */
+	private static final Renderer<Object> objectRenderer = new Renderer<Object>() {
+		@Override
+		public void render(Object data, Context context) throws IOException {
+			textRenderer.render(data.toString(), context);
+		}
+	};
+
+	static {
+		register(JSONObject.class, jsonRenderer);
+		register(JSONArray.class, jsonRenderer);
+		register(CharSequence.class, textRenderer);
+		register(byte[].class, bytesRenderer);
+		register(StreamingResult.class, streamingRenderer);
+		register(EventStream.class, eventRenderer);
+		register(Iterator.class, iteratorRenderer);
+		register(Object.class, objectRenderer);
+	}
+
+}
@@ -0,0 +1,238 @@
+package com.labs.jmvc;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.log4j.MDC;
+
+/**
+ * Id and timing spans of the request handled by the current thread.
+ * The id is taken from the <code>X-Request-Id</code> header when the client or a proxy sent a valid one,
+ * generated otherwise, and sent back in the same header. While the request is handled it is available
+ * to log records as the <code>request_id</code> MDC field, e.g. <code>%X{request_id}</code> in the
+ * record pattern. Spans are sent in the <code>Server-Timing</code> header, unless
+ * <code>controller.server_timing</code> is false, and summed up in a debug record at the end of the
+ * request, or a warning when it took longer than <code>controller.slow_request</code> ms (1000 by default).
+ * Streamed results and event streams stay open as long as the client reads, so they are never reported as slow.
+ * @author Benjamin Dezile
+ */
+public final class RequestTrace {
+
+	public static final String HEADER = "X-Request-Id";
+	public static final String MDC_KEY = "request_id";
+
+	private static final int maxIdLength = 64;
+	private static final int maxSpans = 8;
+	private static final ThreadLocal<RequestTrace> current = new ThreadLocal<RequestTrace>();
+	private static final String prefix = Long.toHexString(new SecureRandom().nextLong() | Long.MIN_VALUE).substring(0, 8) + "-";
+	private static final AtomicLong counter = new AtomicLong();
+	private static final boolean serverTiming = !Boolean.FALSE.equals(Config.getBool("controller", "server_timing"));
+	private static final long slowRequest = getSlowRequest();
+
+	private final String id;
+	private final long start = System.nanoTime();
+	private final String[] names = new String[maxSpans];
+	private final long[] durations = new long[maxSpans];
+	private int count = 0;
+	private int depth = 1;							// Nested dispatches to other controllers
+	private boolean streamed = false;				// Held open on purpose, not slow
+	private String controller;
+	private String action;
+
+	private RequestTrace(String id) {
+		this.id = id;
+	}
+
+	/**
+	 * Start tracing the request handled by the current thread, or join the trace of an enclosing request
+	 * @param request {@link HttpServletRequest} - Request
+	 * @param response {@link HttpServletResponse} - Response
+	 * @return {@link RequestTrace}
+	 */
+	static RequestTrace begin(HttpServletRequest request, HttpServletResponse response) {
+		RequestTrace trace = current.get();
+		if (trace != null) {
+			trace.depth++;
+			return trace;
+		}
+		String id = request.getHeader(HEADER);
+		if (!isValid(id)) {
+			id = prefix + Long.toHexString(counter.incrementAndGet());
+		}
+		trace = new RequestTrace(id);
+		current.set(trace);
+		MDC.put(MDC_KEY, id);
+		response.setHeader(HEADER, id);
+		return trace;
+	}
+
+	/**
+	 * Stop tracing, logging the summary once the outermost request is done
+	 */
+	void end() {
+		if (--depth > 0) {
+			return;
+		}
+		current.remove();
+		if (!streamed && System.nanoTime() - start >= slowRequest) {
+			Logger.warn("Slow request {}: {}", id, this);
+		} else {
+			Logger.debug("Request {}: {}", id, this);
+		}
+		MDC.remove(MDC_KEY);
+	}
+
+	/**
+	 * Return the trace of the request handled by the current thread
+	 * @return {@link RequestTrace} Null outside of a request
+	 */
+	public static RequestTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Return the id of the request handled by the current thread
+	 * @return {@link String} Null outside of a request
+	 */
+	public static String currentId() {
+		RequestTrace trace = current.get();
+		return trace != null ? trace.id : null;
+	}
+
+	/**
+	 * Return the request id
+	 * @return {@link String}
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Set the route, the first one wins when dispatching to other controllers
+	 * @param controller {@link String} - Controller name
+	 * @param action {@link String} - Action name
+	 */
+	void setRoute(String controller, String action) {
+		if (this.controller == null) {
+			this.controller = controller;
+			this.action = action;
+		}
+	}
+
+	/**
+	 * Mark the response of the request handled by the current thread as streamed to the client,
+	 * so its duration is not reported as slow
+	 */
+	static void markStreamed() {
+		RequestTrace trace = current.get();
+		if (trace != null) {
+			trace.streamed = true;
+		}
+	}
+
+	/**
+	 * Record a span, adding to the previous one of the same name
+	 * @param name {@link String} - Span name, a token as allowed in Server-Timing
+	 * @param nanos long - Duration in ns
+	 */
+	public void span(String name, long nanos) {
+		for (int i=0;i<count;i++) {
+			if (names[i].equals(name)) {
+				durations[i] += nanos;
+				return;
+			}
+		}
+		if (count < maxSpans) {
+			names[count] = name;
+			durations[count++] = nanos;
+		}
+	}
+
+	/**
+	 * Return the time elapsed since the request started
+	 * @return long ns
+	 */
+	public long getElapsed() {
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Send the spans recorded so far in the Server-Timing header
+	 * @param response {@link HttpServletResponse} - Response, before it is committed
+	 */
+	void writeHeader(HttpServletResponse response) {
+		if (!serverTiming || count == 0 || response.isCommitted()) {
+			return;
+		}
+		StringBuilder sb = new StringBuilder(24 * count);
+		for (int i=0;i<count;i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(names[i]).append(";dur=");
+			millis(durations[i], sb);
+		}
+		response.setHeader("Server-Timing", sb.toString());
+	}
+
+	/**
+	 * Send the id and spans again after the response was reset, e.g. to send an error
+	 * @param response {@link HttpServletResponse} - Response, before it is committed
+	 */
+	void restoreHeaders(HttpServletResponse response) {
+		response.setHeader(HEADER, id);
+		writeHeader(response);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(64 + 24 * count);
+		if (controller != null) {
+			sb.append(controller).append("->").append(action).append(' ');
+		}
+		for (int i=0;i<count;i++) {
+			sb.append(names[i]).append('=');
+			millis(durations[i], sb);
+			sb.append("ms ");
+		}
+		sb.append("total=");
+		millis(getElapsed(), sb);
+		return sb.append("ms").toString();
+	}
+
+	/**
+	 * Append a duration in ms with 3 decimals
+	 */
+	private static void millis(long nanos, StringBuilder sb) {
+		long micros = nanos / 1000;
+		long fraction = micros % 1000;
+		sb.append(micros / 1000).append('.');
+		if (fraction < 100) {
+			sb.append(fraction < 10 ? "00" : "0");
+		}
+		sb.append(fraction);
+	}
+
+	/**
+	 * Accept ids made of letters, digits and <code>-_.:</code> only, so they are safe to log and echo
+	 */
+	private static boolean isValid(String id) {
+		if (id == null || id.length() == 0 || id.length() > maxIdLength) {
+			return false;
+		}
+		for (int i=0;i<id.length();i++) {
+			char c = id.charAt(i);
+			if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '_' || c == '.' || c == ':')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long getSlowRequest() {
+		Integer ms = Config.getInt("controller", "slow_request");
+		return (ms != null && ms > 0 ? ms : 1000) * 1000000L;
+	}
+
+}
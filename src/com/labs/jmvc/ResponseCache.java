@@ -0,0 +1,247 @@
+package com.labs.jmvc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Size-bounded LRU cache of encoded action responses.
+ * Limits are read from the controller config section:
+ * <code>cache_max_size</code> (total bytes, 16M by default) and
+ * <code>cache_max_entry</code> (bytes per response, 1M by default).
+ * @author Benjamin Dezile
+ */
+public class ResponseCache {
+
+	private static final int defaultMaxSize = 16 * 1024 * 1024;
+	private static final int defaultMaxEntry = 1024 * 1024;
+	private static final int entryOverhead = 96;							// Approximate bytes used by an entry besides its body
+	private static final char keySeparator = '\n';
+	private static final ResponseCache instance = new ResponseCache(
+		getSize("cache_max_size", defaultMaxSize), getSize("cache_max_entry", defaultMaxEntry));
+
+	private final long maxSize;
+	private final int maxEntrySize;
+	private final LinkedHashMap<String, Entry> entries;					// Access ordered
+	private long size = 0;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	/**
+	 * Create a new response cache
+	 * @param maxSize long - Maximum total size in bytes
+	 * @param maxEntrySize int - Maximum size of a single response
+	 */
+	ResponseCache(long maxSize, int maxEntrySize) {
+		this.maxSize = maxSize;
+		this.maxEntrySize = maxEntrySize;
+		this.entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+	}
+
+	/**
+	 * Return the shared cache
+	 * @return {@link ResponseCache}
+	 */
+	public static ResponseCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get a live entry
+	 * @param key {@link String} - Cache key
+	 * @return {@link Entry} Null if missing or expired
+	 */
+	Entry get(String key) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(key);
+			if (e != null && e.expires <= System.currentTimeMillis()) {
+				entries.remove(key);
+				size -= e.weight;
+				expirations.incrementAndGet();
+				e = null;
+			}
+		}
+		(e != null ? hits : misses).incrementAndGet();
+		return e;
+	}
+
+	/**
+	 * Store a response
+	 * @param key {@link String} - Cache key
+	 * @param body byte[] - Encoded body
+	 * @param contentType {@link String} - Content type
+	 * @param etag {@link String} - ETag or null
+	 * @param ttl int - Time to live in seconds
+	 */
+	void put(String key, byte[] body, String contentType, String etag, int ttl) {
+		if (body.length > maxEntrySize) {
+			return;
+		}
+		byte[] gzipped = null;
+		if (body.length >= Compression.minSize && Compression.isCompressible(contentType)) {
+			/* Compress once, served as is to clients accepting gzip */
+			gzipped = Compression.toByteArray(body, 0, body.length, Compression.GZIP);
+		}
+		int weight = key.length() * 2 + body.length + (gzipped != null ? gzipped.length : 0) + entryOverhead;
+		Entry e = new Entry(body, gzipped, contentType, etag, System.currentTimeMillis() + ttl * 1000L, weight);
+		synchronized (this) {
+			Entry old = entries.put(key, e);
+			if (old != null) {
+				size -= old.weight;
+			}
+			size += e.weight;
+			Iterator<Entry> it = entries.values().iterator();
+			while (size > maxSize && it.hasNext()) {
+				Entry eldest = it.next();
+				it.remove();
+				size -= eldest.weight;
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drop all the cached responses of an action
+	 * @param controller {@link String} - Controller name
+	 * @param action {@link String} - Action name
+	 */
+	public void invalidate(String controller, String action) {
+		String prefix = keyPrefix(controller, action.toLowerCase());
+		synchronized (this) {
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<String, Entry> e = it.next();
+				if (e.getKey().startsWith(prefix)) {
+					size -= e.getValue().weight;
+					it.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Drop all cached responses
+	 */
+	public synchronized void invalidateAll() {
+		entries.clear();
+		size = 0;
+	}
+
+	/**
+	 * Build the cache key of a request
+	 * @param controller {@link String} - Controller name
+	 * @param action {@link String} - Action name
+	 * @param policy {@link Cached} - Cache policy
+	 * @param request {@link HttpServletRequest} - Request
+	 * @param path {@link String} - Request path
+	 * @return {@link String}
+	 */
+	static String key(String controller, String action, Cached policy, HttpServletRequest request, String path) {
+		StringBuilder key = new StringBuilder(keyPrefix(controller, action));
+		appendKey(key, path);
+		for (String p:policy.params()) {
+			appendKey(key, request.getParameter(p));
+		}
+		for (String h:policy.headers()) {
+			appendKey(key, request.getHeader(h));
+		}
+		if (policy.cookies().length > 0) {
+			Cookie[] cookies = request.getCookies();
+			for (String c:policy.cookies()) {
+				String value = null;
+				if (cookies != null) {
+					for (Cookie cookie:cookies) {
+						if (c.equals(cookie.getName())) {
+							value = cookie.getValue();
+							break;
+						}
+					}
+				}
+				appendKey(key, value);
+			}
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Append a length-prefixed key component, so values containing the separator cannot collide
+	 */
+	private static void appendKey(StringBuilder key, String value) {
+		if (value == null) {
+			key.append('-');
+		} else {
+			key.append(value.length()).append(':').append(value);
+		}
+		key.append(keySeparator);
+	}
+
+	private static String keyPrefix(String controller, String action) {
+		return controller + "/" + action + keySeparator;
+	}
+
+	/*************  METRICS  ***************/
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public int getMaxEntrySize() {
+		return maxEntrySize;
+	}
+
+	private static int getSize(String key, int defaultValue) {
+		Integer size = Config.getInt("controller", key);
+		return size != null && size > 0 ? size : defaultValue;
+	}
+
+	/**
+	 * Cached response
+	 * @author Benjamin Dezile
+	 */
+	static final class Entry {
+
+		final byte[] body;
+		final byte[] gzipped;				// Gzipped body, null if not compressible
+		final String contentType;
+		final String etag;
+		final long expires;
+		final int weight;
+
+		private Entry(byte[] body, byte[] gzipped, String contentType, String etag, long expires, int weight) {
+			this.body = body;
+			this.gzipped = gzipped;
+			this.contentType = contentType;
+			this.etag = etag;
+			this.expires = expires;
+			this.weight = weight;
+		}
+
+	}
+
+}
@@ -0,0 +1,288 @@
+package com.labs.jmvc;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Appender;
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.helpers.AppenderAttachableImpl;
+import org.apache.log4j.spi.AppenderAttachable;
+import org.apache.log4j.spi.LoggingEvent;
+
+/**
+ * Appender handing events to a single writer thread through a bounded lock-free ring buffer,
+ * so request threads never wait on console or disk I/O. The writer drains events in batches
+ * to the attached appenders and flushes those that are {@link Flushable} once per batch.
+ * The overflow policy decides what happens once the buffer is three quarters full:
+ * <code>block</code> keeps every event and waits for room when full,
+ * <code>drop_debug</code> drops debug and trace events, and <code>sample</code> also keeps
+ * only one in <code>sampleRate</code> info events, dropping them all when full.
+ * Warnings and errors are never dropped.
+ * @author Benjamin Dezile
+ */
+final class RingAppender extends AppenderSkeleton implements AppenderAttachable {
+
+	static final String BLOCK = "block";
+	static final String DROP_DEBUG = "drop_debug";
+	static final String SAMPLE = "sample";
+
+	private static final int batchSize = 256;
+	private static final long idleWait = 100000000L;		// Writer wake-up when idle, in ns
+	private static final long fullWait = 100000L;			// Producer back-off when full, in ns
+
+	private final AtomicReferenceArray<LoggingEvent> slots;
+	private final AtomicLongArray sequences;			// Per slot: position it can be written (== pos) or read (== pos + 1) at
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head = 0;						// Written by the writer only
+	private final String policy;
+	private final int sampleRate;
+	private final int highWater;
+	private final AtomicLong sampled = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AppenderAttachableImpl appenders = new AppenderAttachableImpl();
+	private final Thread writer;
+	private volatile boolean idle = false;
+	private volatile boolean running = true;
+
+	/**
+	 * Create a new ring appender and start its writer thread
+	 * @param capacity int - Number of buffered events, rounded up to a power of two
+	 * @param policy {@link String} - Overflow policy: {@link #BLOCK}, {@link #DROP_DEBUG} or {@link #SAMPLE}
+	 * @param sampleRate int - One in how many info events is kept when sampling
+	 */
+	RingAppender(int capacity, String policy, int sampleRate) {
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+		this.slots = new AtomicReferenceArray<LoggingEvent>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i=0;i<size;i++) {
+			sequences.set(i, i);
+		}
+		this.mask = size - 1;
+		this.highWater = size - size / 4;
+		if (!BLOCK.equals(policy) && !DROP_DEBUG.equals(policy) && !SAMPLE.equals(policy)) {
+			throw new IllegalArgumentException("Unknown log overflow policy: " + policy);
+		}
+		this.policy = policy;
+		this.sampleRate = Math.max(sampleRate, 1);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				drain();
+			}
+		}, "jmvc-log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Queue an event without taking the appender lock
+	 */
+	@Override
+	public void doAppend(LoggingEvent event) {
+		if (closed) {
+			return;
+		}
+		append(event);
+	}
+
+	@Override
+	protected void append(LoggingEvent event) {
+		boolean debug = !event.getLevel().isGreaterOrEqual(Level.INFO);
+		boolean droppable = SAMPLE.equals(policy) ? !event.getLevel().isGreaterOrEqual(Level.WARN) : (DROP_DEBUG.equals(policy) && debug);
+		if (droppable && getDepth() >= highWater && (debug || sampled.incrementAndGet() % sampleRate != 0)) {
+			dropped.incrementAndGet();
+			return;
+		}
+		/* Capture what belongs to the calling thread before handing over */
+		event.getThreadName();
+		event.getNDC();
+		event.getMDCCopy();
+		event.getRenderedMessage();
+		while (!offer(event)) {
+			if (droppable) {
+				dropped.incrementAndGet();
+				return;
+			}
+			wake();
+			LockSupport.parkNanos(fullWait);
+			if (!running) {
+				return;
+			}
+		}
+		wake();
+	}
+
+	/**
+	 * Claim a slot and publish an event, see D. Vyukov's bounded MPMC queue
+	 * @return boolean False if the buffer is full
+	 */
+	private boolean offer(LoggingEvent event) {
+		long pos = tail.get();
+		for (;;) {
+			int i = (int)pos & mask;
+			long diff = sequences.get(i) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					slots.set(i, event);
+					sequences.lazySet(i, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Take the next event, from the writer thread only
+	 * @return {@link LoggingEvent} Null if none is ready
+	 */
+	private LoggingEvent poll() {
+		long pos = head;
+		int i = (int)pos & mask;
+		if (sequences.get(i) != pos + 1) {
+			return null;
+		}
+		LoggingEvent event = slots.get(i);
+		slots.lazySet(i, null);
+		sequences.lazySet(i, pos + mask + 1);
+		head = pos + 1;
+		return event;
+	}
+
+	private void wake() {
+		if (idle) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Writer loop: append batches and flush after each one
+	 */
+	private void drain() {
+		while (running || head != tail.get()) {
+			int n = 0;
+			LoggingEvent event;
+			while (n < batchSize && (event = poll()) != null) {
+				try {
+					appenders.appendLoopOnAppenders(event);
+				} catch (RuntimeException e) {
+					/* Keep the writer alive */
+					errorHandler.error("Could not write log event", e, 0);
+				}
+				n++;
+			}
+			if (n > 0) {
+				flush();
+				continue;
+			}
+			idle = true;
+			if (head == tail.get() && running) {
+				LockSupport.parkNanos(this, idleWait);
+			}
+			idle = false;
+		}
+	}
+
+	private void flush() {
+		Enumeration<?> e = appenders.getAllAppenders();
+		while (e != null && e.hasMoreElements()) {
+			Object a = e.nextElement();
+			if (a instanceof Flushable) {
+				try {
+					((Flushable)a).flush();
+				} catch (IOException ex) {
+					errorHandler.error("Could not flush " + ((Appender)a).getName(), ex, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the number of events waiting to be written
+	 * @return int
+	 */
+	int getDepth() {
+		return (int)(tail.get() - head);
+	}
+
+	/**
+	 * Return the number of events dropped by the overflow policy
+	 * @return long
+	 */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Write what is buffered, stop the writer thread and close the attached appenders
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		running = false;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		appenders.removeAllAppenders();
+	}
+
+	@Override
+	public boolean requiresLayout() {
+		return false;
+	}
+
+	@Override
+	public void addAppender(Appender appender) {
+		appenders.addAppender(appender);
+	}
+
+	@Override
+	@SuppressWarnings("rawtypes")
+	public Enumeration getAllAppenders() {
+		return appenders.getAllAppenders();
+	}
+
+	@Override
+	public Appender getAppender(String name) {
+		return appenders.getAppender(name);
+	}
+
+	@Override
+	public boolean isAttached(Appender appender) {
+		return appenders.isAttached(appender);
+	}
+
+	@Override
+	public void removeAllAppenders() {
+		appenders.removeAllAppenders();
+	}
+
+	@Override
+	public void removeAppender(Appender appender) {
+		appenders.removeAppender(appender);
+	}
+
+	@Override
+	public void removeAppender(String name) {
+		appenders.removeAppender(name);
+	}
+
+}
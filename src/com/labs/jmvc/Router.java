@@ -0,0 +1,228 @@
+package com.labs.jmvc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Case-insensitive route trie keyed on path segments.
+ * Patterns look like <code>/user/{id}/edit</code>, literal segments win over variables.
+ * Matching walks the request path in place and records variable bounds, no string is created.
+ * @author Benjamin Dezile
+ */
+class Router {
+
+	private static final char separator = '/';
+	private static final Node[] noChildren = new Node[0];
+
+	private final Node root = new Node(null);
+	private final List<Route> routes = new ArrayList<Route>(0);
+	private int maxDepth = 0;						// Deepest route, longer paths never match
+	private boolean hasVariables = false;			// Whether any route declares variables
+
+	/**
+	 * Add a route
+	 * @param pattern {@link String} - Route pattern
+	 * @param name {@link String} - Action name
+	 * @param action {@link Action} - Action to execute
+	 * @return {@link Route}
+	 */
+	Route add(String pattern, String name, Action action) {
+		List<String> varNames = new ArrayList<String>(0);
+		List<Integer> varDepths = new ArrayList<Integer>(0);
+		Node node = root;
+		int depth = 0;
+		for (String seg:pattern.split(String.valueOf(separator))) {
+			if (seg.length() == 0) {
+				continue;
+			}
+			if (seg.startsWith("{") && seg.endsWith("}")) {
+				/* Path variable */
+				if (node.variable == null) {
+					node.variable = new Node(null);
+				}
+				node = node.variable;
+				varNames.add(seg.substring(1, seg.length() - 1).trim());
+				varDepths.add(depth);
+			} else {
+				node = node.child(seg);
+			}
+			depth++;
+		}
+		String[] vars = varNames.toArray(new String[varNames.size()]);
+		int[] depths = new int[varDepths.size()];
+		for (int i=0;i<depths.length;i++) {
+			depths[i] = varDepths.get(i);
+		}
+		Route route = new Route(pattern, name, action, vars, depths);
+		if (node.route != null) {
+			routes.remove(node.route);
+		}
+		node.route = route;
+		routes.add(route);
+		maxDepth = Math.max(maxDepth, depth);
+		hasVariables |= vars.length > 0;
+		return route;
+	}
+
+	/**
+	 * Point all the routes of an action to a new implementation
+	 * @param name {@link String} - Action name
+	 * @param action {@link Action} - Action to execute
+	 */
+	void bind(String name, Action action) {
+		for (Route route:routes) {
+			if (route.name.equals(name)) {
+				route.action = action;
+			}
+		}
+	}
+
+	/**
+	 * Allocate the array holding variable bounds for one match
+	 * @return int[] Null if no route has variables
+	 */
+	int[] newBounds() {
+		return hasVariables ? new int[2 * maxDepth] : null;
+	}
+
+	/**
+	 * Find the route matching a path
+	 * @param path {@link String} - Request path
+	 * @param bounds int[] - Receives the start and end of each segment captured by a variable
+	 * @return {@link Route} Null if not found
+	 */
+	Route match(String path, int[] bounds) {
+		if (path == null) {
+			return null;
+		}
+		return match(root, path, 0, 0, bounds);
+	}
+
+	private Route match(Node node, String path, int from, int depth, int[] bounds) {
+		int len = path.length();
+		int start = from;
+		while (start < len && path.charAt(start) == separator) {
+			start++;
+		}
+		if (start == len) {
+			/* End of path */
+			return node.route;
+		}
+		if (depth >= maxDepth) {
+			return null;
+		}
+		int end = path.indexOf(separator, start);
+		if (end < 0) {
+			end = len;
+		}
+		int segLength = end - start;
+		Route route;
+		for (Node child:node.children) {
+			if (child.segment.length() == segLength && child.segment.regionMatches(true, 0, path, start, segLength)) {
+				if ((route = match(child, path, end, depth + 1, bounds)) != null) {
+					return route;
+				}
+			}
+		}
+		if (node.variable != null && (route = match(node.variable, path, end, depth + 1, bounds)) != null) {
+			if (bounds != null) {
+				bounds[2 * depth] = start;
+				bounds[2 * depth + 1] = end;
+			}
+			return route;
+		}
+		return null;
+	}
+
+	/**
+	 * Trie node
+	 */
+	private static final class Node {
+
+		private final String segment;
+		private Node[] children = noChildren;
+		private Node variable;
+		private Route route;
+
+		private Node(String segment) {
+			this.segment = segment;
+		}
+
+		/**
+		 * Get or create a literal child
+		 * @param seg {@link String} - Segment
+		 * @return {@link Node}
+		 */
+		private Node child(String seg) {
+			for (Node child:children) {
+				if (child.segment.equalsIgnoreCase(seg)) {
+					return child;
+				}
+			}
+			Node[] c = new Node[children.length + 1];
+			System.arraycopy(children, 0, c, 0, children.length);
+			c[children.length] = new Node(seg);
+			children = c;
+			return c[children.length - 1];
+		}
+
+	}
+
+	/**
+	 * Route to an action
+	 * @author Benjamin Dezile
+	 */
+	static final class Route {
+
+		private final String pattern;
+		private final String name;
+		private final String[] variables;			// Variable names
+		private final int[] depths;					// Segment index of each variable
+		private Action action;
+
+		private Route(String pattern, String name, Action action, String[] variables, int[] depths) {
+			this.pattern = pattern;
+			this.name = name;
+			this.action = action;
+			this.variables = variables;
+			this.depths = depths;
+		}
+
+		String getName() {
+			return name;
+		}
+
+		Action getAction() {
+			return action;
+		}
+
+		/**
+		 * Return the index of a variable
+		 * @param variable {@link String} - Variable name
+		 * @return int -1 if not found
+		 */
+		int indexOf(String variable) {
+			for (int i=0;i<variables.length;i++) {
+				if (variables[i].equals(variable)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		String[] getVariables() {
+			return variables;
+		}
+
+		int getDepth(int index) {
+			return depths[index];
+		}
+
+		@Override
+		public String toString() {
+			return pattern + " -> " + name;
+		}
+
+	}
+
+}
@@ -0,0 +1,152 @@
+package com.labs.jmvc;
+
+import java.security.SecureRandom;
+
+/**
+ * Storage behind {@link Context#put}, {@link Context#get} and {@link Context#remove}.
+ * Selected with <code>controller.session_store</code>: <code>container</code> (default, the
+ * servlet container's {@link javax.servlet.http.HttpSession}), <code>memory</code>
+ * ({@link MemorySessionStore}), <code>file</code> ({@link FileSessionStore}) or the name
+ * of a class extending this one with a public no-argument constructor.
+ * Stores other than the container identify sessions with their own cookie, named by
+ * <code>controller.session_cookie</code> (<code>&lt;application name&gt;_sid</code> by default),
+ * sent on <code>application.prefix</code> (<code>/</code> by default) and marked Secure over HTTPS
+ * or when <code>controller.session_cookie_secure</code> is true.
+ * @author Benjamin Dezile
+ */
+public abstract class SessionStore {
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int idBytes = 16;
+	private static final SecureRandom random = new SecureRandom();
+	private static final SessionStore instance = create(Config.get("controller", "session_store"));
+
+	/**
+	 * Return the configured store
+	 * @return {@link SessionStore} Null when sessions are kept by the container
+	 */
+	public static SessionStore getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Instantiate a store
+	 * @param type {@link String} - Store type or class name
+	 * @return {@link SessionStore} Null for the container
+	 */
+	static SessionStore create(String type) {
+		if (type == null || "".equals(type) || "container".equals(type)) {
+			return null;
+		} else if ("memory".equals(type)) {
+			return new MemorySessionStore();
+		} else if ("file".equals(type)) {
+			return new FileSessionStore();
+		}
+		try {
+			return (SessionStore)Class.forName(type).newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Invalid session store: " + type, e);
+		}
+	}
+
+	/**
+	 * Return the name of the cookie holding the session id
+	 * @return {@link String}
+	 */
+	static String getCookieName() {
+		String name = Config.get("controller", "session_cookie");
+		return name != null ? name : Config.get("application", "name") + "_sid";
+	}
+
+	/**
+	 * Generate a new random session id
+	 * @return {@link String} 32 hex characters
+	 */
+	static String newId() {
+		byte[] b = new byte[idBytes];
+		random.nextBytes(b);
+		char[] id = new char[idBytes * 2];
+		for (int i=0;i<idBytes;i++) {
+			id[2*i] = HEX[(b[i] >> 4) & 0xf];
+			id[2*i+1] = HEX[b[i] & 0xf];
+		}
+		return new String(id);
+	}
+
+	/**
+	 * Return whether a client supplied value looks like an id from {@link #newId()}
+	 * @param id {@link String} - Session id
+	 * @return boolean
+	 */
+	static boolean isValidId(String id) {
+		if (id == null || id.length() != idBytes * 2) {
+			return false;
+		}
+		for (int i=0;i<id.length();i++) {
+			char c = id.charAt(i);
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Return whether a session exists and has not expired
+	 * @param id {@link String} - Session id
+	 * @return boolean
+	 */
+	public abstract boolean contains(String id);
+
+	/**
+	 * Get a session value
+	 * @param id {@link String} - Session id
+	 * @param name {@link String} - Value name
+	 * @return {@link Object} Null if not found
+	 */
+	public abstract Object get(String id, String name);
+
+	/**
+	 * Set a session value, creating the session if needed
+	 * @param id {@link String} - Session id
+	 * @param name {@link String} - Value name
+	 * @param value {@link Object} - Value
+	 */
+	public abstract void put(String id, String name, Object value);
+
+	/**
+	 * Remove a session value
+	 * @param id {@link String} - Session id
+	 * @param name {@link String} - Value name
+	 */
+	public abstract void remove(String id, String name);
+
+	/**
+	 * Drop a session
+	 * @param id {@link String} - Session id
+	 */
+	public abstract void invalidate(String id);
+
+	/**
+	 * Return the number of live sessions
+	 * @return int
+	 */
+	public abstract int getSize();
+
+	/**
+	 * Release the resources held by the store, called when the last controller is destroyed
+	 */
+	public void close() {}
+
+	/**
+	 * Read a size from the controller config section
+	 * @param key {@link String} - Config key
+	 * @param defaultValue int - Value if missing or invalid
+	 * @return int
+	 */
+	static int getInt(String key, int defaultValue) {
+		Integer value = Config.getInt("controller", key);
+		return value != null && value > 0 ? value : defaultValue;
+	}
+
+}
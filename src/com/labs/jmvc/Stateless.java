@@ -0,0 +1,21 @@
+package com.labs.jmvc;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Forbid session access in a controller.
+ * {@link Context#getSession()}, {@link Context#put}, {@link Context#get} and {@link Context#remove}
+ * throw an {@link IllegalStateException}, and so does creating a session from the request,
+ * including from views (JSPs must declare <code>session="false"</code>).
+ * @author Benjamin Dezile
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+@Inherited
+public @interface Stateless {
+
+}
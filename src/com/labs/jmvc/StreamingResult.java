@@ -0,0 +1,266 @@
+package com.labs.jmvc;
+
+import java.io.FilterOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Iterator;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Action result streamed to the client in chunks instead of being built in memory.
+ * Output is flushed every <code>controller.stream_chunk_size</code> bytes (8k by default)
+ * and writes block while the client is not reading, so memory per request stays bounded.
+ * @author Benjamin Dezile
+ */
+public abstract class StreamingResult {
+
+	private static final int defaultChunkSize = 8192;
+	protected static final int chunkSize = getChunkSize();
+
+	private final String contentType;
+
+	/**
+	 * Create a new streaming result
+	 * @param contentType {@link String} - Content type, null to keep the one set by the action or use the default
+	 */
+	protected StreamingResult(String contentType) {
+		this.contentType = contentType;
+	}
+
+	/**
+	 * Return the content type
+	 * @return {@link String}
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Stream the result to the response
+	 * @param context {@link Context} - Current request context
+	 * @throws IOException
+	 */
+	void stream(Context context) throws IOException {
+		HttpServletResponse response = context.getResponse();
+		if (contentType != null) {
+			response.setContentType(contentType);
+		} else if (!context.responseHasMimeType()) {
+			context.asDefaultType();
+		}
+		if (!response.isCommitted()) {
+			response.setBufferSize(chunkSize);
+		}
+		/* Chunks go to the client as they are flushed, not once the whole result is buffered */
+		BufferedResponse.unbuffer(response);
+		RequestTrace.markStreamed();
+		streamTo(response);
+	}
+
+	/**
+	 * Write the result to the response
+	 * @param response {@link HttpServletResponse} - Response
+	 * @throws IOException
+	 */
+	abstract void streamTo(HttpServletResponse response) throws IOException;
+
+	/**
+	 * Read the chunk size from the controller config
+	 * @return int
+	 */
+	private static int getChunkSize() {
+		Integer size = Config.getInt("controller", "stream_chunk_size");
+		return size != null && size > 0 ? size : defaultChunkSize;
+	}
+
+	/**
+	 * Text result written through a {@link Writer}
+	 * @author Benjamin Dezile
+	 */
+	public static abstract class Text extends StreamingResult {
+
+		protected Text(String contentType) {
+			super(contentType);
+		}
+
+		/**
+		 * Write the result
+		 * @param out {@link Writer} - Response writer, flushed to the client every chunk
+		 * @throws IOException
+		 */
+		public abstract void write(Writer out) throws IOException;
+
+		@Override
+		void streamTo(HttpServletResponse response) throws IOException {
+			Writer out = new ChunkedWriter(response.getWriter(), chunkSize);
+			try {
+				write(out);
+				out.flush();
+			} finally {
+				out.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Binary result written through an {@link OutputStream}
+	 * @author Benjamin Dezile
+	 */
+	public static abstract class Binary extends StreamingResult {
+
+		protected Binary(String contentType) {
+			super(contentType);
+		}
+
+		/**
+		 * Write the result
+		 * @param out {@link OutputStream} - Response stream, flushed to the client every chunk
+		 * @throws IOException
+		 */
+		public abstract void write(OutputStream out) throws IOException;
+
+		@Override
+		void streamTo(HttpServletResponse response) throws IOException {
+			OutputStream out = new ChunkedOutputStream(response.getOutputStream(), chunkSize);
+			try {
+				write(out);
+				out.flush();
+			} finally {
+				out.close();
+			}
+		}
+
+	}
+
+	/**
+	 * Stream records one per line
+	 * @param records {@link Iterator} - Records, written with toString()
+	 * @param contentType {@link String} - Content type or null
+	 * @return {@link Text}
+	 */
+	public static Text lines(final Iterator<?> records, String contentType) {
+		return new Text(contentType) {
+			@Override
+			public void write(Writer out) throws IOException {
+				while (records.hasNext()) {
+					out.write(String.valueOf(records.next()));
+					out.write('\n');
+				}
+			}
+		};
+	}
+
+	/**
+	 * Stream records as a JSON array
+	 * @param records {@link Iterator} - Records, written with toString() (e.g. JSON objects)
+	 * @return {@link Text}
+	 */
+	public static Text jsonArray(final Iterator<?> records) {
+		return new Text("application/json") {
+			@Override
+			public void write(Writer out) throws IOException {
+				out.write('[');
+				boolean first = true;
+				while (records.hasNext()) {
+					if (!first) {
+						out.write(',');
+					}
+					out.write(String.valueOf(records.next()));
+					first = false;
+				}
+				out.write(']');
+			}
+		};
+	}
+
+	/**
+	 * Stream any value as JSON, see {@link JsonWriter#value(Object)}
+	 * @param value {@link Object} - Value, e.g. a plain object, a collection or an iterator
+	 * @return {@link Binary}
+	 */
+	public static Binary json(final Object value) {
+		return new Binary("application/json; charset=UTF-8") {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				new JsonWriter(out, chunkSize).value(value).flush();
+			}
+		};
+	}
+
+	/**
+	 * Writer flushing to the client every chunk
+	 */
+	private static final class ChunkedWriter extends FilterWriter {
+
+		private final int chunk;
+		private int pending = 0;
+
+		private ChunkedWriter(Writer out, int chunk) {
+			super(out);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			out.write(c);
+			written(1);
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			out.write(cbuf, off, len);
+			written(len);
+		}
+
+		@Override
+		public void write(String str, int off, int len) throws IOException {
+			out.write(str, off, len);
+			written(len);
+		}
+
+		private void written(int len) throws IOException {
+			if ((pending += len) >= chunk) {
+				pending = 0;
+				out.flush();
+			}
+		}
+
+	}
+
+	/**
+	 * Output stream flushing to the client every chunk
+	 */
+	private static final class ChunkedOutputStream extends FilterOutputStream {
+
+		private final int chunk;
+		private int pending = 0;
+
+		private ChunkedOutputStream(OutputStream out, int chunk) {
+			super(out);
+			this.chunk = chunk;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			written(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			written(len);
+		}
+
+		private void written(int len) throws IOException {
+			if ((pending += len) >= chunk) {
+				pending = 0;
+				out.flush();
+			}
+		}
+
+	}
+
+}
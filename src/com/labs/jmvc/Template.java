@@ -0,0 +1,276 @@
+package com.labs.jmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONObject;
+
+/**
+ * Precompiled text template, an alternative to JSP views for pages that mostly embed data.
+ * Tags look like <code>{{user.name}}</code> (HTML escaped), <code>{{raw html}}</code> (as is),
+ * <code>{{json user}}</code> (serialized with {@link JsonWriter}, safe inside a script element)
+ * and <code>{{! comment}}</code>. Names are looked up in {@link Map}s, {@link JSONObject}s,
+ * lists and arrays by index, and public getters. Missing values render as nothing, or null in JSON.
+ * Literal text is encoded to UTF-8 once at compile time.
+ * @author Benjamin Dezile
+ */
+public final class Template {
+
+	private static final String open = "{{";
+	private static final String close = "}}";
+	private static final int ESCAPED = 0;
+	private static final int RAW = 1;
+	private static final int JSON = 2;
+	private static final Map<Class<?>, Map<String, Object>> getters = new ConcurrentHashMap<Class<?>, Map<String, Object>>();
+	private static final Object noGetter = new Object();				// Marks names without a getter
+
+	private final Object[] segments;				// Encoded literals (byte[]) and tags
+
+	private Template(Object[] segments) {
+		this.segments = segments;
+	}
+
+	/**
+	 * Compile a template
+	 * @param source {@link String} - Template text
+	 * @return {@link Template}
+	 * @throws IllegalArgumentException If a tag is not closed
+	 */
+	public static Template compile(String source) {
+		List<Object> segments = new ArrayList<Object>();
+		int p = 0, l = source.length();
+		while (p < l) {
+			int start = source.indexOf(open, p);
+			if (start < 0) {
+				start = l;
+			}
+			if (start > p) {
+				segments.add(encode(source.substring(p, start)));
+			}
+			if (start == l) {
+				break;
+			}
+			int end = source.indexOf(close, start + open.length());
+			if (end < 0) {
+				throw new IllegalArgumentException("Unclosed tag at " + start);
+			}
+			String tag = source.substring(start + open.length(), end).trim();
+			p = end + close.length();
+			if (tag.startsWith("!")) {
+				continue;
+			}
+			int mode = ESCAPED;
+			if (tag.startsWith("raw ")) {
+				mode = RAW;
+				tag = tag.substring(4).trim();
+			} else if (tag.startsWith("json ")) {
+				mode = JSON;
+				tag = tag.substring(5).trim();
+			}
+			if (tag.length() == 0) {
+				throw new IllegalArgumentException("Empty tag at " + start);
+			}
+			segments.add(new Tag(tag.split("\\."), mode));
+		}
+		return new Template(segments.toArray());
+	}
+
+	/**
+	 * Render the template
+	 * @param model {@link Object} - Root scope
+	 * @param out {@link OutputStream} - Destination, receives UTF-8
+	 * @throws IOException
+	 */
+	public void render(Object model, OutputStream out) throws IOException {
+		for (Object segment:segments) {
+			if (segment instanceof byte[]) {
+				out.write((byte[])segment);
+				continue;
+			}
+			Tag tag = (Tag)segment;
+			Object value = lookup(model, tag.path);
+			if (tag.mode == JSON) {
+				JsonWriter json = new JsonWriter(new ScriptSafeOutputStream(out), 1024);
+				json.value(value);
+				json.flush();
+			} else if (value != null && value != JSONObject.NULL) {
+				String s = value.toString();
+				out.write(encode(tag.mode == ESCAPED ? escape(s) : s));
+			}
+		}
+	}
+
+	/**
+	 * Render the template to a string
+	 * @param model {@link Object} - Root scope
+	 * @return {@link String}
+	 */
+	public String render(Object model) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			render(model, out);
+			return out.toString("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Follow a dotted name from a scope
+	 */
+	private static Object lookup(Object scope, String[] path) {
+		Object value = scope;
+		for (String name:path) {
+			if (value == null) {
+				return null;
+			} else if (value instanceof Map) {
+				value = ((Map<?,?>)value).get(name);
+			} else if (value instanceof JSONObject) {
+				value = ((JSONObject)value).opt(name);
+			} else if (value instanceof List || value.getClass().isArray()) {
+				int index = ParameterTree.indexOf(name);
+				int size = value instanceof List ? ((List<?>)value).size() : Array.getLength(value);
+				if (index < 0 || index >= size) {
+					return null;
+				}
+				value = value instanceof List ? ((List<?>)value).get(index) : Array.get(value, index);
+			} else {
+				value = get(value, name);
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Call a public getter
+	 */
+	private static Object get(Object bean, String name) {
+		Class<?> type = bean.getClass();
+		Map<String, Object> methods = getters.get(type);
+		if (methods == null) {
+			methods = new ConcurrentHashMap<String, Object>();
+			getters.put(type, methods);
+		}
+		Object getter = methods.get(name);
+		if (getter == null) {
+			getter = noGetter;
+			String suffix = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+			for (String prefix:new String[] { "get", "is" }) {
+				try {
+					Method m = type.getMethod(prefix + suffix);
+					if (!Modifier.isStatic(m.getModifiers()) && m.getReturnType() != void.class) {
+						m.setAccessible(true);
+						getter = m;
+						break;
+					}
+				} catch (NoSuchMethodException e) {
+					continue;
+				}
+			}
+			methods.put(name, getter);
+		}
+		if (getter == noGetter) {
+			return null;
+		}
+		try {
+			return ((Method)getter).invoke(bean);
+		} catch (Exception e) {
+			throw new IllegalStateException("Could not read " + name + " from " + type.getName(), e);
+		}
+	}
+
+	private static String escape(String s) {
+		StringBuilder sb = null;
+		int l = s.length();
+		for (int i=0;i<l;i++) {
+			String entity;
+			switch (s.charAt(i)) {
+				case '&': entity = "&amp;"; break;
+				case '<': entity = "&lt;"; break;
+				case '>': entity = "&gt;"; break;
+				case '"': entity = "&quot;"; break;
+				case '\'': entity = "&#39;"; break;
+				default: entity = null;
+			}
+			if (entity != null) {
+				if (sb == null) {
+					sb = new StringBuilder(l + 16).append(s, 0, i);
+				}
+				sb.append(entity);
+			} else if (sb != null) {
+				sb.append(s.charAt(i));
+			}
+		}
+		return sb != null ? sb.toString() : s;
+	}
+
+	private static byte[] encode(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Tag of a compiled template
+	 */
+	private static final class Tag {
+		final String[] path;
+		final int mode;
+		Tag(String[] path, int mode) {
+			this.path = path;
+			this.mode = mode;
+		}
+	}
+
+	/**
+	 * Escapes &lt; so JSON cannot close the script element it is embedded in.
+	 * In JSON it can only appear inside strings, where the escape means the same.
+	 */
+	private static final class ScriptSafeOutputStream extends FilterOutputStream {
+
+		private static final byte[] LT = { '\\', 'u', '0', '0', '3', 'c' };
+
+		ScriptSafeOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (b == '<') {
+				out.write(LT);
+			} else {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int start = off, end = off + len;
+			for (int i=off;i<end;i++) {
+				if (b[i] == '<') {
+					out.write(b, start, i - start);
+					out.write(LT);
+					start = i + 1;
+				}
+			}
+			out.write(b, start, end - start);
+		}
+
+		@Override
+		public void flush() {
+			/* Leave flushing the page to the caller */
+		}
+
+	}
+
+}
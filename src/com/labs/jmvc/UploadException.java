@@ -0,0 +1,33 @@
+package com.labs.jmvc;
+
+import java.io.IOException;
+
+/**
+ * Rejected upload: too large (413) or malformed (400)
+ * @author Benjamin Dezile
+ */
+public class UploadException extends IOException {
+
+	private static final long serialVersionUID = -4273118863210765093L;
+
+	private final int status;
+
+	/**
+	 * Create a new upload error
+	 * @param status int - HTTP status to answer with
+	 * @param message {@link String} - Message
+	 */
+	public UploadException(int status, String message) {
+		super(message);
+		this.status = status;
+	}
+
+	/**
+	 * Return the HTTP status to answer with
+	 * @return int
+	 */
+	public int getStatus() {
+		return status;
+	}
+
+}
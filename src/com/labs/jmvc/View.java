@@ -0,0 +1,186 @@
+package com.labs.jmvc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * View of an action, resolved once and cached.
+ * The view of <code>controller->action</code> is <code>view_path/controller/action.tpl</code>,
+ * a {@link Template} compiled on load, or else <code>view_path/controller/action.jsp</code>,
+ * forwarded to through a dispatcher obtained once from the servlet context.
+ * Views are resolved when the controller is initialized so missing ones are known up front;
+ * in development they are resolved again on each render so edits show up.
+ * @author Benjamin Dezile
+ */
+final class View {
+
+	private static final String root = Config.get("controller", "view_path");
+	private static final boolean reload = Config.isDev();				// Pick up edited views
+	private static final Map<String, View> views = new ConcurrentHashMap<String, View>();
+	private static volatile ServletContext servletContext;
+
+	private final String name;						// controller->action
+	private final String path;						// JSP path
+	private final Template template;
+	private final RequestDispatcher dispatcher;		// Null until the servlet context is known
+	private final boolean exists;
+
+	private View(String controllerName, String actionName, ServletContext ctx) throws IOException {
+		String base = root + "/" + controllerName + "/" + actionName;
+		this.name = controllerName + "->" + actionName;
+		this.path = base + ".jsp";
+		this.template = ctx != null ? load(ctx, base + ".tpl") : null;
+		if (template != null) {
+			this.dispatcher = null;
+			this.exists = true;
+		} else if (ctx != null) {
+			this.exists = ctx.getResource(path) != null;
+			this.dispatcher = exists ? ctx.getRequestDispatcher(path) : null;
+		} else {
+			/* Cannot tell yet, let the request dispatcher decide */
+			this.dispatcher = null;
+			this.exists = true;
+		}
+	}
+
+	/**
+	 * Resolve the views of a controller's actions
+	 * @param ctx {@link ServletContext} - Servlet context
+	 * @param controllerName {@link String} - Controller name
+	 * @param actionNames {@link Collection}<{@link String}> - Action names
+	 */
+	static void init(ServletContext ctx, String controllerName, Collection<String> actionNames) {
+		servletContext = ctx;
+		for (String actionName:actionNames) {
+			try {
+				View view = new View(controllerName, actionName, ctx);
+				views.put(key(controllerName, actionName), view);
+				if (!view.exists) {
+					Logger.debug("No view for {}, the action must return data", view.name);
+				}
+			} catch (Exception e) {
+				Logger.error("Could not load view for " + controllerName + "->" + actionName, e);
+			}
+		}
+	}
+
+	/**
+	 * Get the view of an action
+	 * @param controllerName {@link String} - Controller name
+	 * @param actionName {@link String} - Action name
+	 * @return {@link View}
+	 * @throws IOException If the template cannot be read
+	 */
+	static View get(String controllerName, String actionName) throws IOException {
+		String key = key(controllerName, actionName);
+		View view = views.get(key);
+		if (view == null || reload) {
+			view = new View(controllerName, actionName, servletContext);
+			views.put(key, view);
+		}
+		return view;
+	}
+
+	/**
+	 * Render the view
+	 * @param request {@link HttpServletRequest} - Request, its attributes are the model
+	 * @param response {@link HttpServletResponse} - Response
+	 * @throws Exception
+	 */
+	void render(HttpServletRequest request, HttpServletResponse response) throws Exception {
+		if (template != null) {
+			if (response.getContentType() == null) {
+				response.setContentType("text/html");
+			}
+			/* Templates are written in UTF-8, whatever content type the action set */
+			response.setCharacterEncoding("UTF-8");
+			ServletOutputStream out = response.getOutputStream();
+			template.render(new Attributes(request), out);
+			out.flush();
+			return;
+		} else if (!exists) {
+			throw new FileNotFoundException("No view found for " + name + " at " + path);
+		}
+		RequestDispatcher d = dispatcher != null ? dispatcher : request.getRequestDispatcher(path);
+		if (d == null) {
+			throw new Exception("Could not get dispatcher for " + path);
+		}
+		try {
+			d.forward(request, response);
+		} catch (FileNotFoundException e) {
+			FileNotFoundException missing = new FileNotFoundException("No view found for " + name + " at " + path);
+			missing.initCause(e);
+			throw missing;
+		} catch (ServletException e) {
+			throw new Exception("Error while rendering view for " + name, e);
+		} catch (IOException e) {
+			throw new Exception("Error while rendering view for " + name, e);
+		}
+	}
+
+	private static String key(String controllerName, String actionName) {
+		return controllerName + "/" + actionName;
+	}
+
+	/**
+	 * Compile a template if it exists
+	 * @return {@link Template} Null if not found
+	 */
+	private static Template load(ServletContext ctx, String path) throws IOException {
+		InputStream in = ctx.getResourceAsStream(path);
+		if (in == null) {
+			return null;
+		}
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) >= 0) {
+				out.write(buf, 0, n);
+			}
+			return Template.compile(out.toString("UTF-8"));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid template " + path + ": " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Request attributes seen as a map
+	 */
+	private static final class Attributes extends AbstractMap<String, Object> {
+
+		private final HttpServletRequest request;
+
+		Attributes(HttpServletRequest request) {
+			this.request = request;
+		}
+
+		@Override
+		public Object get(Object key) {
+			return key != null ? request.getAttribute(key.toString()) : null;
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return Collections.emptySet();
+		}
+
+	}
+
+}